@@ -0,0 +1,258 @@
+// Copyright 2000-2005 the Contributors, as shown in the revision logs.
+// Licensed under the Apache Public Source License 2.0 ("the License").
+// You may not use this file except in compliance with the License.
+
+package org.ibex.nestedvm;
+
+import java.io.*;
+import java.util.*;
+
+import org.ibex.nestedvm.util.*;
+
+/** Which of the functions in a binary's .text can ever run (-o prunefunctions). A function is reachable
+    if it contains the entry point, is one of the symbols Runtime.call() can use, its address is stored
+    in a loaded data section or something reachable calls, jumps to, loads the address of or falls through
+    into it.
+
+    Only functions with a size in the symbol table are considered, the code between them (crt0 and other
+    assembly) is always kept. Data words pointing into the middle of a function (jump tables) don't count,
+    they only matter if the function runs anyway. */
+class CallGraph {
+    private final int base;
+    private final int[] words;
+
+    // the sized functions in .text, sorted by address
+    private int count;
+    private int[] start;
+    private int[] end;
+    private boolean[] live;
+    private int[] work;
+    private int top;
+
+    // the unreachable ones, sorted by address
+    private int[] deadStart;
+    private int[] deadEnd;
+    private int deadBytes;
+
+    /** Works out the reachable functions of <i>elf</i>. If <i>exported</i> is set the symbols Runtime.call()
+        can use (see ClassFileCompiler's symbol table) are kept too. */
+    CallGraph(ELF elf, boolean exported) throws IOException {
+        ELF.SHeader text = elf.sectionWithName(".text");
+        ELF.Symtab symtab = elf.getSymtab();
+        base = text.addr;
+        int textEnd = text.addr + text.size;
+        words = new int[text.size/4];
+        DataInputStream dis = new DataInputStream(text.getInputStream());
+        for(int i=0;i<words.length;i++) words[i] = dis.readInt();
+        dis.close();
+
+        Vector v = new Vector();
+        for(int i=0;i<symtab.symbols.length;i++) {
+            ELF.Symbol s = symtab.symbols[i];
+            if(s.type == ELF.Symbol.STT_FUNC && s.size > 0 && s.addr >= base && s.addr < textEnd && (s.addr&3) == 0)
+                v.addElement(s);
+        }
+        Object[] syms = new Object[v.size()];
+        v.copyInto(syms);
+        Sort.sort(syms,new Sort.CompareFunc() {
+            public int compare(Object a, Object b) {
+                int x = ((ELF.Symbol) a).addr, y = ((ELF.Symbol) b).addr;
+                return x < y ? -1 : x > y ? 1 : 0;
+            }
+        });
+        start = new int[syms.length];
+        end = new int[syms.length];
+        for(int i=0;i<syms.length;i++) {
+            ELF.Symbol s = (ELF.Symbol) syms[i];
+            int e = Math.min(textEnd,(s.addr + s.size + 3)&~3);
+            // aliases and overlapping symbols are one function
+            if(count > 0 && s.addr < end[count-1]) {
+                end[count-1] = Math.max(end[count-1],e);
+                continue;
+            }
+            start[count] = s.addr;
+            end[count] = e;
+            count++;
+        }
+        live = new boolean[count];
+        work = new int[count];
+
+        mark(function(elf.header.entry));
+        if(exported) {
+            for(int i=0;i<symtab.symbols.length;i++) {
+                ELF.Symbol s = symtab.symbols[i];
+                if(s.type == ELF.Symbol.STT_FUNC && s.binding == ELF.Symbol.STB_GLOBAL && (s.name.equals("_call_helper") || !s.name.startsWith("_")))
+                    mark(function(s.addr));
+            }
+        }
+        for(int i=0;i<elf.sheaders.length;i++) {
+            ELF.SHeader sheader = elf.sheaders[i];
+            // every loaded section that isn't code can hold function pointers (.init_array, .data.rel.ro, ...)
+            if(sheader.addr == 0x0 || sheader.type == ELF.SHT_NOBITS) continue;
+            if((sheader.flags & ELF.SHF_ALLOC) != 0 && (sheader.flags & ELF.SHF_EXECINSTR) == 0)
+                scanData(sheader);
+        }
+        // the code the symtab doesn't cover
+        int addr = base;
+        for(int f=0;f<=count;f++) {
+            int e = f == count ? textEnd : start[f];
+            if(addr < e && !padding(addr,e)) {
+                scanCode(addr,e);
+                if(f < count && fallsThrough(addr,e)) mark(f);
+            }
+            if(f < count) addr = end[f];
+        }
+
+        while(top > 0) {
+            int f = work[--top];
+            scanCode(start[f],end[f]);
+            if(fallsThrough(start[f],end[f])) {
+                // skip the padding to the next function
+                int a = end[f];
+                while(a < textEnd && words[(a-base)/4] == 0) a += 4;
+                mark(function(a));
+            }
+        }
+
+        int n = 0;
+        for(int f=0;f<count;f++) if(!live[f]) n++;
+        deadStart = new int[n];
+        deadEnd = new int[n];
+        n = 0;
+        for(int f=0;f<count;f++) {
+            if(live[f]) continue;
+            deadStart[n] = start[f];
+            deadEnd[n] = end[f];
+            deadBytes += end[f] - start[f];
+            n++;
+        }
+    }
+
+    /** True if <i>addr</i> is in a function nothing can reach */
+    boolean dead(int addr) {
+        int lo = 0, hi = deadStart.length-1;
+        while(lo <= hi) {
+            int mid = (lo+hi)>>>1;
+            if(addr < deadStart[mid]) hi = mid-1;
+            else if(addr >= deadEnd[mid]) lo = mid+1;
+            else return true;
+        }
+        return false;
+    }
+
+    /** Returns the index of the function <i>addr</i> is in, or -1 */
+    private int function(int addr) {
+        int lo = 0, hi = count-1;
+        while(lo <= hi) {
+            int mid = (lo+hi)>>>1;
+            if(addr < start[mid]) hi = mid-1;
+            else if(addr >= end[mid]) lo = mid+1;
+            else return mid;
+        }
+        return -1;
+    }
+
+    private void mark(int f) {
+        if(f == -1 || live[f]) return;
+        live[f] = true;
+        work[top++] = f;
+    }
+
+    private boolean padding(int from, int to) {
+        for(int a=from;a<to;a+=4) if(words[(a-base)/4] != 0) return false;
+        return true;
+    }
+
+    /** False if the code from <i>from</i> to <i>to</i> ends with a jump (and its delay slot) or a BREAK,
+        not counting the nops after it */
+    private boolean fallsThrough(int from, int to) {
+        int a = to - 4;
+        while(a >= from && words[(a-base)/4] == 0) a -= 4;
+        if(a < from) return true;
+        int last = words[(a-base)/4];
+        int before = a - 4 >= from ? words[(a-4-base)/4] : 0;
+        if(unconditionalJump(last) || unconditionalJump(before)) return false;
+        return !((last & 0xfc00003f) == 13 && !isBranch(before));
+    }
+
+    private static boolean unconditionalJump(int insn) {
+        int op = insn >>> 26;
+        if(op == 2) return true; // J
+        if(op == 0 && (insn & 0x3f) == 8) return true; // JR
+        return op == 4 && ((insn >>> 16) & 0x3ff) == 0; // BEQ $0,$0 (B)
+    }
+
+    private static boolean isBranch(int insn) {
+        int op = insn >>> 26;
+        if(op == 0) return (insn & 0x3f) == 8 || (insn & 0x3f) == 9;
+        return op == 1 || (op >= 2 && op <= 7) || (op >= 20 && op <= 23) || (op == 17 && ((insn >>> 21) & 0x1f) == 8);
+    }
+
+    /** Marks the functions the code from <i>from</i> to <i>to</i> calls, jumps to or takes the address of
+        (the same things Compiler.findBranchesInText() looks for) */
+    private void scanCode(int from, int to) {
+        int[] luiVal = new int[32];
+        int[] luiPc = new int[32];
+        for(int pc=from;pc<to;pc+=4) {
+            int insn = words[(pc-base)/4];
+            int op = insn >>> 26;
+            int rs = (insn >>> 21) & 0x1f;
+            int rt = (insn >>> 16) & 0x1f;
+            int signedImmediate = (insn << 16) >> 16;
+            int branchTarget = pc + signedImmediate*4 + 4;
+            switch(op) {
+                case 1:
+                    if(rt == 0 || rt == 1 || rt == 16 || rt == 17) mark(function(branchTarget));
+                    break;
+                case 2: // J
+                case 3: // JAL
+                    mark(function((pc&0xf0000000)|((insn & 0x03ffffff) << 2)));
+                    break;
+                case 4: case 5: case 6: case 7: // BEQ, BNE, BLEZ, BGTZ
+                case 20: case 21: case 22: case 23: // the likely versions
+                    mark(function(branchTarget));
+                    break;
+                case 9: // ADDIU
+                case 13: // ORI
+                    if(luiPc[rs] != 0 && pc - luiPc[rs] <= 4*32) {
+                        int t = op == 9 ? (luiVal[rs]<<16)+signedImmediate : (luiVal[rs]<<16)|(insn&0xffff);
+                        if((t&3) == 0) mark(function(t));
+                        if(rt == rs) luiPc[rs] = 0;
+                    }
+                    break;
+                case 15: // LUI
+                    luiVal[rt] = insn & 0xffff;
+                    luiPc[rt] = pc;
+                    break;
+                case 17: // BC1F, BC1T
+                    if(rs == 8) mark(function(branchTarget));
+                    break;
+            }
+        }
+    }
+
+    private void scanData(ELF.SHeader sheader) throws IOException {
+        DataInputStream dis = new DataInputStream(sheader.getInputStream());
+        try {
+            for(int i=0;i<sheader.size/4;i++) {
+                int word = dis.readInt();
+                int f = function(word);
+                // pointers into the middle of a function are jump tables
+                if(f != -1 && start[f] == word) mark(f);
+            }
+        } finally {
+            dis.close();
+        }
+    }
+
+    /** Number of sized functions in the symbol table */
+    int functions() { return count; }
+    /** Number of functions nothing can reach */
+    int deadFunctions() { return deadStart.length; }
+    /** Bytes of text in the functions nothing can reach */
+    int deadBytes() { return deadBytes; }
+
+    public String toString() {
+        return "CallGraph[functions=" + count + " dead=" + deadStart.length + " deadBytes=" + deadBytes + "]";
+    }
+}
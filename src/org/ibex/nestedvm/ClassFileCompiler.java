@@ -5,6 +5,7 @@
 package org.ibex.nestedvm;
 
 import java.io.*;
+import java.util.*;
 
 import org.ibex.nestedvm.util.*;
 import org.ibex.classgen.*;
@@ -12,11 +13,15 @@ import org.ibex.classgen.*;
 // FEATURE: Eliminate unnecessary use of SWAP
 // FEATURE: Put regs in low (<=3) local vars, small classfile size
 
-/* FEATURE: Span large binaries across several classfiles
- * We should be able to do this with no performance penalty
- * Every method in the inner classes is static and takes the main class as an arg
+/* Spanning large binaries across several classfiles (-o methodsperclass=N)
+ * Every run_XXXX method in the <classname>$TextN classes is static and takes the main class as an arg
  * This makes them look just like methods in the main class because arg1 gets loaded into
- * local register 0
+ * local register 0. The main class keeps the CPU state and the trampoline, its fields are package
+ * private then and the protected Runtime members the code needs are reached through access$ methods
+ * (see runtimeField() and runtimeMethod()).
+ * -o lazyclasses uses the same scheme with a class per function (big ones are split further, see
+ * assignTextClasses()). Nothing refers to a text class but the trampoline and direct calls, so the JVM only
+ * loads and verifies the ones the program actually calls.
  */
 
 /* FEATURE: smarter with local regs
@@ -36,7 +41,7 @@ import org.ibex.classgen.*;
  */
 
 
-public class ClassFileCompiler extends Compiler implements CGConst  {
+public class ClassFileCompiler extends Compiler implements CGConst, Cloneable  {
     private static final boolean OPTIMIZE_CP = true;
     
     /** The stream to write the compiled output to */
@@ -49,6 +54,18 @@ public class ClassFileCompiler extends Compiler implements CGConst  {
     private ClassFile cg;
     private MethodGen clinit, init;
     
+    /** True if the run_XXXX methods go into separate classes (see methodsPerClass and lazyClasses) */
+    private boolean splitText;
+    /** The text class of every run_XXXX method (indexed by the method's address >>> methodShift minus textMethodBase) */
+    private int[] textClassOf;
+    private int textMethodBase;
+    /** The classes holding run_XXXX methods if splitText is set (Integer index -> ClassFile) */
+    private Hashtable textClasses = new Hashtable();
+    /** The members of Runtime the text classes need access$ methods for (Type.Class.Member) */
+    private Vector accessors = new Vector();
+    /** Where the text classes go when writing to an OutputStream (class name -> byte[]) */
+    private Hashtable textClassOutput;
+    
     public ClassFileCompiler(String path, String className, OutputStream os) throws IOException { this(new Seekable.File(path),className,os); }
     public ClassFileCompiler(Seekable binary, String className, OutputStream os) throws IOException {
         this(binary,className);
@@ -66,6 +83,10 @@ public class ClassFileCompiler extends Compiler implements CGConst  {
     }
     
     public void setWarnWriter(PrintStream warn) { this.warn = warn; }
+    
+    /** The main class is still written to the OutputStream, any classes the text is split across (see
+        methodsPerClass) are put in <i>h</i> (class name -> byte[]) instead of being an error */
+    void setTextClassOutput(Hashtable h) { textClassOutput = h; }
         
     protected void _go() throws Exn, IOException {
         try {
@@ -84,13 +105,25 @@ public class ClassFileCompiler extends Compiler implements CGConst  {
         cg = new ClassFile(me,superClass,PUBLIC|FINAL|SUPER);
         if(source != null) cg.setSourceFile(source);
         
-        // Fields
-        cg.addField("pc",Type.INT,PRIVATE);
-        cg.addField("hi",Type.INT,PRIVATE);
-        cg.addField("lo",Type.INT,PRIVATE);
-        cg.addField("fcsr",Type.INT,PRIVATE);
-        for(int i=1;i<32;i++) cg.addField("r" + i,Type.INT,PRIVATE);
-        for(int i=0;i<32;i++) cg.addField("f" + i,singleFloat ? Type.FLOAT : Type.INT,PRIVATE);
+        ELF.SHeader text = elf.sectionWithName(".text");
+        
+        int beg = text.addr >>> methodShift;
+        int end = ((text.addr + text.size + maxBytesPerMethod - 1) >>> methodShift);
+        
+        splitText = lazyClasses || (methodsPerClass != 0 && end - beg > methodsPerClass);
+        if(splitText && outDir == null && textClassOutput == null)
+            throw new Exn((lazyClasses ? "lazyClasses" : "methodsPerClass") + " splits this binary across several classes, that needs an output directory");
+        if(splitText) assignTextClasses(beg,end);
+        
+        // Fields (the text classes need to get at them)
+        int stateFlags = splitText ? 0 : PRIVATE;
+        cg.addField("pc",Type.INT,stateFlags);
+        cg.addField("hi",Type.INT,stateFlags);
+        cg.addField("lo",Type.INT,stateFlags);
+        cg.addField("fcsr",Type.INT,stateFlags);
+        for(int i=1;i<32;i++) cg.addField("r" + i,Type.INT,stateFlags);
+        for(int i=0;i<32;i++) cg.addField("f" + i,singleFloat ? Type.FLOAT : Type.INT,stateFlags);
+        if(directCalls) cg.addField("callDepth",Type.INT,stateFlags);
 
         // <clinit>
         clinit = cg.addMethod("<clinit>",Type.VOID,Type.NO_ARGS,PRIVATE|STATIC);
@@ -132,7 +165,7 @@ public class ClassFileCompiler extends Compiler implements CGConst  {
         init.add(INVOKESPECIAL,superClass.method("<init>",Type.VOID,new Type[]{Type.INT,Type.INT,Type.BOOLEAN}));
         
         if(onePage) {
-            cg.addField("page",Type.INT.makeArray(),PRIVATE|FINAL);
+            cg.addField("page",Type.INT.makeArray(),stateFlags|FINAL);
             init.add(ALOAD_0);
             init.add(DUP);
             init.add(GETFIELD,me.field("readPages",Type.INT.makeArray(2)));
@@ -165,6 +198,17 @@ public class ClassFileCompiler extends Compiler implements CGConst  {
         }
         
         // Finish init
+        if(offHeap) {
+            // GCCLASS_HINT: org.ibex.nestedvm.RuntimeCompiler.compile org.ibex.nestedvm.Runtime.useOffHeapMemory
+            Type.Class offHeapMemory = Type.Class.instance("org.ibex.nestedvm.OffHeapMemory");
+            init.add(ALOAD_0);
+            init.add(INVOKESTATIC,offHeapMemory.method("getDefault",offHeapMemory,Type.NO_ARGS));
+            init.add(INVOKEVIRTUAL,me.method("useOffHeapMemory",Type.VOID,new Type[]{offHeapMemory}));
+        } else if(!onePage) {
+            // GCCLASS_HINT: org.ibex.nestedvm.RuntimeCompiler.compile org.ibex.nestedvm.Runtime.shareReadOnlyPages
+            init.add(ALOAD_0);
+            init.add(INVOKEVIRTUAL,me.method("shareReadOnlyPages",Type.VOID,Type.NO_ARGS));
+        }
         init.add(RETURN);
         
         // Finish clinit
@@ -194,56 +238,25 @@ public class ClassFileCompiler extends Compiler implements CGConst  {
         
         clinit.add(RETURN);
         
-        ELF.SHeader text = elf.sectionWithName(".text");
-        
         // Trampoline
-        MethodGen tramp = cg.addMethod("trampoline",Type.VOID,Type.NO_ARGS,PRIVATE);
-        
-        int start = tramp.size();
-        tramp.add(ALOAD_0);
-        tramp.add(GETFIELD,me.field("state",Type.INT));
-        tramp.add(IFEQ,tramp.size()+2);
-        tramp.add(RETURN);
+        addTrampoline(cg.addMethod("trampoline",Type.VOID,Type.NO_ARGS,PRIVATE),false,beg,end);
         
-        tramp.add(ALOAD_0);
-        tramp.add(ALOAD_0);
-        tramp.add(GETFIELD,me.field("pc",Type.INT));
-        tramp.add(LDC,methodShift);
-        tramp.add(IUSHR);
+        // runUntil(int) - used by direct calls to finish a call that didn't return straight to the call site
+        if(directCalls) addTrampoline(cg.addMethod("runUntil",Type.VOID,new Type[]{Type.INT},splitText ? FINAL : PRIVATE),true,beg,end);
         
-        int beg = text.addr >>> methodShift;
-        int end = ((text.addr + text.size + maxBytesPerMethod - 1) >>> methodShift);
-
-        MethodGen.Switch.Table tsi = new MethodGen.Switch.Table(beg,end-1);
-        tramp.add(TABLESWITCH,tsi);
-        for(int n=beg;n<end;n++) {
-            tsi.setTargetForVal(n,tramp.size());
-            tramp.add(INVOKESPECIAL,me.method("run_"+toHex(n<<methodShift),Type.VOID,Type.NO_ARGS));
-            tramp.add(GOTO,start);
+        if(!onePage && !offHeap) {
+            // every store that misses writePages either hits the copyOnWrite() check in memWrite() or goes through unsafeMemWrite()
+            MethodGen cow = cg.addMethod("supportsCopyOnWrite",Type.BOOLEAN,Type.NO_ARGS,PROTECTED);
+            cow.add(ICONST_1);
+            cow.add(IRETURN);
         }
-        tsi.setDefaultTarget(tramp.size());
         
-        tramp.add(POP);
-        tramp.add(NEW,Type.Class.instance("org.ibex.nestedvm.Runtime$ExecutionException"));
-        tramp.add(DUP);
-        tramp.add(NEW, Type.STRINGBUFFER);
-        tramp.add(DUP);
-        tramp.add(LDC,"Jumped to invalid address in trampoline (r2: ");
-        tramp.add(INVOKESPECIAL,Type.STRINGBUFFER.method("<init>",Type.VOID,new Type[]{Type.STRING}));
-        tramp.add(ALOAD_0);
-        tramp.add(GETFIELD, me.field("r2",Type.INT));
-        tramp.add(INVOKEVIRTUAL,Type.STRINGBUFFER.method("append",Type.STRINGBUFFER,new Type[]{Type.INT}));
-        tramp.add(LDC," pc: ");
-        tramp.add(INVOKEVIRTUAL,Type.STRINGBUFFER.method("append",Type.STRINGBUFFER,new Type[]{Type.STRING}));
-        tramp.add(ALOAD_0);
-        tramp.add(GETFIELD, me.field("pc",Type.INT));        
-        tramp.add(INVOKEVIRTUAL,Type.STRINGBUFFER.method("append",Type.STRINGBUFFER,new Type[]{Type.INT}));
-        tramp.add(LDC,")");
-        tramp.add(INVOKEVIRTUAL,Type.STRINGBUFFER.method("append",Type.STRINGBUFFER,new Type[]{Type.STRING}));
-        tramp.add(INVOKEVIRTUAL,Type.STRINGBUFFER.method("toString",Type.STRING,Type.NO_ARGS));
-        // GCCLASS_HINT: org.ibex.nestedvm.RuntimeCompiler.compile org.ibex.nestedvm.Runtime$ExecutionException.<init>
-        tramp.add(INVOKESPECIAL,Type.Class.instance("org.ibex.nestedvm.Runtime$ExecutionException").method("<init>",Type.VOID,new Type[]{Type.STRING}));
-        tramp.add(ATHROW);
+        if(offHeap || !fastMem) {
+            // loads and stores either use readBuffers/writeBuffers or go through unsafeMemRead()/unsafeMemWrite()
+            MethodGen oh = cg.addMethod("supportsOffHeapMemory",Type.BOOLEAN,Type.NO_ARGS,PROTECTED);
+            oh.add(ICONST_1);
+            oh.add(IRETURN);
+        }
         
         addConstReturnMethod("gp",gp.addr);
         addConstReturnMethod("entryPoint",elf.header.entry);
@@ -338,10 +351,24 @@ public class ClassFileCompiler extends Compiler implements CGConst  {
         
 
         MethodGen execute = cg.addMethod("_execute",Type.VOID,Type.NO_ARGS,PROTECTED);
+        if(directCalls) {
+            // _execute can be reentered through call()
+            execute.add(ALOAD_0);
+            execute.add(GETFIELD,me.field("callDepth",Type.INT));
+            execute.add(ISTORE_2);
+            execute.add(ALOAD_0);
+            execute.add(ICONST_0);
+            execute.add(PUTFIELD,me.field("callDepth",Type.INT));
+        }
         int tryStart = execute.size();
         execute.add(ALOAD_0);
         execute.add(INVOKESPECIAL,me.method("trampoline",Type.VOID,Type.NO_ARGS));
         int tryEnd = execute.size();
+        if(directCalls) {
+            execute.add(ALOAD_0);
+            execute.add(ILOAD_2);
+            execute.add(PUTFIELD,me.field("callDepth",Type.INT));
+        }
         execute.add(RETURN);
         
         int catchInsn = execute.size();
@@ -373,12 +400,200 @@ public class ClassFileCompiler extends Compiler implements CGConst  {
         main.add(INVOKESTATIC,Type.Class.instance("java.lang.System").method("exit",Type.VOID,new Type[]{Type.INT}));
         main.add(RETURN);
         
+        addAccessors();
+        
         if(outDir != null) {
             if(!outDir.isDirectory()) throw new IOException("" + outDir + " isn't a directory");
             cg.dump(outDir);
+            for(Enumeration e = textClasses.elements();e.hasMoreElements();)
+                ((ClassFile)e.nextElement()).dump(outDir);
         } else {
             cg.dump(os);
+            for(Enumeration e = textClasses.elements();e.hasMoreElements();) {
+                ClassFile tc = (ClassFile) e.nextElement();
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                tc.dump(baos);
+                textClassOutput.put(tc.getType().getName(),baos.toByteArray());
+            }
+        }
+    }
+    
+    /** Returns the class the run_XXXX method for <i>addr</i> lives in */
+    private Type.Class textClass(int addr) { return splitText ? textClassFile(addr).getType() : me; }
+    
+    private ClassFile textClassFile(int addr) {
+        int n = textClassOf[(addr >>> methodShift) - textMethodBase];
+        Integer key = new Integer(n);
+        ClassFile tc = (ClassFile) textClasses.get(key);
+        if(tc == null) {
+            tc = new ClassFile(Type.Class.instance(fullClassName + "$Text" + n),Type.OBJECT,FINAL|SUPER);
+            if(source != null) tc.setSourceFile(source);
+            textClasses.put(key,tc);
+        }
+        return tc;
+    }
+    
+    /** Decides which text class each of the methods from <i>beg</i> to <i>end</i> (addresses >>> methodShift) goes in.
+        Every class gets at most methodsPerClass methods, with lazyClasses a new class also starts at every method
+        a function starts in. */
+    private void assignTextClasses(int beg, int end) throws IOException {
+        textMethodBase = beg;
+        textClassOf = new int[end - beg];
+        int limit = methodsPerClass != 0 ? methodsPerClass : LAZY_METHODS_PER_CLASS;
+        boolean[] funcStart = new boolean[end - beg];
+        ELF.Symtab symtab = elf.getSymtab();
+        if(lazyClasses && symtab != null) {
+            for(int i=0;i<symtab.symbols.length;i++) {
+                ELF.Symbol s = symtab.symbols[i];
+                int m = (s.addr >>> methodShift) - beg;
+                if(s.type == ELF.Symbol.STT_FUNC && m >= 0 && m < funcStart.length) funcStart[m] = true;
+            }
+        }
+        int n = 0, inClass = 0;
+        for(int i=0;i<textClassOf.length;i++) {
+            if(inClass != 0 && (funcStart[i] || inClass == limit)) { n++; inClass = 0; }
+            textClassOf[i] = n;
+            inClass++;
         }
+        if(printStats) System.err.println("Splitting " + textClassOf.length + " methods across " + (n+1) + " classes");
+    }
+    
+    // the most methods in one text class with lazyClasses if methodsPerClass isn't set, big functions are
+    // split across several classes so the ones that are loaded stay small
+    private static final int LAZY_METHODS_PER_CLASS = 8;
+    
+    /** Adds the run_XXXX method for <i>addr</i> (to the main class or a text class) */
+    private MethodGen addRunMethod(int addr) {
+        String name = "run_" + toHex(addr);
+        if(!splitText) return cg.addMethod(name,Type.VOID,Type.NO_ARGS,PRIVATE|FINAL);
+        return textClassFile(addr).addMethod(name,Type.VOID,new Type[]{me},STATIC|FINAL);
+    }
+    
+    /** Calls the run_XXXX method for <i>addr</i>, the runtime has to be on the stack */
+    private void invokeRun(MethodGen m, int addr) {
+        if(splitText)
+            m.add(INVOKESTATIC,textClass(addr).method("run_"+toHex(addr),Type.VOID,new Type[]{me}));
+        else
+            m.add(INVOKESPECIAL,me.method("run_"+toHex(addr),Type.VOID,Type.NO_ARGS));
+    }
+    
+    /** Replaces the runtime on the stack with the value of its protected field <i>name</i> */
+    private void runtimeField(String name, Type type) {
+        if(!splitText) {
+            mg.add(GETFIELD,me.field(name,type));
+            return;
+        }
+        addAccessor(me.field(name,type));
+        mg.add(INVOKEVIRTUAL,me.method("access$" + name,type,Type.NO_ARGS));
+    }
+    
+    /** Calls the protected method <i>name</i>, the runtime and the arguments have to be on the stack */
+    private void runtimeMethod(String name, Type ret, Type[] args) {
+        if(!splitText) {
+            mg.add(INVOKEVIRTUAL,me.method(name,ret,args));
+            return;
+        }
+        addAccessor(me.method(name,ret,args));
+        mg.add(INVOKEVIRTUAL,me.method("access$" + name,ret,args));
+    }
+    
+    private void addAccessor(Type.Class.Member m) {
+        synchronized(accessors) {
+            if(!accessors.contains(m)) accessors.addElement(m);
+        }
+    }
+    
+    /** Adds the access$ methods used by the text classes to the main class */
+    private void addAccessors() {
+        // sorted, the order they were first used in depends on the worker threads
+        Object[] members = new Object[accessors.size()];
+        accessors.copyInto(members);
+        Sort.sort(members,new Sort.CompareFunc() {
+            public int compare(Object a, Object b) {
+                return ((Type.Class.Member) a).getName().compareTo(((Type.Class.Member) b).getName());
+            }
+        });
+        for(int n=0;n<members.length;n++) {
+            Object o = members[n];
+            String name = ((Type.Class.Member) o).getName();
+            MethodGen m;
+            if(o instanceof Type.Class.Field) {
+                Type.Class.Field f = (Type.Class.Field) o;
+                m = cg.addMethod("access$" + name,f.getType(),Type.NO_ARGS,FINAL);
+                m.add(ALOAD_0);
+                m.add(GETFIELD,f);
+                m.add(f.getType() == Type.INT ? IRETURN : ARETURN);
+            } else {
+                Type.Class.Method method = (Type.Class.Method) o;
+                Type[] args = method.getArgTypes();
+                m = cg.addMethod("access$" + name,method.getReturnType(),args,FINAL);
+                m.add(ALOAD_0);
+                for(int i=0;i<args.length;i++) {
+                    if(args[i] != Type.INT) throw new Error("should never happen");
+                    m.add(ILOAD,i+1);
+                }
+                m.add(INVOKEVIRTUAL,method);
+                Type ret = method.getReturnType();
+                m.add(ret == Type.VOID ? RETURN : ret == Type.INT ? IRETURN : ARETURN);
+            }
+        }
+    }
+    
+    /** Adds the dispatch loop that calls run_XXXX for the current pc until the state changes
+        (or, if <i>stopAtReturn</i> is true, until pc reaches the address passed as the first argument) */
+    private void addTrampoline(MethodGen tramp, boolean stopAtReturn, int beg, int end) {
+        int start = tramp.size();
+        tramp.add(ALOAD_0);
+        tramp.add(GETFIELD,me.field("state",Type.INT));
+        tramp.add(IFEQ,tramp.size()+2);
+        tramp.add(RETURN);
+        
+        if(stopAtReturn) {
+            tramp.add(ALOAD_0);
+            tramp.add(GETFIELD,me.field("pc",Type.INT));
+            tramp.add(ILOAD_1);
+            tramp.add(IF_ICMPNE,tramp.size()+2);
+            tramp.add(RETURN);
+        }
+        
+        tramp.add(ALOAD_0);
+        tramp.add(ALOAD_0);
+        tramp.add(GETFIELD,me.field("pc",Type.INT));
+        tramp.add(LDC,methodShift);
+        tramp.add(IUSHR);
+        
+        MethodGen.Switch.Table tsi = new MethodGen.Switch.Table(beg,end-1);
+        tramp.add(TABLESWITCH,tsi);
+        for(int n=beg;n<end;n++) {
+            if(runMethods[n-beg] == null) continue;
+            tsi.setTargetForVal(n,tramp.size());
+            invokeRun(tramp,n<<methodShift);
+            tramp.add(GOTO,start);
+        }
+        tsi.setDefaultTarget(tramp.size());
+        for(int n=beg;n<end;n++) if(runMethods[n-beg] == null) tsi.setTargetForVal(n,tramp.size());
+        
+        tramp.add(POP);
+        tramp.add(NEW,Type.Class.instance("org.ibex.nestedvm.Runtime$ExecutionException"));
+        tramp.add(DUP);
+        tramp.add(NEW, Type.STRINGBUFFER);
+        tramp.add(DUP);
+        tramp.add(LDC,"Jumped to invalid address in trampoline (r2: ");
+        tramp.add(INVOKESPECIAL,Type.STRINGBUFFER.method("<init>",Type.VOID,new Type[]{Type.STRING}));
+        tramp.add(ALOAD_0);
+        tramp.add(GETFIELD, me.field("r2",Type.INT));
+        tramp.add(INVOKEVIRTUAL,Type.STRINGBUFFER.method("append",Type.STRINGBUFFER,new Type[]{Type.INT}));
+        tramp.add(LDC," pc: ");
+        tramp.add(INVOKEVIRTUAL,Type.STRINGBUFFER.method("append",Type.STRINGBUFFER,new Type[]{Type.STRING}));
+        tramp.add(ALOAD_0);
+        tramp.add(GETFIELD, me.field("pc",Type.INT));        
+        tramp.add(INVOKEVIRTUAL,Type.STRINGBUFFER.method("append",Type.STRINGBUFFER,new Type[]{Type.INT}));
+        tramp.add(LDC,")");
+        tramp.add(INVOKEVIRTUAL,Type.STRINGBUFFER.method("append",Type.STRINGBUFFER,new Type[]{Type.STRING}));
+        tramp.add(INVOKEVIRTUAL,Type.STRINGBUFFER.method("toString",Type.STRING,Type.NO_ARGS));
+        // GCCLASS_HINT: org.ibex.nestedvm.RuntimeCompiler.compile org.ibex.nestedvm.Runtime$ExecutionException.<init>
+        tramp.add(INVOKESPECIAL,Type.Class.instance("org.ibex.nestedvm.Runtime$ExecutionException").method("<init>",Type.VOID,new Type[]{Type.STRING}));
+        tramp.add(ATHROW);
     }
     
     private void addConstReturnMethod(String name, int val) {
@@ -387,7 +602,7 @@ public class ClassFileCompiler extends Compiler implements CGConst  {
         m.add(IRETURN);
     }
         
-    private static int initDataCount;
+    private int initDataCount = 0;
     private void emitData(int addr, DataInputStream dis, int size, boolean readOnly) throws Exn,IOException {
         if((addr&3)!=0 || (size&3)!=0) throw new Exn("Data section on weird boundaries");
         int last = addr + size;
@@ -452,20 +667,89 @@ public class ClassFileCompiler extends Compiler implements CGConst  {
     private static final int SKIP_NEXT = 2;
     
     private boolean textDone; // a text segment was already processed
+    private int textBase; // address of the first word in textWords
+    private int[] textWords; // the text segment (only while it is being emitted)
+    private MethodGen[] runMethods; // the run_XXXX methods, in address order
+    
+    private static final int MIN_METHODS_PER_TASK = 16; // smallest range of methods handed to a worker thread
+    
     private void emitText(int addr, DataInputStream dis, int size) throws Exn,IOException {
         if(textDone) throw new Exn("Multiple text segments");
         textDone = true;
         
         if((addr&3)!=0 || (size&3)!=0) throw new Exn("Section on weird boundaries");
         int count = size/4;
+        
+        textBase = addr;
+        textWords = new int[count];
+        for(int i=0;i<count;i++) textWords[i] = dis.readInt();
+        dis.close();
+        optimizeText(addr,textWords);
+        
+        markMethodEntries();
+        
+        // The methods are added in address order up front so the class file is the same no matter which
+        // thread emits which method. The constant pool is only built when the class is written.
+        int first = addr & methodMask;
+        runMethods = new MethodGen[(addr + size - first + maxBytesPerMethod - 1) >>> methodShift];
+        for(int n=0;n<runMethods.length;n++) {
+            int start = first + (n << methodShift);
+            // methods with nothing but functions pruneFunctions left out aren't generated at all
+            if(!deadMethod(Math.max(start,addr),Math.min(start + maxBytesPerMethod,addr + size)))
+                runMethods[n] = addRunMethod(start);
+        }
+        
+        int nthreads = threads != 0 ? threads : java.lang.Runtime.getRuntime().availableProcessors();
+        if(nthreads <= 1 || runMethods.length < 2*MIN_METHODS_PER_TASK)
+            emitMethods(0,runMethods.length);
+        else
+            emitMethodsInParallel(nthreads);
+        textWords = null;
+    }
+    
+    private boolean deadMethod(int from, int to) {
+        for(int a=from;a<to;a+=4) if(!dead(a)) return false;
+        return true;
+    }
+    
+    /* endMethod() marks the start of the next method jumpable when it falls through into it and
+       doIfInstruction() marks the second word of the next method when a branch's delay slot starts it.
+       Marking every address this could happen to up front means no method depends on how the one before
+       it was emitted, so methods can be emitted in any order (and on several threads). An extra
+       jumpable address only costs a case in the method's switch. */
+    private void markMethodEntries() {
+        int textEnd = textBase + textWords.length*4;
+        for(int b=(textBase&methodMask)+maxBytesPerMethod;b<textEnd;b+=maxBytesPerMethod) {
+            if(dead(b)) continue;
+            int before = b-8 >= textBase ? insnInfo(textWords[(b-8-textBase)/4]) : CF_NEXT;
+            int last = b-4 >= textBase ? textWords[(b-4-textBase)/4] : 0;
+            int lastCf = b-4 >= textBase ? insnInfo(last) : CF_NEXT;
+            // the method before can only get past a jump (or a BREAK) if the next word is a jump target
+            boolean leaves = before == CF_JUMP || before == CF_INDIRECT ||
+                ((last & 0xfc00003f) == 13 && !(before >= CF_BRANCH && before <= CF_INDIRECT));
+            if(!leaves || jumpable(b-4)) jumpableAddresses.put(new Integer(b),Boolean.TRUE);
+            if(lastCf == CF_BRANCH && jumpable(b) && !dead(b+4)) jumpableAddresses.put(new Integer(b+4),Boolean.TRUE);
+        }
+    }
+    
+    /** Emits the run_XXXX methods runMethods[from] to runMethods[to-1] */
+    private void emitMethods(int from, int to) throws Exn {
+        int count = textWords.length;
+        int first = textBase & methodMask;
+        int start = Math.max(0,(first + (from << methodShift) - textBase)/4);
+        int end = Math.min(count,(first + (to << methodShift) - textBase)/4);
+        int addr = textBase + start*4;
+        int size = (count-start)*4;
         int insn,nextInsn=-1;
         
         boolean skipNext = true;
-        boolean unreachable = false;
+        // markMethodEntries() left the start of a method unmarked only if the one before can't fall through
+        boolean unreachable = start != 0;
         
-        for(int i=0;i<count;i++,addr+=4,size-=4) {
-            insn = skipNext ? dis.readInt() : nextInsn;
-            nextInsn = (i == count-1) ? -1 : dis.readInt();
+        for(int i=start;i<end;i++,addr+=4,size-=4) {
+            insn = textWords[i];
+            nextInsn = (i == count-1) ? -1 : textWords[i+1];
+            if(dead(addr)) { unreachable = true; continue; }
             if(addr >= endOfMethod) { endMethod(addr,unreachable); startMethod(addr,size); }
             if(insnTargets[i%maxInsnPerMethod] != null) {
                 insnTargets[i%maxInsnPerMethod].setTarget(mg.size());
@@ -487,25 +771,99 @@ public class ClassFileCompiler extends Compiler implements CGConst  {
             }
             if(skipNext) { addr+=4; size-=4; i++; }
         }
-        endMethod(0,unreachable);
-        dis.close();
+        endMethod(end == count ? 0 : addr,unreachable);
+    }
+    
+    /** Emits the run_XXXX methods on <i>nthreads</i> threads, each with its own copy of the per method state */
+    private void emitMethodsInParallel(int nthreads) throws Exn {
+        final int methods = runMethods.length;
+        final int perTask = Math.max(MIN_METHODS_PER_TASK,(methods + nthreads*4 - 1) / (nthreads*4));
+        final int tasks = (methods + perTask - 1) / perTask;
+        final int[] nextTask = new int[1];
+        final Throwable[] failures = new Throwable[tasks];
+        
+        Thread[] workers = new Thread[Math.min(nthreads,tasks)];
+        for(int t=0;t<workers.length;t++) {
+            final ClassFileCompiler w = worker();
+            workers[t] = new Thread(new Runnable() {
+                public void run() {
+                    for(;;) {
+                        int task;
+                        synchronized(nextTask) {
+                            if(nextTask[0] == tasks) return;
+                            task = nextTask[0]++;
+                        }
+                        try {
+                            w.emitMethods(task*perTask,Math.min(methods,(task+1)*perTask));
+                        } catch(Throwable e) {
+                            failures[task] = e;
+                            // don't bother with the rest
+                            synchronized(nextTask) { nextTask[0] = tasks; }
+                            return;
+                        }
+                    }
+                }
+            },"ClassFileCompiler worker " + t);
+            workers[t].start();
+        }
+        for(int t=0;t<workers.length;t++) {
+            for(;;) {
+                try { workers[t].join(); break; } catch(InterruptedException e) { /* keep waiting */ }
+            }
+        }
+        // report the same failure a single thread would have run into
+        for(int i=0;i<tasks;i++) {
+            Throwable e = failures[i];
+            if(e == null) continue;
+            if(e instanceof Exn) throw (Exn) e;
+            if(e instanceof RuntimeException) throw (RuntimeException) e;
+            if(e instanceof Error) throw (Error) e;
+            throw new Error("should never happen: " + e);
+        }
+    }
+    
+    /** Returns a copy of this compiler with its own per method state, for emitting methods on another thread */
+    private ClassFileCompiler worker() {
+        ClassFileCompiler w;
+        try {
+            w = (ClassFileCompiler) clone();
+        } catch(CloneNotSupportedException e) {
+            throw new Error("should never happen");
+        }
+        w.regLocalMapping = new int[REG_COUNT];
+        w.regLocalWritten = new boolean[REG_COUNT];
+        w.regAllocated = new boolean[REG_COUNT];
+        w.regLiveIn = new boolean[REG_COUNT];
+        w.regMayWrite = new boolean[REG_COUNT];
+        w.insnUse = new long[2];
+        w.insnMustDef = new long[2];
+        w.insnMayDef = new long[2];
+        w.preSetRegStack = new int[preSetRegStack.length];
+        return w;
     }
     
     private void startMethod(int first, int size) {
         startOfMethod = first & methodMask;
-        endOfMethod = startOfMethod + Math.min(maxBytesPerMethod,size);
+        endOfMethod = Math.min(startOfMethod + maxBytesPerMethod,first + size);
         
-        mg = cg.addMethod("run_" + toHex(startOfMethod),Type.VOID,Type.NO_ARGS,PRIVATE|FINAL);
+        mg = runMethods[(startOfMethod - (textBase & methodMask)) >>> methodShift];
         if(onePage) {
             mg.add(ALOAD_0);
             mg.add(GETFIELD,me.field("page",Type.INT.makeArray()));
             mg.add(ASTORE_2);
+        } else if(offHeap) {
+            mg.add(ALOAD_0);
+            runtimeField("readBuffers",Type.Class.instance("java.nio.IntBuffer").makeArray());
+            mg.add(ASTORE_2);
+            mg.add(ALOAD_0);
+            runtimeField("writeBuffers",Type.Class.instance("java.nio.IntBuffer").makeArray());
+            mg.add(ASTORE_3);
         } else {
             mg.add(ALOAD_0);
-            mg.add(GETFIELD,me.field("readPages",Type.INT.makeArray(2)));
+            runtimeField("readPages",Type.INT.makeArray(2));
             mg.add(ASTORE_2);
             mg.add(ALOAD_0);
-            mg.add(GETFIELD,me.field("writePages",Type.INT.makeArray(2)));
+            runtimeField("writePages",Type.INT.makeArray(2));
             mg.add(ASTORE_3);
         }
         
@@ -542,7 +900,7 @@ public class ClassFileCompiler extends Compiler implements CGConst  {
             preSetPC();
             mg.add(LDC,firstAddrOfNext);
             setPC();
-            // mark the start of the next method as jumpable
+            // the start of the next method is jumpable (markMethodEntries() already did this)
             jumpableAddresses.put(new Integer(firstAddrOfNext),Boolean.TRUE);
         }
         
@@ -609,6 +967,63 @@ public class ClassFileCompiler extends Compiler implements CGConst  {
         }
     }
     
+    private static final int MAX_CALL_DEPTH = 128; // max nested direct calls before falling back to the trampoline
+    
+    /* Calls the method containing target directly instead of going through the trampoline. If the
+       callee comes back to pc+8 (the common case) we pick up right there, otherwise runUntil()
+       keeps dispatching until it does. Everything is in the fields during the call, so locals are
+       stored before and reloaded after it. */
+    private void directCall(int pc, int target) {
+        int ret = pc + 8;
+        preSetPC();
+        mg.add(LDC,target);
+        setPC();
+        restoreChangedRegs();
+        
+        mg.add(ALOAD_0);
+        mg.add(GETFIELD,me.field("callDepth",Type.INT));
+        mg.add(LDC,MAX_CALL_DEPTH);
+        mg.add(IF_ICMPGE,returnTarget);
+        
+        mg.add(ALOAD_0);
+        mg.add(DUP);
+        mg.add(GETFIELD,me.field("callDepth",Type.INT));
+        mg.add(ICONST_1);
+        mg.add(IADD);
+        mg.add(PUTFIELD,me.field("callDepth",Type.INT));
+        
+        mg.add(ALOAD_0);
+        invokeRun(mg,target&methodMask);
+        
+        mg.add(ALOAD_0);
+        mg.add(GETFIELD,me.field("pc",Type.INT));
+        mg.add(LDC,ret);
+        int b1 = mg.add(IF_ICMPEQ);
+        mg.add(ALOAD_0);
+        mg.add(LDC,ret);
+        mg.add(splitText ? INVOKEVIRTUAL : INVOKESPECIAL,me.method("runUntil",Type.VOID,new Type[]{Type.INT}));
+        mg.setArg(b1,mg.size());
+        
+        mg.add(ALOAD_0);
+        mg.add(DUP);
+        mg.add(GETFIELD,me.field("callDepth",Type.INT));
+        mg.add(ICONST_1);
+        mg.add(ISUB);
+        mg.add(PUTFIELD,me.field("callDepth",Type.INT));
+        
+        reloadRegs();
+        
+        // paused or exited, pc is already set
+        mg.add(ALOAD_0);
+        runtimeField("state",Type.INT);
+        mg.add(IFNE,returnTarget);
+        
+        if((ret&methodMask) == (pc&methodMask) && ret < endOfMethod)
+            mg.add(GOTO,insnTargets[(ret-startOfMethod)/4]);
+        else
+            leaveMethod();
+    }
+    
     // This assumes everything needed by ifInsn is already on the stack
     private int doIfInstruction(byte op, int pc, int target, int nextInsn) throws Exn {
         emitInstruction(-1,nextInsn,-1); // delay slot
@@ -624,7 +1039,7 @@ public class ClassFileCompiler extends Compiler implements CGConst  {
         //System.err.println("Delay slot is jumpable - This code is untested + " + toHex(nextInsn));
         if(pc+4==endOfMethod) {
             // the delay slot is at the start of the next method
-            jumpableAddresses.put(new Integer(pc+8),Boolean.TRUE); // make the 2nd insn of the next method jumpable
+            jumpableAddresses.put(new Integer(pc+8),Boolean.TRUE); // make the 2nd insn of the next method jumpable (see markMethodEntries())
             branch(pc,pc+8); // jump over it
             //System.err.println("delay slot: " + toHex(pc+8)); */
             //unreachable = true;
@@ -756,11 +1171,11 @@ public class ClassFileCompiler extends Compiler implements CGConst  {
                 pushRegZ(R+T0);
                 pushRegZ(R+T1);
                 // GCCLASS_HINT: org.ibex.nestedvm.RuntimeCompiler.compile org.ibex.nestedvm.Runtime.syscall
-                mg.add(INVOKEVIRTUAL,me.method("syscall",Type.INT,new Type[]{Type.INT,Type.INT,Type.INT,Type.INT,Type.INT,Type.INT,Type.INT}));
+                runtimeMethod("syscall",Type.INT,new Type[]{Type.INT,Type.INT,Type.INT,Type.INT,Type.INT,Type.INT,Type.INT});
                 setReg();
                 
                 mg.add(ALOAD_0);
-                mg.add(GETFIELD,me.field("state",Type.INT));
+                runtimeField("state",Type.INT);
                 b1 = mg.add(IFEQ);
                 preSetPC();
                 mg.add(LDC,pc+4);
@@ -1059,7 +1474,10 @@ public class ClassFileCompiler extends Compiler implements CGConst  {
             int target = (pc&0xf0000000)|(jumpTarget << 2);
             emitInstruction(-1,nextInsn,-1);
             link(pc);
-            branch(pc, target);
+            if(directCalls && regAlloc && (target&methodMask) != (pc&methodMask) && target >= textBase && target < textBase + textWords.length*4)
+                directCall(pc, target);
+            else
+                branch(pc, target);
             ret |= UNREACHABLE;
             break;
         }
@@ -1742,7 +2160,7 @@ public class ClassFileCompiler extends Compiler implements CGConst  {
             "f24","f25","f26","f27","f28","f29","f30","f31",
             "hi","lo","fcsr"
     };
-    private static final int MAX_LOCALS = 4; // doLocal can return true for this many regs
+    private static final int MAX_LOCALS = 4; // doLocal can return true for this many regs (without regAlloc)
     private static final int LOAD_LENGTH = 3; // number of instructions needed to load a field to a reg
     
     // Local register state info
@@ -1751,7 +2169,14 @@ public class ClassFileCompiler extends Compiler implements CGConst  {
     private int nextAvailLocal;
     private int loadsStart;
     
+    // Register allocation state (only used with regAlloc)
+    private boolean[] regAllocated = new boolean[REG_COUNT]; // kept in a local for this method
+    private boolean[] regLiveIn = new boolean[REG_COUNT]; // live at one of the method's entry points
+    private boolean[] regMayWrite = new boolean[REG_COUNT]; // possibly written somewhere in this method
+    private int allocatedCount;
+    
     private boolean doLocal(int reg) {
+        if(regAlloc) return regAllocated[reg];
         return reg == R+2 || reg == R+3 || reg == R+4 || reg == R+29;
     }
     
@@ -1767,8 +2192,15 @@ public class ClassFileCompiler extends Compiler implements CGConst  {
             regLocalWritten[i] = false;
         }
         nextAvailLocal = onePage ? 4 : 5;
+        int maxLocals = MAX_LOCALS;
+        if(regAlloc) {
+            allocateRegs();
+            // map everything up front, restoreChangedRegs() needs locals for registers we haven't seen yet
+            for(int i=0;i<REG_COUNT;i++) if(regAllocated[i]) getLocalForReg(i);
+            maxLocals = allocatedCount;
+        }
         loadsStart = mg.size();
-        for(int i=0;i<MAX_LOCALS*LOAD_LENGTH;i++)
+        for(int i=0;i<maxLocals*LOAD_LENGTH;i++)
             mg.add(NOP);
     }
     
@@ -1776,11 +2208,17 @@ public class ClassFileCompiler extends Compiler implements CGConst  {
         int p = loadsStart;
         for(int i=0;i<REG_COUNT;i++) {
             if(regLocalMapping[i] == 0) continue;
-            mg.set(p++,ALOAD_0);
-            mg.set(p++,GETFIELD,me.field(regField[i],Type.INT));
-            mg.set(p++,ISTORE,regLocalMapping[i]);
+            if(!regAlloc || regLiveIn[i]) {
+                mg.set(p++,ALOAD_0);
+                mg.set(p++,GETFIELD,me.field(regField[i],Type.INT));
+                mg.set(p++,ISTORE,regLocalMapping[i]);
+            } else {
+                // always written before it is read or stored back, but the verifier wants it initialized
+                mg.set(p++,ICONST_0);
+                mg.set(p++,ISTORE,regLocalMapping[i]);
+            }
             
-            if(regLocalWritten[i]) {
+            if(regAlloc ? regMayWrite[i] : regLocalWritten[i]) {
                 mg.add(ALOAD_0);
                 mg.add(ILOAD,regLocalMapping[i]);
                 mg.add(PUTFIELD,me.field(regField[i],Type.INT));
@@ -1790,7 +2228,7 @@ public class ClassFileCompiler extends Compiler implements CGConst  {
         
     private void restoreChangedRegs() {
         for(int i=0;i<REG_COUNT;i++) {
-            if(regLocalWritten[i]) {
+            if(regAlloc ? regLocalMapping[i] != 0 && regMayWrite[i] : regLocalWritten[i]) {
                 mg.add(ALOAD_0);
                 mg.add(ILOAD,regLocalMapping[i]);
                 mg.add(PUTFIELD,me.field(regField[i],Type.INT));
@@ -1798,6 +2236,280 @@ public class ClassFileCompiler extends Compiler implements CGConst  {
         }
     }
             
+    /** Reloads every register kept in a local from its field (after a direct call) */
+    private void reloadRegs() {
+        for(int i=0;i<REG_COUNT;i++) {
+            if(regLocalMapping[i] == 0) continue;
+            mg.add(ALOAD_0);
+            mg.add(GETFIELD,me.field(regField[i],Type.INT));
+            mg.add(ISTORE,regLocalMapping[i]);
+        }
+    }
+    
+    // Register allocation
+    /* Before a method is emitted we scan its instructions and keep every register that is used more
+       than once in a local. A backwards liveness pass over the method's instructions (treating method
+       exits and syscalls as reading every register) finds the registers that are live at one of
+       the method's entry points, only those are loaded from their fields on entry. Everything that
+       may be written in the method is stored back before syscalls and on the way out. */
+    
+    private static final int CF_NEXT = 0; // falls through to the next instruction
+    private static final int CF_BRANCH = 1; // conditional branch (after the delay slot)
+    private static final int CF_JUMP = 2; // unconditional jump (after the delay slot)
+    private static final int CF_INDIRECT = 3; // jump to a register (after the delay slot)
+    private static final int CF_SYSCALL = 4; // may leave the method, otherwise falls through
+    private static final int CF_TRAP = 5; // throws an exception
+    
+    // scratch space for insnInfo()
+    private long[] insnUse = new long[2];
+    private long[] insnMustDef = new long[2];
+    private long[] insnMayDef = new long[2];
+    
+    private static void addReg(long[] set, int reg) {
+        if(reg < 64) set[0] |= 1L << reg;
+        else set[1] |= 1L << (reg-64);
+    }
+    private static boolean hasReg(long[] set, int reg) {
+        return reg < 64 ? (set[0] & (1L << reg)) != 0 : (set[1] & (1L << (reg-64))) != 0;
+    }
+    
+    /** Fills in insnUse, insnMustDef and insnMayDef for <i>insn</i> and returns its CF_ type.
+        Uses may be overestimated and must-defs underestimated, may-defs must include every register
+        the emitted code could write. */
+    private int insnInfo(int insn) {
+        long[] use = insnUse, def = insnMustDef, may = insnMayDef;
+        use[0] = use[1] = def[0] = def[1] = may[0] = may[1] = 0;
+        
+        int op = (insn >>> 26) & 0xff;
+        int rs = (insn >>> 21) & 0x1f;
+        int rt = (insn >>> 16) & 0x1f;
+        int rd = (insn >>> 11) & 0x1f;
+        int fs = (insn >>> 11) & 0x1f;
+        int ft = (insn >>> 16) & 0x1f;
+        int fd = (insn >>> 6) & 0x1f;
+        int subcode = insn & 0x3f;
+        int cf = CF_NEXT;
+        
+        switch(op) {
+            case 0:
+                switch(subcode) {
+                    case 8: // JR
+                        addReg(use,R+rs);
+                        return CF_INDIRECT;
+                    case 9: // JALR
+                        addReg(use,R+rs);
+                        addReg(may,R+rd);
+                        return CF_INDIRECT;
+                    case 12: // SYSCALL
+                        addReg(def,R+V0);
+                        addReg(may,R+V0);
+                        return CF_SYSCALL;
+                    case 13: // BREAK
+                        return CF_TRAP;
+                    case 16: // MFHI
+                        addReg(use,HI);
+                        break;
+                    case 18: // MFLO
+                        addReg(use,LO);
+                        break;
+                    case 17: // MTHI
+                        addReg(use,R+rs);
+                        addReg(def,HI); addReg(may,HI);
+                        return CF_NEXT;
+                    case 19: // MTLO
+                        addReg(use,R+rs);
+                        addReg(def,LO); addReg(may,LO);
+                        return CF_NEXT;
+                    case 24: case 25: case 26: case 27: // MULT, MULTU, DIV, DIVU
+                        addReg(use,R+rs); addReg(use,R+rt);
+                        // DIV/DIVU leave hi/lo alone on divide by zero
+                        if(subcode < 26) { addReg(def,HI); addReg(def,LO); }
+                        addReg(may,HI); addReg(may,LO);
+                        return CF_NEXT;
+                    default:
+                        addReg(use,R+rs); addReg(use,R+rt);
+                        break;
+                }
+                addReg(def,R+rd);
+                addReg(may,R+rd);
+                break;
+            case 1:
+                addReg(use,R+rs);
+                if(rt == 16 || rt == 17) addReg(may,R+RA);
+                return CF_BRANCH;
+            case 2: // J
+                return CF_JUMP;
+            case 3: // JAL
+                addReg(may,R+RA);
+                return CF_JUMP;
+            case 4: case 5: case 6: case 7: // BEQ, BNE, BLEZ, BGTZ
+                addReg(use,R+rs); addReg(use,R+rt);
+                return CF_BRANCH;
+            case 15: // LUI
+                addReg(def,R+rt); addReg(may,R+rt);
+                break;
+            case 8: case 9: case 10: case 11: case 12: case 13: case 14: // immediate ops
+            case 32: case 33: case 35: case 36: case 37: case 48: // loads
+                addReg(use,R+rs);
+                addReg(def,R+rt); addReg(may,R+rt);
+                break;
+            case 34: case 38: // LWL, LWR
+                addReg(use,R+rs); addReg(use,R+rt);
+                addReg(def,R+rt); addReg(may,R+rt);
+                break;
+            case 40: case 41: case 42: case 43: case 46: // stores
+                addReg(use,R+rs); addReg(use,R+rt);
+                break;
+            case 56: // SC
+                addReg(use,R+rs); addReg(use,R+rt);
+                addReg(may,R+rt);
+                break;
+            case 49: // LWC1
+                addReg(use,R+rs);
+                addReg(may,F+rt);
+                break;
+            case 57: // SWC1
+                addReg(use,R+rs); addReg(use,F+rt);
+                break;
+            case 17: // FPU
+                switch(rs) {
+                    case 0: // MFC.1
+                        addReg(use,F+rd);
+                        addReg(may,R+rt);
+                        break;
+                    case 2: // CFC.1
+                        addReg(use,FCSR);
+                        addReg(may,R+rt);
+                        break;
+                    case 4: // MTC.1
+                        addReg(use,R+rt);
+                        addReg(may,F+rd);
+                        break;
+                    case 6: // CTC.1
+                        addReg(use,R+rt);
+                        addReg(may,FCSR);
+                        break;
+                    case 8: // BC1F, BC1T
+                        addReg(use,FCSR);
+                        return CF_BRANCH;
+                    default:
+                        // Single/Double/Word ops, be conservative
+                        addReg(use,F+fs); if(fs < 31) addReg(use,F+fs+1);
+                        addReg(use,F+ft); if(ft < 31) addReg(use,F+ft+1);
+                        addReg(use,F+fd); if(fd < 31) addReg(use,F+fd+1);
+                        addReg(use,FCSR);
+                        addReg(may,F+fd); if(fd < 31) addReg(may,F+fd+1);
+                        addReg(may,FCSR);
+                        break;
+                }
+                break;
+            default:
+                return CF_TRAP;
+        }
+        return cf;
+    }
+    
+    /** Decides which registers are kept in locals in the method starting at startOfMethod
+        and which of them are live on entry */
+    private void allocateRegs() {
+        for(int i=0;i<REG_COUNT;i++) regAllocated[i] = regLiveIn[i] = regMayWrite[i] = false;
+        allocatedCount = 0;
+        
+        int base = startOfMethod;
+        int first = Math.max(startOfMethod,textBase);
+        int textEnd = textBase + textWords.length*4;
+        // the delay slot of a branch at the end of the method is emitted as part of this method
+        int last = Math.min(endOfMethod+4,textEnd);
+        int n = (last - base) / 4;
+        if(n <= 0) return;
+        
+        int[] cf = new int[n];
+        int[] target = new int[n];
+        long[] useA = new long[n], useB = new long[n];
+        long[] defA = new long[n], defB = new long[n];
+        int[] counts = new int[REG_COUNT];
+        
+        for(int i=(first-base)/4;i<n;i++) {
+            int pc = base + i*4;
+            int insn = textWords[(pc-textBase)/4];
+            cf[i] = insnInfo(insn);
+            useA[i] = insnUse[0]; useB[i] = insnUse[1];
+            defA[i] = insnMustDef[0]; defB[i] = insnMustDef[1];
+            
+            int op = (insn >>> 26) & 0xff;
+            if(op == 2 || op == 3) target[i] = (pc&0xf0000000) | ((insn & 0x03ffffff) << 2);
+            else target[i] = pc + ((insn << 16) >> 16)*4 + 4;
+            
+            for(int r=1;r<REG_COUNT;r++) {
+                boolean used = hasReg(insnUse,r), written = hasReg(insnMayDef,r);
+                if(used || written) counts[r]++;
+                if(written && pc < endOfMethod) regMayWrite[r] = true;
+            }
+        }
+        
+        for(int r=1;r<REG_COUNT;r++) {
+            if(counts[r] < 2) continue;
+            if(singleFloat && r >= F && r < F+32) continue;
+            regAllocated[r] = true;
+            allocatedCount++;
+        }
+        // the delay slot past the end of the method is emitted here too
+        if(last > endOfMethod) {
+            insnInfo(textWords[(endOfMethod-textBase)/4]);
+            for(int r=1;r<REG_COUNT;r++) if(hasReg(insnMayDef,r)) regMayWrite[r] = true;
+        }
+        
+        // backwards liveness (exits use everything)
+        long[] liveA = new long[n], liveB = new long[n];
+        boolean changed = true;
+        while(changed) {
+            changed = false;
+            for(int i=n-1;i>=(first-base)/4;i--) {
+                long outA = 0, outB = 0;
+                boolean prevIsJump = i > 0 && cf[i-1] >= CF_BRANCH && cf[i-1] <= CF_INDIRECT && base+(i-1)*4 >= first;
+                if(cf[i] == CF_TRAP) {
+                    // fatal, nothing is written back
+                } else if(prevIsJump) {
+                    // delay slot
+                    int k = cf[i-1];
+                    if(k == CF_INDIRECT) {
+                        outA = outB = -1L;
+                    } else {
+                        int t = target[i-1];
+                        if(t >= first && t < endOfMethod && (t&3) == 0) { outA |= liveA[(t-base)/4]; outB |= liveB[(t-base)/4]; }
+                        else { outA = outB = -1L; }
+                        if(k == CF_BRANCH) {
+                            if(i+1 < n && base+(i+1)*4 < endOfMethod) { outA |= liveA[i+1]; outB |= liveB[i+1]; }
+                            else { outA = outB = -1L; }
+                        }
+                    }
+                } else if(cf[i] >= CF_BRANCH && cf[i] <= CF_INDIRECT) {
+                    // the delay slot always follows
+                    if(i+1 < n) { outA = liveA[i+1]; outB = liveB[i+1]; }
+                    else { outA = outB = -1L; }
+                } else {
+                    if(cf[i] == CF_SYSCALL || i+1 >= n || base+(i+1)*4 >= endOfMethod) { outA = outB = -1L; }
+                    else { outA = liveA[i+1]; outB = liveB[i+1]; }
+                }
+                long inA = useA[i] | (outA & ~defA[i]);
+                long inB = useB[i] | (outB & ~defB[i]);
+                if(inA != liveA[i] || inB != liveB[i]) {
+                    liveA[i] = inA; liveB[i] = inB;
+                    changed = true;
+                }
+            }
+        }
+        
+        long entryA = 0, entryB = 0;
+        for(int addr=first;addr<endOfMethod && addr<textEnd;addr+=4) {
+            if(!jumpable(addr)) continue;
+            entryA |= liveA[(addr-base)/4];
+            entryB |= liveB[(addr-base)/4];
+        }
+        long[] entry = new long[]{entryA,entryB};
+        for(int r=1;r<REG_COUNT;r++) regLiveIn[r] = regAllocated[r] && hasReg(entry,r);
+    }
+    
     private int pushRegWZ(int reg) {
         if(reg == R+0) {
             warn.println("Warning: Pushing r0!");
@@ -1968,7 +2680,7 @@ public class ClassFileCompiler extends Compiler implements CGConst  {
             mg.add(ALOAD_0);
             mg.add(SWAP);
             // GCCLASS_HINT: org.ibex.nestedvm.RuntimeCompiler.compile org.ibex.nestedvm.Runtime.nullPointerCheck
-            mg.add(INVOKEVIRTUAL,me.method("nullPointerCheck",Type.VOID,new Type[]{Type.INT}));
+            runtimeMethod("nullPointerCheck",Type.VOID,new Type[]{Type.INT});
         }
         
         if(onePage) {
@@ -1980,6 +2692,7 @@ public class ClassFileCompiler extends Compiler implements CGConst  {
             mg.add(LDC,pageShift);
             mg.add(IUSHR);
             mg.add(AALOAD);
+            writeFaultCheck(addrInTmp);
             if(addrInTmp)
                 pushTmp();
             else
@@ -1991,6 +2704,39 @@ public class ClassFileCompiler extends Compiler implements CGConst  {
         }
     }
     
+    // expects the writePages (or writeBuffers) entry on top of the stack (with the address under it unless it is in tmp)
+    // and replaces it with copyOnWrite(addr) if it is null. A page that really is read-only is still null afterwards.
+    private void writeFaultCheck(boolean addrInTmp) {
+        if(offHeap) faultCheck(addrInTmp,"writeBufferFault",Type.Class.instance("java.nio.IntBuffer"));
+        else faultCheck(addrInTmp,"copyOnWrite",Type.INT.makeArray());
+    }
+    
+    // same thing for readPages (or readBuffers) entries and readFault(addr), which fills in untouched mmap()ed pages
+    private void readFaultCheck(boolean addrInTmp) {
+        if(offHeap) faultCheck(addrInTmp,"readBufferFault",Type.Class.instance("java.nio.IntBuffer"));
+        else faultCheck(addrInTmp,"readFault",Type.INT.makeArray());
+    }
+    
+    private void faultCheck(boolean addrInTmp, String method, Type page) {
+        mg.add(DUP);
+        int b1 = mg.add(IFNONNULL);
+        mg.add(POP);
+        if(addrInTmp) {
+            mg.add(ALOAD_0);
+            pushTmp();
+        } else {
+            mg.add(DUP);
+            mg.add(ALOAD_0);
+            mg.add(SWAP);
+        }
+        // GCCLASS_HINT: org.ibex.nestedvm.RuntimeCompiler.compile org.ibex.nestedvm.Runtime.copyOnWrite
+        // GCCLASS_HINT: org.ibex.nestedvm.RuntimeCompiler.compile org.ibex.nestedvm.Runtime.readFault
+        // GCCLASS_HINT: org.ibex.nestedvm.RuntimeCompiler.compile org.ibex.nestedvm.Runtime.readBufferFault
+        // GCCLASS_HINT: org.ibex.nestedvm.RuntimeCompiler.compile org.ibex.nestedvm.Runtime.writeBufferFault
+        runtimeMethod(method,page,new Type[]{Type.INT});
+        mg.setArg(b1,mg.size());
+    }
+    
     // pops an address and value off the stack, sets *addr to value
     private void memWrite() {
         if(memWriteStage!=2) throw new Error("didn't do preMemWrite1 or preMemWrite2");
@@ -1998,11 +2744,14 @@ public class ClassFileCompiler extends Compiler implements CGConst  {
                 
         if(onePage) {
             mg.add(IASTORE);
+        } else if(fastMem && offHeap) {
+            mg.add(INVOKEVIRTUAL,Type.Class.instance("java.nio.IntBuffer").method("put",Type.Class.instance("java.nio.IntBuffer"),new Type[]{Type.INT,Type.INT}));
+            mg.add(POP);
         } else if(fastMem) {
             mg.add(IASTORE);
         } else {
             // GCCLASS_HINT: org.ibex.nestedvm.RuntimeCompiler.compile org.ibex.nestedvm.Runtime.unsafeMemWrite
-            mg.add(INVOKEVIRTUAL,me.method("unsafeMemWrite",Type.VOID,new Type[]{Type.INT,Type.INT}));
+            runtimeMethod("unsafeMemWrite",Type.VOID,new Type[]{Type.INT,Type.INT});
         }
         
     }
@@ -2043,7 +2792,7 @@ public class ClassFileCompiler extends Compiler implements CGConst  {
             mg.add(DUP);
             mg.add(ALOAD_0);
             mg.add(SWAP);
-            mg.add(INVOKEVIRTUAL,me.method("nullPointerCheck",Type.VOID,new Type[]{Type.INT}));
+            runtimeMethod("nullPointerCheck",Type.VOID,new Type[]{Type.INT});
         }
         
         if(onePage) {
@@ -2058,6 +2807,10 @@ public class ClassFileCompiler extends Compiler implements CGConst  {
             mg.add(LDC,pageShift);
             mg.add(IUSHR);
             mg.add(AALOAD);
+            if(preMemReadDoPreWrite)
+                writeFaultCheck(addrInTmp);
+            else
+                readFaultCheck(addrInTmp);
             if(addrInTmp)
                 pushTmp();
             else
@@ -2068,13 +2821,16 @@ public class ClassFileCompiler extends Compiler implements CGConst  {
             mg.add(IAND);
             if(preMemReadDoPreWrite)
                 mg.add(DUP2);
-            mg.add(IALOAD);
+            if(offHeap)
+                mg.add(INVOKEVIRTUAL,Type.Class.instance("java.nio.IntBuffer").method("get",Type.INT,new Type[]{Type.INT}));
+            else
+                mg.add(IALOAD);
             
         } else {
             if(preMemReadDoPreWrite)
                 mg.add(DUP2);
             // GCCLASS_HINT: org.ibex.nestedvm.RuntimeCompiler.compile org.ibex.nestedvm.Runtime.unsafeMemRead
-            mg.add(INVOKEVIRTUAL,me.method("unsafeMemRead",Type.INT,new Type[]{Type.INT}));
+            runtimeMethod("unsafeMemRead",Type.INT,new Type[]{Type.INT});
         }
     }
     
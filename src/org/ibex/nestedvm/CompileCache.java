@@ -0,0 +1,259 @@
+// Copyright 2000-2005 the Contributors, as shown in the revision logs.
+// Licensed under the Apache Public Source License 2.0 ("the License").
+// You may not use this file except in compliance with the License.
+
+package org.ibex.nestedvm;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.security.*;
+import java.util.zip.CRC32;
+
+import org.ibex.nestedvm.util.*;
+
+/** A directory of class files produced by the RuntimeCompiler, keyed by a hash of the binary's contents,
+    the compiler options and the compiler itself. exec() looks binaries up here before compiling them
+    so a new JVM doesn't have to compile the same binaries all over again.
+
+    Several JVMs can share a directory. Entries are written to a temporary file and renamed into place so
+    nobody ever sees half an entry, every entry carries a checksum and broken ones are dropped. Hits bump
+    the file's modification time, when the directory grows past its size limit the entries that were used
+    least recently are deleted (under a lock file, so only one JVM trims at a time).
+
+    <pre>
+    UnixRuntime.GlobalState gs = new UnixRuntime.GlobalState();
+    gs.setCompileCache(new CompileCache(new File("/var/cache/nestedvm"),512*1024*1024));
+    </pre>
+    The default GlobalState uses the nestedvm.compilecache system property (a directory) and
+    nestedvm.compilecache.size (bytes, 256MB by default). */
+public class CompileCache {
+    private static final int MAGIC = 0x4e564d43; // NVMC
+    private static final int VERSION = 1;
+    private static final String SUFFIX = ".nvmc";
+
+    private final File dir;
+    private final long maxSize;
+
+    // statistics
+    private long hits;
+    private long misses;
+    private long stores;
+    private long evictions;
+
+    /** Creates a cache in <i>dir</i> (created if needed) that is trimmed to <i>maxSize</i> bytes */
+    public CompileCache(File dir, long maxSize) throws IOException {
+        if(maxSize <= 0) throw new IllegalArgumentException("maxSize <= 0");
+        if(!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) throw new IOException("couldn't create " + dir);
+        this.dir = dir;
+        this.maxSize = maxSize;
+    }
+
+    /** Returns the cache named by the nestedvm.compilecache system property, or null if it isn't set or unusable */
+    static CompileCache fromProperties() {
+        String path = Platform.getProperty("nestedvm.compilecache");
+        if(path == null) return null;
+        long size = 256L*1024*1024;
+        String prop = Platform.getProperty("nestedvm.compilecache.size");
+        if(prop != null) try { size = Long.parseLong(prop); } catch(NumberFormatException e) { }
+        try {
+            return new CompileCache(new File(path),size);
+        } catch(IOException e) {
+            if(Runtime.STDERR_DIAG) System.err.println("WARNING: Couldn't use compile cache " + path + ": " + e.getMessage());
+            return null;
+        } catch(IllegalArgumentException e) {
+            if(Runtime.STDERR_DIAG) System.err.println("WARNING: Couldn't use compile cache " + path + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    public File getDirectory() { return dir; }
+    public long getMaxSize() { return maxSize; }
+
+    /** Returns the key for <i>image</i> compiled with <i>options</i> by a compiler identified by <i>compiler</i> */
+    public static String key(byte[] image, String options, String compiler) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-1");
+        } catch(NoSuchAlgorithmException e) {
+            throw new Error("no SHA-1");
+        }
+        md.update(utf8(compiler));
+        md.update((byte) 0);
+        md.update(utf8(options == null ? "" : options));
+        md.update((byte) 0);
+        md.update(image);
+        return hex(md.digest());
+    }
+
+    /** Returns the class file stored under <i>key</i>, or null if there is none */
+    public byte[] get(String key) {
+        File f = file(key);
+        byte[] b = null;
+        try {
+            DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+            try {
+                if(dis.readInt() == MAGIC && dis.readInt() == VERSION) {
+                    int len = dis.readInt();
+                    long crc = dis.readLong();
+                    if(len >= 0 && len <= f.length()) {
+                        b = new byte[len];
+                        dis.readFully(b);
+                        if(crc(b) != crc) b = null;
+                    }
+                }
+            } finally {
+                dis.close();
+            }
+            if(b == null) {
+                if(Runtime.STDERR_DIAG) System.err.println("WARNING: Dropping broken compile cache entry " + f);
+                f.delete();
+            }
+        } catch(FileNotFoundException e) {
+            /* not cached */
+        } catch(IOException e) {
+            // truncated (or deleted on a platform that lets us), either way it is useless
+            if(Runtime.STDERR_DIAG) System.err.println("WARNING: Couldn't read compile cache entry " + f + ": " + e);
+            f.delete();
+            b = null;
+        }
+        synchronized(this) {
+            if(b == null) misses++;
+            else hits++;
+        }
+        // this is what makes eviction least recently used
+        if(b != null) f.setLastModified(System.currentTimeMillis());
+        return b;
+    }
+
+    /** Stores <i>classFile</i> under <i>key</i> and trims the cache if it got too big. Failures are
+        only reported (with STDERR_DIAG), the cache is just an optimization. */
+    public void put(String key, byte[] classFile) {
+        File tmp = null;
+        try {
+            tmp = File.createTempFile("tmp",".part",dir);
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                dos.writeInt(MAGIC);
+                dos.writeInt(VERSION);
+                dos.writeInt(classFile.length);
+                dos.writeLong(crc(classFile));
+                dos.write(classFile);
+            } finally {
+                dos.close();
+            }
+            File f = file(key);
+            // another JVM might have stored the same entry in the meantime, any copy will do
+            if(!tmp.renameTo(f) && !f.exists()) throw new IOException("couldn't rename " + tmp + " to " + f);
+            tmp.delete();
+            tmp = null;
+            synchronized(this) { stores++; }
+            trim();
+        } catch(IOException e) {
+            if(Runtime.STDERR_DIAG) System.err.println("WARNING: Couldn't store compile cache entry " + key + ": " + e);
+        } finally {
+            if(tmp != null) tmp.delete();
+        }
+    }
+
+    /** Held while trimming. File locks are per JVM, a second lock() from another thread (or another instance
+        on the same directory) would throw OverlappingFileLockException instead of waiting. */
+    private static final Object trimLock = new Object();
+
+    /** Deletes the least recently used entries until the cache is no bigger than its size limit */
+    public void trim() throws IOException {
+        synchronized(trimLock) {
+            RandomAccessFile lockFile = new RandomAccessFile(new File(dir,".lock"),"rw");
+            try {
+                FileLock lock;
+                try {
+                    lock = lockFile.getChannel().lock();
+                } catch(OverlappingFileLockException e) {
+                    // somebody outside this class holds it, they're trimming already
+                    return;
+                }
+                try {
+                    File[] files = dir.listFiles();
+                    if(files == null) return;
+                    int n = 0;
+                    long total = 0;
+                    long now = System.currentTimeMillis();
+                    for(int i=0;i<files.length;i++) {
+                        String name = files[i].getName();
+                        // left behind by a JVM that died while storing an entry
+                        if(name.endsWith(".part") && now - files[i].lastModified() > 60*60*1000) files[i].delete();
+                        if(!name.endsWith(SUFFIX)) continue;
+                        files[n++] = files[i];
+                        total += files[i].length();
+                    }
+                    if(total <= maxSize) return;
+
+                    final long[] used = new long[n];
+                    final File[] entries = new File[n];
+                    Integer[] order = new Integer[n];
+                    for(int i=0;i<n;i++) {
+                        entries[i] = files[i];
+                        used[i] = files[i].lastModified();
+                        order[i] = new Integer(i);
+                    }
+                    Sort.sort(order,new Sort.CompareFunc() {
+                        public int compare(Object a, Object b) {
+                            long x = used[((Integer) a).intValue()], y = used[((Integer) b).intValue()];
+                            return x < y ? -1 : x > y ? 1 : 0;
+                        }
+                    });
+                    for(int i=0;i<n && total > maxSize;i++) {
+                        File f = entries[order[i].intValue()];
+                        long len = f.length();
+                        if(f.delete()) {
+                            total -= len;
+                            synchronized(this) { evictions++; }
+                        }
+                    }
+                } finally {
+                    lock.release();
+                }
+            } finally {
+                lockFile.close();
+            }
+        }
+    }
+
+    /** Number of lookups that found an entry */
+    public synchronized long hits() { return hits; }
+    /** Number of lookups that didn't */
+    public synchronized long misses() { return misses; }
+    /** Number of entries this instance wrote */
+    public synchronized long stores() { return stores; }
+    /** Number of entries this instance deleted to stay under the size limit */
+    public synchronized long evictions() { return evictions; }
+
+    public synchronized String toString() {
+        return "CompileCache[" + dir + " max=" + maxSize + " hits=" + hits + " misses=" + misses +
+            " stores=" + stores + " evictions=" + evictions + "]";
+    }
+
+    private File file(String key) { return new File(dir,key + SUFFIX); }
+
+    private static long crc(byte[] b) {
+        CRC32 crc = new CRC32();
+        crc.update(b);
+        return crc.getValue();
+    }
+
+    private static byte[] utf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch(UnsupportedEncodingException e) {
+            throw new Error("no UTF-8");
+        }
+    }
+
+    private static String hex(byte[] b) {
+        StringBuffer sb = new StringBuffer(b.length*2);
+        for(int i=0;i<b.length;i++) {
+            sb.append(Character.forDigit((b[i]>>>4)&0xf,16));
+            sb.append(Character.forDigit(b[i]&0xf,16));
+        }
+        return sb.toString();
+    }
+}
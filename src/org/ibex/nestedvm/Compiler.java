@@ -34,6 +34,19 @@ public abstract class Compiler implements Registers {
     // methods. 
     int maxInsnPerMethod = 128;
     
+    // Maximum number of run_XXXX methods in one class (ClassFileCompiler only). If the text needs more than this
+    // the methods are spread across several classes so no single constant pool fills up. 0 means no limit.
+    int methodsPerClass = 0;
+    
+    // Put the run_XXXX methods of every function in a class of its own (ClassFileCompiler only). The JVM loads and
+    // verifies a class the first time the trampoline dispatches into it, so code that never runs costs next to nothing
+    // at startup. methodsPerClass still caps the size of a class.
+    boolean lazyClasses = false;
+    
+    // Number of threads emitting methods (ClassFileCompiler only), 0 means one per processor.
+    // The output is the same no matter how many there are.
+    int threads = 0;
+    
     // non-configurable
     int maxBytesPerMethod;
     int methodMask;
@@ -48,6 +61,12 @@ public abstract class Compiler implements Registers {
     // True to try to determine which case statement are needed and only include them
     boolean pruneCases = true;
     
+    // True to leave out the functions nothing can reach (see CallGraph), needs pruneCases
+    boolean pruneFunctions = false;
+    
+    // True to simplify the MIPS code before translating it (see TextOptimizer), needs pruneCases
+    boolean optimizeText = false;
+    
     boolean assumeTailCalls = true;
     
     // True to insert some code in the output to help diagnore compiler problems
@@ -72,6 +91,15 @@ public abstract class Compiler implements Registers {
     boolean lessConstants;
     
     boolean singleFloat;
+    
+    // True to keep every register used more than once in a method in a local variable (ClassFileCompiler only)
+    boolean regAlloc = true;
+    
+    // True to call statically known JAL targets directly rather than returning to the trampoline (ClassFileCompiler only, needs regAlloc)
+    boolean directCalls;
+    
+    // True to keep memory in off-heap pages (see OffHeapMemory) instead of int arrays on the Java heap
+    boolean offHeap;
             
     int pageSize = 4096;
     int totalPages = 65536;
@@ -87,6 +115,21 @@ public abstract class Compiler implements Registers {
     /** A set of all addresses that can be jumped too (only available if pruneCases == true) */
     Hashtable jumpableAddresses;
     
+    /** The reachable functions (only available if pruneFunctions == true) */
+    CallGraph callGraph;
+    
+    /** True if <i>addr</i> is in a function pruneFunctions leaves out */
+    final boolean dead(int addr) { return callGraph != null && callGraph.dead(addr); }
+    
+    /** Runs the TextOptimizer over <i>words</i> (the text segment starting at <i>base</i>) if optimizeText is
+        set. The compilers call this before they translate the text. */
+    final void optimizeText(int base, int[] words) {
+        if(!optimizeText) return;
+        TextOptimizer o = new TextOptimizer(base,words,jumpableAddresses);
+        o.run();
+        if(printStats) System.err.println(o);
+    }
+    
     /** Some important symbols */
     ELF.Symbol userInfo, gp;
     
@@ -209,7 +252,12 @@ public abstract class Compiler implements Registers {
         if(onePage && pageSize <= 4096) pageSize = 4*1024*1024;
         if(nullPointerCheck && !fastMem) throw new Exn("fastMem must be enabled for nullPointerCheck to be of any use");
         if(onePage && !fastMem) throw new Exn("fastMem must be enabled for onePage to be of any use");
+        if(onePage && offHeap) throw new Exn("onePage can't be used with offHeap");
         if(totalPages == 1 && !onePage) throw new Exn("totalPages == 1 and onePage is not set");
+        if(methodsPerClass < 0) throw new Exn("methodsPerClass < 0");
+        if(threads < 0) throw new Exn("threads < 0");
+        if(pruneFunctions && !pruneCases) throw new Exn("pruneFunctions needs pruneCases");
+        if(optimizeText && !pruneCases) throw new Exn("optimizeText needs pruneCases");
         if(onePage) totalPages = 1;
 
         maxInsnPerMethodInit();
@@ -245,6 +293,19 @@ public abstract class Compiler implements Registers {
             }
             
             findBranchesInText(text.addr,new DataInputStream(text.getInputStream()),text.size,jumpableAddresses);            
+            
+            if(pruneFunctions) {
+                callGraph = new CallGraph(elf,supportCall);
+                // nothing can get to these anymore
+                Vector v = new Vector();
+                for(Enumeration e = jumpableAddresses.keys();e.hasMoreElements();) {
+                    Integer a = (Integer) e.nextElement();
+                    if(dead(a.intValue())) v.addElement(a);
+                }
+                for(int i=0;i<v.size();i++) jumpableAddresses.remove(v.elementAt(i));
+                if(printStats) System.err.println("Leaving out " + callGraph.deadFunctions() + " of " + callGraph.functions() +
+                    " functions (" + callGraph.deadBytes() + " of " + text.size + " bytes of text)");
+            }
         }
 
         if(unixRuntime && runtimeClass.startsWith("org.ibex.nestedvm.")) runtimeClass = "org.ibex.nestedvm.UnixRuntime";
@@ -425,7 +486,12 @@ public abstract class Compiler implements Registers {
         "fastMem",          "Enable fast memory access - RuntimeExceptions will be thrown on faults",
         "nullPointerCheck", "Enables checking at runtime for null pointer accessses (slows things down a bit, only applicable with fastMem)",
         "maxInsnPerMethod", "Maximum number of MIPS instructions per java method (128 is optimal with Hotspot)",
+        "methodsPerClass",  "Maximum number of java methods per class, larger binaries are split across several classes (ClassFileCompiler only, 0 for no limit)",
+        "lazyClasses",      "Put every function in a class of its own that is only loaded when it is first called (ClassFileCompiler only)",
+        "threads",          "Number of threads to generate code with (ClassFileCompiler only, 0 for one per processor)",
         "pruneCases",       "Remove unnecessary case 0xAABCCDD blocks from methods - may break some weird code",
+        "optimizeText",     "Constant and copy propagation, address folding and dead register write elimination on the MIPS code before translating it",
+        "pruneFunctions",   "Leave out functions that can't be reached from the entry point, exported symbols or function pointers - may break code that computes function addresses in odd ways",
         "assumeTailCalls",  "Assume the JIT optimizes tail calls",
         "optimizedMemcpy",  "Use an optimized java version of memcpy where possible",
         "debugCompiler",    "Output information in the generated code for debugging the compiler - will slow down generated code significantly",
@@ -439,7 +505,10 @@ public abstract class Compiler implements Registers {
         "totalPages",       "Total number of pages (total mem = pageSize*totalPages, must be a power of two)",
         "onePage",          "One page hack (FIXME: document this better)",
         "lessConstants",    "Use less constants at the cost of speed (FIXME: document this better)",
-        "singleFloat",      "Support single precision (32-bit) FP ops only"
+        "singleFloat",      "Support single precision (32-bit) FP ops only",
+        "regAlloc",         "Keep frequently used registers in local variables (ClassFileCompiler only)",
+        "directCalls",      "Call the method containing a JAL target directly instead of going through the trampoline (ClassFileCompiler only, requires regAlloc)",
+        "offHeap",          "Keep memory off the Java heap in pages from OffHeapMemory.getDefault()"
     };
         
     private Option getOption(String name) {
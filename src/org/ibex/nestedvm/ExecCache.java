@@ -0,0 +1,207 @@
+// Copyright 2000-2005 the Contributors, as shown in the revision logs.
+// Licensed under the Apache Public Source License 2.0 ("the License").
+// You may not use this file except in compliance with the License.
+
+package org.ibex.nestedvm;
+
+import java.util.*;
+
+/** What exec() knows about the binaries it has run: the compiled Class of an ELF binary or the
+    interpreter line of a #! script, keyed by path and checked against the file's mtime and size.
+    The cache holds at most maxSize entries and drops the least recently used ones beyond that, so
+    the classes (and class loaders) of binaries that aren't run anymore can be unloaded.
+
+    When several processes exec() the same binary at once only the first one compiles it, the others
+    wait for it and use its result. With tiered execution the first exec() hands its claim over to the
+    background compile (see handOver()), the others share that compile and interpret until it is done.
+
+    Every GlobalState has one, see UnixRuntime.GlobalState.getExecCache(). The default size comes from the
+    nestedvm.execcache system property (64 entries if it isn't set). */
+public class ExecCache {
+    private static final class Entry {
+        final String path;
+        final long mtime;
+        final long size;
+        final Object o;
+        Entry prev, next;
+        Entry(String path, long mtime, long size, Object o) { this.path = path; this.mtime = mtime; this.size = size; this.o = o; }
+    }
+
+    private final Hashtable entries = new Hashtable();
+    // head.next is the most recently used entry, head.prev the least recently used one
+    private final Entry head = new Entry(null,0,0,null);
+    // paths somebody is compiling right now -> the thread doing it or a Pending background compile
+    private final Hashtable inFlight = new Hashtable();
+    
+    private static final class Pending {
+        final long mtime;
+        final long size;
+        final Object owner;
+        Pending(long mtime, long size, Object owner) { this.mtime = mtime; this.size = size; this.owner = owner; }
+    }
+    private int maxSize;
+
+    // statistics
+    private long hits;
+    private long misses;
+    private long waits;
+    private long evictions;
+    private long compiles;
+    private long compileFailures;
+    private long compileTime;
+
+    static int defaultSize() {
+        int n = 64;
+        String prop = org.ibex.nestedvm.util.Platform.getProperty("nestedvm.execcache");
+        if(prop != null) try { n = Integer.parseInt(prop); } catch(NumberFormatException e) { }
+        return Math.max(n,1);
+    }
+
+    public ExecCache(int maxSize) {
+        if(maxSize <= 0) throw new IllegalArgumentException("maxSize <= 0");
+        this.maxSize = maxSize;
+        head.prev = head.next = head;
+    }
+
+    /** Returns the Class or String[] cached for <i>path</i> if it is still current. If another thread is
+        compiling <i>path</i> this waits for it to finish first, if a background compile of the same version of
+        <i>path</i> owns it (see handOver()) its owner object is returned. Otherwise it returns null and the caller
+        is now the one working on <i>path</i>. It has to call put(), release() or handOver() when it is done. */
+    synchronized Object claim(String path, long mtime, long size) {
+        boolean waited = false;
+        for(;;) {
+            Entry e = (Entry) entries.get(path);
+            if(e != null) {
+                if(e.mtime == mtime && e.size == size) {
+                    unlink(e);
+                    link(e);
+                    hits++;
+                    return e.o;
+                }
+                // out of date
+                entries.remove(path);
+                unlink(e);
+            }
+            Object owner = inFlight.get(path);
+            if(owner instanceof Pending) {
+                Pending p = (Pending) owner;
+                if(p.mtime == mtime && p.size == size) {
+                    hits++;
+                    return p.owner;
+                }
+                // compiling an older version, its result won't be used for this one
+                inFlight.remove(path);
+                owner = null;
+            }
+            // a script that names itself as its interpreter ends up here twice on the same thread
+            if(owner == null || owner == Thread.currentThread()) {
+                inFlight.put(path,Thread.currentThread());
+                misses++;
+                return null;
+            }
+            if(!waited) {
+                waits++;
+                waited = true;
+            }
+            try { wait(); } catch(InterruptedException ex) { /* ignore */ }
+        }
+    }
+
+    /** Caches <i>o</i> (a Class or String[]) for <i>path</i> and ends the caller's claim on it, if it has one */
+    synchronized void put(String path, long mtime, long size, Object o) {
+        Entry old = (Entry) entries.get(path);
+        if(old != null) unlink(old);
+        Entry e = new Entry(path,mtime,size,o);
+        entries.put(path,e);
+        link(e);
+        trim();
+        release(path);
+    }
+
+    /** Ends the caller's claim on <i>path</i> (see claim()). Does nothing if it doesn't have one. */
+    synchronized void release(String path) { release(path,Thread.currentThread()); }
+    
+    /** Ends the claim <i>owner</i> (a thread or the owner passed to handOver()) has on <i>path</i> */
+    synchronized void release(String path, Object owner) {
+        Object o = inFlight.get(path);
+        if(o instanceof Pending) o = ((Pending) o).owner;
+        if(o != owner) return;
+        inFlight.remove(path);
+        notifyAll();
+    }
+    
+    /** Passes the caller's claim on <i>path</i> to a compile running in the background. Until it calls put()
+        and release(path,owner) claim() returns <i>owner</i> to anyone exec()ing the same version of <i>path</i>. */
+    synchronized void handOver(String path, long mtime, long size, Object owner) {
+        if(inFlight.get(path) != Thread.currentThread()) throw new IllegalStateException("handOver() without a claim on " + path);
+        inFlight.put(path,new Pending(mtime,size,owner));
+        notifyAll();
+    }
+
+    /** Records a RuntimeCompiler run that took <i>millis</i> milliseconds */
+    synchronized void compiled(long millis, boolean ok) {
+        compiles++;
+        if(!ok) compileFailures++;
+        compileTime += millis;
+    }
+
+    /** Changes the number of entries the cache holds on to, dropping entries if needed */
+    public synchronized void setMaxSize(int maxSize) {
+        if(maxSize <= 0) throw new IllegalArgumentException("maxSize <= 0");
+        this.maxSize = maxSize;
+        trim();
+    }
+
+    /** Drops all entries */
+    public synchronized void clear() {
+        entries.clear();
+        head.prev = head.next = head;
+    }
+
+    private void trim() {
+        while(entries.size() > maxSize) {
+            Entry e = head.prev;
+            unlink(e);
+            entries.remove(e.path);
+            evictions++;
+        }
+    }
+
+    private void link(Entry e) {
+        e.prev = head;
+        e.next = head.next;
+        head.next.prev = e;
+        head.next = e;
+    }
+
+    private void unlink(Entry e) {
+        e.prev.next = e.next;
+        e.next.prev = e.prev;
+        e.prev = e.next = null;
+    }
+
+    public synchronized int maxSize() { return maxSize; }
+    /** Number of binaries and scripts currently cached */
+    public synchronized int size() { return entries.size(); }
+    /** Number of exec()s that found an up to date entry (including ones that waited for another exec()'s compile
+        or shared a background compile) */
+    public synchronized long hits() { return hits; }
+    /** Number of exec()s that had to look at the file themselves */
+    public synchronized long misses() { return misses; }
+    /** Number of exec()s that waited for another exec() of the same binary to finish compiling */
+    public synchronized long waits() { return waits; }
+    /** Number of entries dropped to stay within maxSize */
+    public synchronized long evictions() { return evictions; }
+    /** Number of RuntimeCompiler runs (including ones answered by a CompileCache) */
+    public synchronized long compiles() { return compiles; }
+    /** Number of RuntimeCompiler runs that didn't produce a class */
+    public synchronized long compileFailures() { return compileFailures; }
+    /** Total milliseconds spent in the RuntimeCompiler */
+    public synchronized long compileTime() { return compileTime; }
+
+    public synchronized String toString() {
+        return "ExecCache[size=" + entries.size() + " max=" + maxSize + " hits=" + hits + " misses=" + misses +
+            " waits=" + waits + " evictions=" + evictions + " compiles=" + compiles + " failed=" + compileFailures +
+            " compileTime=" + compileTime + "ms]";
+    }
+}
@@ -59,22 +59,402 @@ public class Interpreter extends UnixRuntime implements Cloneable {
         Interpreter r = (Interpreter) super.clone();
         r.registers = (int[]) registers.clone();
         r.fpregs = (int[]) fpregs.clone();
+        r.decodeCache = null;
+        r.decodeHits = r.decodeMisses = 0;
         return r;
     }
     
+    // Predecoded instruction cache
+    /* Instructions on read-only pages are decoded once, a basic block at a time, into a handler index
+       and pre-split operands. Branch and jump targets are resolved to absolute addresses at decode time.
+       Anything without a fast handler is marked D_GENERIC and goes through the full decoder below.
+       A cached page is only used while readPages still points at the array it was decoded from and
+       the page is still read-only, so a page that is remapped or made writable is re-decoded (or
+       no longer cached) the next time execution enters it. */
+    private final static boolean decodeCacheEnabled;
+    static {
+        String prop = Platform.getProperty("nestedvm.interpreter.decodecache");
+        decodeCacheEnabled = prop == null || Boolean.valueOf(prop).booleanValue();
+    }
+    
+    private static final class DecodedPage {
+        final int[] src;
+        // handler (bits 0-7) | rs (8-12) | rt (13-17) | rd (18-22) | shamt (23-27), 0 if not decoded yet
+        final int[] ops;
+        // immediate operand, with branch and jump targets already resolved
+        final int[] imms;
+        DecodedPage(int[] src) { this.src = src; ops = new int[src.length]; imms = new int[src.length]; }
+    }
+    
+    private DecodedPage[] decodeCache;
+    private long decodeHits;
+    private long decodeMisses;
+    
+    /** Returns the number of instructions executed from the predecoded instruction cache */
+    public final long decodeCacheHits() { return decodeHits; }
+    /** Returns the number of instructions that had to be decoded into the predecoded instruction cache */
+    public final long decodeCacheMisses() { return decodeMisses; }
+    /** Returns the fraction of executed instructions found already decoded (0.0 if nothing ran from the cache) */
+    public final double decodeCacheHitRate() {
+        long total = decodeHits + decodeMisses;
+        return total == 0 ? 0.0 : (double)decodeHits / total;
+    }
+    /** Drops all predecoded instructions. Only needed if read-only pages are modified behind the Runtime's back */
+    public final void flushDecodeCache() { decodeCache = null; }
+    
+    private static final int D_GENERIC = 1;
+    private static final int D_NOP = 2;
+    private static final int D_SLL = 3;
+    private static final int D_SRL = 4;
+    private static final int D_SRA = 5;
+    private static final int D_SLLV = 6;
+    private static final int D_SRLV = 7;
+    private static final int D_SRAV = 8;
+    private static final int D_JR = 9;
+    private static final int D_JALR = 10;
+    private static final int D_MFHI = 11;
+    private static final int D_MTHI = 12;
+    private static final int D_MFLO = 13;
+    private static final int D_MTLO = 14;
+    private static final int D_MULT = 15;
+    private static final int D_MULTU = 16;
+    private static final int D_ADDU = 17;
+    private static final int D_SUBU = 18;
+    private static final int D_AND = 19;
+    private static final int D_OR = 20;
+    private static final int D_XOR = 21;
+    private static final int D_NOR = 22;
+    private static final int D_SLT = 23;
+    private static final int D_SLTU = 24;
+    private static final int D_BLTZ = 25;
+    private static final int D_BGEZ = 26;
+    private static final int D_J = 27;
+    private static final int D_JAL = 28;
+    private static final int D_BEQ = 29;
+    private static final int D_BNE = 30;
+    private static final int D_BLEZ = 31;
+    private static final int D_BGTZ = 32;
+    private static final int D_ADDIU = 33;
+    private static final int D_SLTI = 34;
+    private static final int D_SLTIU = 35;
+    private static final int D_ANDI = 36;
+    private static final int D_ORI = 37;
+    private static final int D_XORI = 38;
+    private static final int D_LUI = 39;
+    private static final int D_LB = 40;
+    private static final int D_LBU = 41;
+    private static final int D_LW = 42;
+    private static final int D_SB = 43;
+    private static final int D_SW = 44;
+    
+    /** Returns true if <i>insn</i> is a branch or jump (and is therefore followed by a delay slot) */
+    private static boolean endsBlock(int insn) {
+        int op = (insn >>> 26) & 0x3f;
+        int rs = (insn >>> 21) & 0x1f;
+        int subcode = insn & 0x3f;
+        switch(op) {
+            case 0: return subcode == 8 || subcode == 9;
+            case 1: case 2: case 3: case 4: case 5: case 6: case 7: return true;
+            case 17: return rs == 8;
+            case 20: case 21: case 22: case 23: return true;
+            default: return false;
+        }
+    }
+    
+    /** Decodes the instruction <i>insn</i> found at <i>pc</i> into <i>dp</i> at <i>index</i> */
+    private static void decodeInsn(DecodedPage dp, int index, int insn, int pc) {
+        int op = (insn >>> 26) & 0xff;
+        int rs = (insn >>> 21) & 0x1f;
+        int rt = (insn >>> 16) & 0x1f;
+        int rd = (insn >>> 11) & 0x1f;
+        int shamt = (insn >>> 6) & 0x1f;
+        int subcode = insn & 0x3f;
+        int signedImmediate = (insn << 16) >> 16;
+        int unsignedImmediate = insn & 0xffff;
+        int h = D_GENERIC;
+        int imm = 0;
+        
+        switch(op) {
+            case 0:
+                switch(subcode) {
+                    case 0: h = D_SLL; break;
+                    case 2: h = D_SRL; break;
+                    case 3: h = D_SRA; break;
+                    case 4: h = D_SLLV; break;
+                    case 6: h = D_SRLV; break;
+                    case 7: h = D_SRAV; break;
+                    case 8: h = D_JR; break;
+                    case 9: if(rd != 0) h = D_JALR; break;
+                    case 16: h = D_MFHI; break;
+                    case 17: h = D_MTHI; break;
+                    case 18: h = D_MFLO; break;
+                    case 19: h = D_MTLO; break;
+                    case 24: h = D_MULT; break;
+                    case 25: h = D_MULTU; break;
+                    case 33: h = D_ADDU; break;
+                    case 35: h = D_SUBU; break;
+                    case 36: h = D_AND; break;
+                    case 37: h = D_OR; break;
+                    case 38: h = D_XOR; break;
+                    case 39: h = D_NOR; break;
+                    case 42: h = D_SLT; break;
+                    case 43: h = D_SLTU; break;
+                }
+                // writes to $zero are no-ops
+                if(rd == 0 && h != D_GENERIC && h != D_JR && h != D_MTHI && h != D_MTLO && h != D_MULT && h != D_MULTU)
+                    h = D_NOP;
+                break;
+            case 1:
+                if(rt == 0) h = D_BLTZ;
+                else if(rt == 1) h = D_BGEZ;
+                imm = pc + 4 + signedImmediate*4;
+                break;
+            case 2: h = D_J; imm = (pc&0xf0000000) | ((insn & 0x03ffffff) << 2); break;
+            case 3: h = D_JAL; imm = (pc&0xf0000000) | ((insn & 0x03ffffff) << 2); break;
+            case 4: h = D_BEQ; imm = pc + 4 + signedImmediate*4; break;
+            case 5: h = D_BNE; imm = pc + 4 + signedImmediate*4; break;
+            case 6: h = D_BLEZ; imm = pc + 4 + signedImmediate*4; break;
+            case 7: h = D_BGTZ; imm = pc + 4 + signedImmediate*4; break;
+            case 8: case 9: h = rt == 0 ? D_NOP : D_ADDIU; imm = signedImmediate; break;
+            case 10: h = rt == 0 ? D_NOP : D_SLTI; imm = signedImmediate; break;
+            case 11: h = rt == 0 ? D_NOP : D_SLTIU; imm = signedImmediate; break;
+            case 12: h = rt == 0 ? D_NOP : D_ANDI; imm = unsignedImmediate; break;
+            case 13: h = rt == 0 ? D_NOP : D_ORI; imm = unsignedImmediate; break;
+            case 14: h = rt == 0 ? D_NOP : D_XORI; imm = unsignedImmediate; break;
+            case 15: h = rt == 0 ? D_NOP : D_LUI; imm = unsignedImmediate << 16; break;
+            // loads into $zero still have to fault, leave them to the generic path
+            case 32: if(rt != 0) h = D_LB; imm = signedImmediate; break;
+            case 35: if(rt != 0) h = D_LW; imm = signedImmediate; break;
+            case 36: if(rt != 0) h = D_LBU; imm = signedImmediate; break;
+            case 40: h = D_SB; imm = signedImmediate; break;
+            case 43: h = D_SW; imm = signedImmediate; break;
+        }
+        if(insn == 0) h = D_NOP;
+        dp.imms[index] = imm;
+        dp.ops[index] = h | (rs << 8) | (rt << 13) | (rd << 18) | (shamt << 23);
+    }
+    
+    /** Decodes the basic block starting at <i>pc</i> (up to the end of the page) into <i>dp</i>.
+        Returns the number of instructions decoded */
+    private int decodeBlock(DecodedPage dp, int pc) {
+        int pageWords = dp.src.length;
+        int index = (pc>>>2)&(pageWords-1);
+        int n = 0;
+        boolean last = false;
+        while(index < pageWords && dp.ops[index] == 0) {
+            int insn = dp.src[index];
+            decodeInsn(dp,index,insn,pc);
+            n++;
+            if(last) break;
+            last = endsBlock(insn);
+            index++;
+            pc += 4;
+        }
+        return n;
+    }
+    
     // Main interpretor
     // the return value is meaningless, its just to catch people typing "return" by accident
     private final int runSome() throws FaultException,ExecutionException {
         final int PAGE_WORDS = (1<<pageShift)>>2;
+        final boolean offHeap = readBuffers != null;
         int[] r = registers;
         int[] f = fpregs;
         int pc = this.pc;
         int nextPC = pc + 4;
+        
+        DecodedPage[] decodeCache = this.decodeCache;
+        if(decodeCache == null && decodeCacheEnabled) decodeCache = this.decodeCache = new DecodedPage[readPages.length];
+        DecodedPage dp = null;
+        int dpPage = -1;
+        long hits = 0, misses = 0;
+        TierState tier = this.tier;
+        int tierPC = -1, tierFrom = -1;
     try {
     OUTER: for(;;) {
+        // only hand off at the start of a basic block, the compiled code doesn't know about delay slots
+        if(pc == tierPC && nextPC == pc + 4) {
+            this.pc = pc;
+            if(tierUp(tierFrom)) break OUTER;
+            tier = this.tier;
+            tierPC = -1;
+        }
+        if(decodeCache != null) {
+            int page = pc>>>pageShift;
+            if(page != dpPage) {
+                dpPage = page;
+                dp = null;
+                if(page < readPages.length && readPages[page] != null && writePages[page] == null) {
+                    dp = decodeCache[page];
+                    if(dp == null || dp.src != readPages[page]) dp = decodeCache[page] = new DecodedPage(readPages[page]);
+                }
+            }
+            if(dp != null) {
+                int index = (pc>>>2)&(PAGE_WORDS-1);
+                int dop = dp.ops[index];
+                if(dop == 0) {
+                    misses += decodeBlock(dp,pc);
+                    dop = dp.ops[index];
+                } else {
+                    hits++;
+                }
+                if((dop&0xff) != D_GENERIC) {
+                    int rs = (dop >>> 8) & 0x1f;
+                    int rt = (dop >>> 13) & 0x1f;
+                    int rd = (dop >>> 18) & 0x1f;
+                    int imm = dp.imms[index];
+                    int tmp, addr;
+                    switch(dop&0xff) {
+                        case D_NOP: break;
+                        case D_SLL: r[rd] = r[rt] << ((dop >>> 23) & 0x1f); break;
+                        case D_SRL: r[rd] = r[rt] >>> ((dop >>> 23) & 0x1f); break;
+                        case D_SRA: r[rd] = r[rt] >> ((dop >>> 23) & 0x1f); break;
+                        case D_SLLV: r[rd] = r[rt] << (r[rs]&0x1f); break;
+                        case D_SRLV: r[rd] = r[rt] >>> (r[rs]&0x1f); break;
+                        case D_SRAV: r[rd] = r[rt] >> (r[rs]&0x1f); break;
+                        case D_JR:
+                            tmp = r[rs]; pc += 4; nextPC = tmp;
+                            continue OUTER;
+                        case D_JALR:
+                            tmp = r[rs]; pc += 4; r[rd] = pc+4; nextPC = tmp;
+                            if(tier != null && tier.call(tmp)) { tierPC = tmp; tierFrom = pc-4; }
+                            continue OUTER;
+                        case D_MFHI: r[rd] = hi; break;
+                        case D_MTHI: hi = r[rs]; break;
+                        case D_MFLO: r[rd] = lo; break;
+                        case D_MTLO: lo = r[rs]; break;
+                        case D_MULT: {
+                            long hilo = ((long)r[rs]) * ((long)r[rt]);
+                            hi = (int) (hilo >>> 32);
+                            lo = (int) hilo;
+                            break;
+                        }
+                        case D_MULTU: {
+                            long hilo = (r[rs] & 0xffffffffL) * (r[rt] & 0xffffffffL);
+                            hi = (int) (hilo >>> 32);
+                            lo = (int) hilo;
+                            break;
+                        }
+                        case D_ADDU: r[rd] = r[rs] + r[rt]; break;
+                        case D_SUBU: r[rd] = r[rs] - r[rt]; break;
+                        case D_AND: r[rd] = r[rs] & r[rt]; break;
+                        case D_OR: r[rd] = r[rs] | r[rt]; break;
+                        case D_XOR: r[rd] = r[rs] ^ r[rt]; break;
+                        case D_NOR: r[rd] = ~(r[rs] | r[rt]); break;
+                        case D_SLT: r[rd] = r[rs] < r[rt] ? 1 : 0; break;
+                        case D_SLTU: r[rd] = ((r[rs] & 0xffffffffL) < (r[rt] & 0xffffffffL)) ? 1 : 0; break;
+                        case D_BLTZ:
+                            if(r[rs] < 0) {
+                                if(tier != null && imm <= pc && tier.backEdge(pc)) { tierPC = imm; tierFrom = pc; }
+                                pc += 4; nextPC = imm; continue OUTER;
+                            }
+                            break;
+                        case D_BGEZ:
+                            if(r[rs] >= 0) {
+                                if(tier != null && imm <= pc && tier.backEdge(pc)) { tierPC = imm; tierFrom = pc; }
+                                pc += 4; nextPC = imm; continue OUTER;
+                            }
+                            break;
+                        case D_J:
+                            if(tier != null && imm <= pc && tier.backEdge(pc)) { tierPC = imm; tierFrom = pc; }
+                            pc += 4; nextPC = imm;
+                            continue OUTER;
+                        case D_JAL:
+                            pc += 4; r[RA] = pc+4; nextPC = imm;
+                            if(tier != null && tier.call(imm)) { tierPC = imm; tierFrom = pc-4; }
+                            continue OUTER;
+                        case D_BEQ:
+                            if(r[rs] == r[rt]) {
+                                if(tier != null && imm <= pc && tier.backEdge(pc)) { tierPC = imm; tierFrom = pc; }
+                                pc += 4; nextPC = imm; continue OUTER;
+                            }
+                            break;
+                        case D_BNE:
+                            if(r[rs] != r[rt]) {
+                                if(tier != null && imm <= pc && tier.backEdge(pc)) { tierPC = imm; tierFrom = pc; }
+                                pc += 4; nextPC = imm; continue OUTER;
+                            }
+                            break;
+                        case D_BLEZ:
+                            if(r[rs] <= 0) {
+                                if(tier != null && imm <= pc && tier.backEdge(pc)) { tierPC = imm; tierFrom = pc; }
+                                pc += 4; nextPC = imm; continue OUTER;
+                            }
+                            break;
+                        case D_BGTZ:
+                            if(r[rs] > 0) {
+                                if(tier != null && imm <= pc && tier.backEdge(pc)) { tierPC = imm; tierFrom = pc; }
+                                pc += 4; nextPC = imm; continue OUTER;
+                            }
+                            break;
+                        case D_ADDIU: r[rt] = r[rs] + imm; break;
+                        case D_SLTI: r[rt] = r[rs] < imm ? 1 : 0; break;
+                        case D_SLTIU: r[rt] = (r[rs]&0xffffffffL) < (imm&0xffffffffL) ? 1 : 0; break;
+                        case D_ANDI: r[rt] = r[rs] & imm; break;
+                        case D_ORI: r[rt] = r[rs] | imm; break;
+                        case D_XORI: r[rt] = r[rs] ^ imm; break;
+                        case D_LUI: r[rt] = imm; break;
+                        case D_LB:
+                        case D_LBU:
+                            addr = r[rs] + imm;
+                            try {
+                                if(offHeap) tmp = memRead(addr&~3);
+                                else tmp = readPages[addr>>>pageShift][(addr>>>2)&(PAGE_WORDS-1)];
+                            } catch(RuntimeException e) {
+                                tmp = memRead(addr&~3);
+                            }
+                            tmp = (tmp >>> ((~addr&3)<<3)) & 0xff;
+                            if((dop&0xff) == D_LB && (tmp&0x80)!=0) tmp |= 0xffffff00; // sign extend
+                            r[rt] = tmp;
+                            break;
+                        case D_LW:
+                            addr = r[rs] + imm;
+                            try {
+                                if(offHeap) r[rt] = memRead(addr);
+                                else r[rt] = readPages[addr>>>pageShift][(addr>>>2)&(PAGE_WORDS-1)];
+                            } catch(RuntimeException e) {
+                                r[rt] = memRead(addr);
+                            }
+                            break;
+                        case D_SB:
+                            addr = r[rs] + imm;
+                            try {
+                                if(offHeap) tmp = memRead(addr&~3);
+                                else tmp = readPages[addr>>>pageShift][(addr>>>2)&(PAGE_WORDS-1)];
+                            } catch(RuntimeException e) {
+                                tmp = memRead(addr&~3);
+                            }
+                            tmp = (tmp & ~(0xff << ((~addr&3)<<3))) | ((r[rt]&0xff) << ((~addr&3)<<3));
+                            try {
+                                if(offHeap) memWrite(addr&~3,tmp);
+                                else writePages[addr>>>pageShift][(addr>>>2)&(PAGE_WORDS-1)] = tmp;
+                            } catch(RuntimeException e) {
+                                memWrite(addr&~3,tmp);
+                            }
+                            break;
+                        case D_SW:
+                            addr = r[rs] + imm;
+                            try {
+                                if(offHeap) memWrite(addr,r[rt]);
+                                else writePages[addr>>>pageShift][(addr>>>2)&(PAGE_WORDS-1)] = r[rt];
+                            } catch(RuntimeException e) {
+                                memWrite(addr&~3,r[rt]);
+                            }
+                            break;
+                        default:
+                            throw new Error("should never happen");
+                    }
+                    pc = nextPC;
+                    nextPC = pc + 4;
+                    continue OUTER;
+                }
+            }
+        }
+        
         int insn;
         try {
-            insn = readPages[pc>>>pageShift][(pc>>>2)&PAGE_WORDS-1];
+            if(offHeap) insn = memRead(pc);
+            else insn = readPages[pc>>>pageShift][(pc>>>2)&PAGE_WORDS-1];
         } catch (RuntimeException e) {
             if(pc == 0xdeadbeef) throw new Error("fell off cpu: r2: " + r[2]);
             insn = memRead(pc);
@@ -126,11 +506,14 @@ public class Interpreter extends UnixRuntime implements Cloneable {
                         continue OUTER;
                     case 9: // JALR
                         tmp = r[rs]; pc += 4; r[rd] = pc+4; nextPC = tmp;
+                        if(tier != null && tier.call(tmp)) { tierPC = tmp; tierFrom = pc-4; }
                         continue OUTER;
                     case 12: // SYSCALL
                         this.pc = pc;
                         r[V0] = syscall(r[V0],r[A0],r[A1],r[A2],r[A3],r[T0],r[T1]);
                         if(state != RUNNING) { this.pc = nextPC; break OUTER; }
+                        // the syscall may have remapped pages or changed their protection
+                        dpPage = -1;
                         break;
                     case 13: // BREAK
                         throw new ExecutionException("Break");
@@ -211,13 +594,15 @@ public class Interpreter extends UnixRuntime implements Cloneable {
                 switch(rt) {
                     case 0: // BLTZ
                         if(r[rs] < 0) {
-                            pc += 4; tmp = pc + branchTarget*4; nextPC = tmp;                   
+                            pc += 4; tmp = pc + branchTarget*4; nextPC = tmp;
+                            if(tier != null && branchTarget < 0 && tier.backEdge(pc-4)) { tierPC = tmp; tierFrom = pc-4; }
                             continue OUTER;
                         }
                         break;
                     case 1: // BGEZ
                         if(r[rs] >= 0) {
                             pc += 4; tmp = pc + branchTarget*4; nextPC = tmp;
+                            if(tier != null && branchTarget < 0 && tier.backEdge(pc-4)) { tierPC = tmp; tierFrom = pc-4; }
                             continue OUTER;
                         }
                         break;
@@ -240,35 +625,41 @@ public class Interpreter extends UnixRuntime implements Cloneable {
             }
             case 2: { // J
                 tmp = (pc&0xf0000000) | (jumpTarget << 2);
+                if(tier != null && tmp <= pc && tier.backEdge(pc)) { tierPC = tmp; tierFrom = pc; }
                 pc+=4; nextPC = tmp;
                 continue OUTER;
             }
             case 3: { // JAL
                 tmp = (pc&0xf0000000) | (jumpTarget << 2);
                 pc+=4; r[RA] = pc+4; nextPC = tmp;
+                if(tier != null && tier.call(tmp)) { tierPC = tmp; tierFrom = pc-4; }
                 continue OUTER;
             }
             case 4: // BEQ
                 if(r[rs] == r[rt]) {
                     pc += 4; tmp = pc + branchTarget*4; nextPC = tmp;
+                    if(tier != null && branchTarget < 0 && tier.backEdge(pc-4)) { tierPC = tmp; tierFrom = pc-4; }
                     continue OUTER;
                 }
                 break;
             case 5: // BNE                
                 if(r[rs] != r[rt]) {
-                    pc += 4; tmp = pc + branchTarget*4; nextPC = tmp; 
+                    pc += 4; tmp = pc + branchTarget*4; nextPC = tmp;
+                    if(tier != null && branchTarget < 0 && tier.backEdge(pc-4)) { tierPC = tmp; tierFrom = pc-4; }
                     continue OUTER;
                 }
                 break;
             case 6: //BLEZ
                 if(r[rs] <= 0) {
                     pc += 4; tmp = pc + branchTarget*4; nextPC = tmp;
+                    if(tier != null && branchTarget < 0 && tier.backEdge(pc-4)) { tierPC = tmp; tierFrom = pc-4; }
                     continue OUTER;
                 }
                 break;
             case 7: //BGTZ
                 if(r[rs] > 0) {
                     pc += 4; tmp = pc + branchTarget*4; nextPC = tmp;
+                    if(tier != null && branchTarget < 0 && tier.backEdge(pc-4)) { tierPC = tmp; tierFrom = pc-4; }
                     continue OUTER;
                 }
                 break;
@@ -324,6 +715,7 @@ public class Interpreter extends UnixRuntime implements Cloneable {
                     case 8: // BC1F, BC1T
                         if(((fcsr&0x800000)!=0) == (((insn>>>16)&1)!=0)) {
                             pc += 4; tmp = pc + branchTarget*4; nextPC = tmp;
+                            if(tier != null && branchTarget < 0 && tier.backEdge(pc-4)) { tierPC = tmp; tierFrom = pc-4; }
                             continue OUTER;
                         }
                         break;
@@ -449,7 +841,8 @@ public class Interpreter extends UnixRuntime implements Cloneable {
             case 32: { // LB
                 addr = r[rs] + signedImmediate;
                 try {
-                    tmp = readPages[addr>>>pageShift][(addr>>>2)&(PAGE_WORDS-1)];
+                    if(offHeap) tmp = memRead(addr&~3);
+                    else tmp = readPages[addr>>>pageShift][(addr>>>2)&(PAGE_WORDS-1)];
                 } catch(RuntimeException e) {
                     tmp = memRead(addr&~3);
                 }
@@ -466,7 +859,8 @@ public class Interpreter extends UnixRuntime implements Cloneable {
             case 33: { // LH
                 addr = r[rs] + signedImmediate;
                 try {
-                    tmp = readPages[addr>>>pageShift][(addr>>>2)&(PAGE_WORDS-1)];
+                    if(offHeap) tmp = memRead(addr&~3);
+                    else tmp = readPages[addr>>>pageShift][(addr>>>2)&(PAGE_WORDS-1)];
                 } catch(RuntimeException e) {
                     tmp = memRead(addr&~3);
                 }
@@ -482,7 +876,8 @@ public class Interpreter extends UnixRuntime implements Cloneable {
             case 34: { // LWL;
                 addr = r[rs] + signedImmediate;
                 try {
-                    tmp = readPages[addr>>>pageShift][(addr>>>2)&(PAGE_WORDS-1)];
+                    if(offHeap) tmp = memRead(addr&~3);
+                    else tmp = readPages[addr>>>pageShift][(addr>>>2)&(PAGE_WORDS-1)];
                 } catch(RuntimeException e) {
                     tmp = memRead(addr&~3);
                 }
@@ -497,7 +892,8 @@ public class Interpreter extends UnixRuntime implements Cloneable {
             case 35: // LW
                 addr = r[rs] + signedImmediate;
                 try {
-                    r[rt] = readPages[addr>>>pageShift][(addr>>>2)&(PAGE_WORDS-1)];
+                    if(offHeap) r[rt] = memRead(addr);
+                    else r[rt] = readPages[addr>>>pageShift][(addr>>>2)&(PAGE_WORDS-1)];
                 } catch(RuntimeException e) {
                     r[rt] = memRead(addr);
                 }
@@ -505,7 +901,8 @@ public class Interpreter extends UnixRuntime implements Cloneable {
             case 36: { // LBU
                 addr = r[rs] + signedImmediate;
                 try {
-                    tmp = readPages[addr>>>pageShift][(addr>>>2)&(PAGE_WORDS-1)];
+                    if(offHeap) tmp = memRead(addr&~3);
+                    else tmp = readPages[addr>>>pageShift][(addr>>>2)&(PAGE_WORDS-1)];
                 } catch(RuntimeException e) {
                     tmp = memRead(addr);
                 }
@@ -520,7 +917,8 @@ public class Interpreter extends UnixRuntime implements Cloneable {
             case 37: { // LHU
                 addr = r[rs] + signedImmediate;
                 try {
-                    tmp = readPages[addr>>>pageShift][(addr>>>2)&(PAGE_WORDS-1)];
+                    if(offHeap) tmp = memRead(addr&~3);
+                    else tmp = readPages[addr>>>pageShift][(addr>>>2)&(PAGE_WORDS-1)];
                 } catch(RuntimeException e) {
                     tmp = memRead(addr&~3);
                 }
@@ -534,7 +932,8 @@ public class Interpreter extends UnixRuntime implements Cloneable {
             case 38: { // LWR
                 addr = r[rs] + signedImmediate;
                 try {
-                    tmp = readPages[addr>>>pageShift][(addr>>>2)&(PAGE_WORDS-1)];
+                    if(offHeap) tmp = memRead(addr&~3);
+                    else tmp = readPages[addr>>>pageShift][(addr>>>2)&(PAGE_WORDS-1)];
                 } catch(RuntimeException e) {
                     tmp = memRead(addr&~3);
                 }
@@ -549,7 +948,8 @@ public class Interpreter extends UnixRuntime implements Cloneable {
             case 40: { // SB
                 addr = r[rs] + signedImmediate;
                 try {
-                    tmp = readPages[addr>>>pageShift][(addr>>>2)&(PAGE_WORDS-1)];
+                    if(offHeap) tmp = memRead(addr&~3);
+                    else tmp = readPages[addr>>>pageShift][(addr>>>2)&(PAGE_WORDS-1)];
                 } catch(RuntimeException e) {
                     tmp = memRead(addr&~3);
                 }
@@ -560,7 +960,8 @@ public class Interpreter extends UnixRuntime implements Cloneable {
                     case 3: tmp = (tmp&0xffffff00) | ((r[rt]&0xff)<< 0); break;
                 }
                 try {
-                    writePages[addr>>>pageShift][(addr>>>2)&(PAGE_WORDS-1)] = tmp;
+                    if(offHeap) memWrite(addr&~3,tmp);
+                    else writePages[addr>>>pageShift][(addr>>>2)&(PAGE_WORDS-1)] = tmp;
                 } catch(RuntimeException e) {
                     memWrite(addr&~3,tmp);
                 }
@@ -569,7 +970,8 @@ public class Interpreter extends UnixRuntime implements Cloneable {
             case 41: { // SH
                 addr = r[rs] + signedImmediate;
                 try {
-                    tmp = readPages[addr>>>pageShift][(addr>>>2)&(PAGE_WORDS-1)];
+                    if(offHeap) tmp = memRead(addr&~3);
+                    else tmp = readPages[addr>>>pageShift][(addr>>>2)&(PAGE_WORDS-1)];
                 } catch(RuntimeException e) {
                     tmp = memRead(addr&~3);
                 }
@@ -579,7 +981,8 @@ public class Interpreter extends UnixRuntime implements Cloneable {
                     default: throw new WriteFaultException(addr);
                 }
                 try {
-                    writePages[addr>>>pageShift][(addr>>>2)&(PAGE_WORDS-1)] = tmp;
+                    if(offHeap) memWrite(addr&~3,tmp);
+                    else writePages[addr>>>pageShift][(addr>>>2)&(PAGE_WORDS-1)] = tmp;
                 } catch(RuntimeException e) {
                     memWrite(addr&~3,tmp);
                 }
@@ -595,7 +998,8 @@ public class Interpreter extends UnixRuntime implements Cloneable {
                     case 3: tmp=(tmp&0xffffff00)|(r[rt]>>>24); break;
                 }
                 try {
-                    writePages[addr>>>pageShift][(addr>>>2)&(PAGE_WORDS-1)] = tmp;
+                    if(offHeap) memWrite(addr&~3,tmp);
+                    else writePages[addr>>>pageShift][(addr>>>2)&(PAGE_WORDS-1)] = tmp;
                 } catch(RuntimeException e) {
                     memWrite(addr&~3,tmp);
                 }
@@ -604,7 +1008,8 @@ public class Interpreter extends UnixRuntime implements Cloneable {
             case 43: // SW
                 addr = r[rs] + signedImmediate;
                 try {
-                    writePages[addr>>>pageShift][(addr>>>2)&(PAGE_WORDS-1)] = r[rt];
+                    if(offHeap) memWrite(addr,r[rt]);
+                    else writePages[addr>>>pageShift][(addr>>>2)&(PAGE_WORDS-1)] = r[rt];
                 } catch(RuntimeException e) {
                     memWrite(addr&~3,r[rt]);
                 }
@@ -645,10 +1050,191 @@ public class Interpreter extends UnixRuntime implements Cloneable {
     } catch(ExecutionException e) {
         this.pc = pc;
         throw e;
+    } finally {
+        decodeHits += hits;
+        decodeMisses += misses;
     }
         return 0;
     }
     
+    // Tiered execution
+    /* When tiering is enabled calls and backward branches are counted per function (using the symtab).
+       Once any function gets hot the whole image is compiled with the RuntimeCompiler on a background
+       thread while we keep interpreting. When the class is ready the process is handed over to it
+       the next time the interpreter calls a function or takes a backward branch, as soon as it reaches
+       the target, so a long running loop moves over without waiting for a call. The ClassFileCompiler
+       requires prunecases, the compiled code can only be entered at the addresses the Compiler found
+       jumps to (findBranchesInText() and findBranchesInSymtab()). The targets of direct branches, jumps
+       and calls always are, the target of a jalr only if it is a function in the symtab. tierUp() checks
+       this and otherwise keeps interpreting until the next chance. */
+    private TierState tier;
+    
+    static final class TierState implements Runnable {
+        private final UnixRuntime owner;
+        private final Seekable image;
+        private final String path;
+        private final long mtime, size;
+        private final int threshold;
+        
+        /** Sorted function start addresses and their names/counters */
+        private final int[] funcs;
+        private final String[] names;
+        private final int[] counts;
+        
+        private boolean started;
+        private volatile boolean done;
+        private volatile Class compiled;
+        
+        TierState(UnixRuntime owner, ELF.Symtab symtab, Seekable image, String path, long mtime, long size, int threshold) {
+            this.owner = owner;
+            this.image = image;
+            this.path = path;
+            this.mtime = mtime;
+            this.size = size;
+            this.threshold = threshold;
+            
+            ELF.Symbol[] syms = symtab.symbols;
+            int n = 0;
+            for(int i=0;i<syms.length;i++) if(syms[i].type == ELF.Symbol.STT_FUNC) n++;
+            ELF.Symbol[] fsyms = new ELF.Symbol[n];
+            n = 0;
+            for(int i=0;i<syms.length;i++) if(syms[i].type == ELF.Symbol.STT_FUNC) fsyms[n++] = syms[i];
+            Sort.sort(fsyms,new Sort.CompareFunc() {
+                public int compare(Object a, Object b) {
+                    long x = ((ELF.Symbol)a).addr&0xffffffffL, y = ((ELF.Symbol)b).addr&0xffffffffL;
+                    return x < y ? -1 : x > y ? 1 : 0;
+                }
+            });
+            funcs = new int[n];
+            names = new String[n];
+            counts = new int[n];
+            for(int i=0;i<n;i++) { funcs[i] = fsyms[i].addr; names[i] = fsyms[i].name; }
+        }
+        
+        /** Returns the index of the function containing <i>addr</i> or -1 */
+        private int funcIndex(int addr) {
+            long a = addr&0xffffffffL;
+            int lo = 0, hi = funcs.length-1, found = -1;
+            while(lo <= hi) {
+                int mid = (lo+hi)>>>1;
+                if((funcs[mid]&0xffffffffL) <= a) { found = mid; lo = mid+1; }
+                else hi = mid-1;
+            }
+            return found;
+        }
+        
+        private void count(int addr) {
+            if(started) return;
+            int i = funcIndex(addr);
+            if(i == -1 || ++counts[i] < threshold) return;
+            synchronized(this) {
+                if(started) return;
+                started = true;
+            }
+            if(STDERR_DIAG) System.err.println("Compiling " + path + " in the background (" + names[i] + " is hot)");
+            Thread t = new Thread(this);
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            t.start();
+        }
+        
+        /** Counts a call to <i>target</i>. Returns true if the compiled class is ready to take over */
+        final boolean call(int target) {
+            if(done) return compiled != null;
+            count(target);
+            return false;
+        }
+        
+        /** Counts a backward branch at <i>pc</i>. Returns true if the compiled class is ready to take over */
+        final boolean backEdge(int pc) {
+            if(done) return compiled != null;
+            count(pc);
+            return false;
+        }
+        
+        /** True if the compiled code has an entry point at <i>target</i>, which the branch, jump or call
+            <i>insn</i> went to. These are the targets Compiler.findBranchesInText() marks, jalr targets
+            only count if they are functions in the symtab (Compiler.findBranchesInSymtab()). */
+        final boolean jumpable(int insn, int target) {
+            switch(insn >>> 26) {
+                case 0: // JALR
+                    if((insn & 0x3f) != 9) return false;
+                    int i = funcIndex(target);
+                    return i != -1 && funcs[i] == target;
+                case 1: { // BLTZ, BGEZ, BLTZAL, BGEZAL
+                    int rt = (insn >>> 16) & 0x1f;
+                    return rt == 0 || rt == 1 || rt == 16 || rt == 17;
+                }
+                case 2: // J
+                case 3: // JAL
+                case 4: // BEQ
+                case 5: // BNE
+                case 6: // BLEZ
+                case 7: // BGTZ
+                    return true;
+                case 17: // BC1F, BC1T
+                    return ((insn >>> 21) & 0x1f) == 8;
+                default:
+                    return false;
+            }
+        }
+        
+        public void run() {
+            Class c = null;
+            try {
+                c = owner.runtimeCompile(image,path);
+                compiled = c;
+            } catch(Exception e) {
+                if(STDERR_DIAG) e.printStackTrace();
+            } finally {
+                done = true;
+                // caches the class (if there is one) and lets the next exec() of path start over
+                owner.tieredCompileFinished(path,mtime,size,c,this);
+            }
+        }
+    }
+    
+    /** Enables tiered execution. <i>image</i> must be a copy of the binary this Interpreter was loaded from
+        that the compiler can read from another thread. The compiled class is added to the exec cache
+        under <i>path</i>, <i>mtime</i> and <i>size</i>. Returns the new TierState, null if this Interpreter
+        can't be tiered. */
+    final TierState enableTiering(Seekable image, String path, long mtime, long size, int threshold) {
+        // the compiled class would need the offHeap option too
+        if(symtab == null || readBuffers != null) return null;
+        return tier = new TierState(this,symtab,image,path,mtime,size,threshold);
+    }
+    
+    /** Joins the tiering of another Interpreter of the same binary, calls and loops here count towards its
+        compile and this Interpreter is handed over to the result too. Returns false if it can't be tiered. */
+    final boolean shareTiering(TierState t) {
+        if(symtab == null || readBuffers != null) return false;
+        tier = t;
+        return true;
+    }
+    
+    /** Hands the process over to the compiled class at pc, which the instruction at <i>from</i> went to.
+        Returns true if the process has been exec()ed into it, false if it has to keep interpreting. */
+    private boolean tierUp(int from) {
+        try {
+            // the compiled code would throw "Jumped to invalid address" after we handed off
+            if(!tier.jumpable(memRead(from),pc)) return false;
+        } catch(ReadFaultException e) {
+            return false;
+        }
+        Class c = tier.compiled;
+        tier = null;
+        try {
+            UnixRuntime r = (UnixRuntime) c.getDeclaredConstructor(new Class[]{Boolean.TYPE}).newInstance(new Object[]{Boolean.TRUE});
+            CPUState state = new CPUState();
+            getCPUState(state);
+            handOff(r,state);
+            return true;
+        } catch(Exception e) {
+            if(STDERR_DIAG) e.printStackTrace();
+            return false;
+        }
+    }
+    
     public int lookupSymbol(String name) {
         ELF.Symbol sym = symtab.getGlobalSymbol(name);
         return sym == null ? -1 : sym.addr;
@@ -667,6 +1253,11 @@ public class Interpreter extends UnixRuntime implements Cloneable {
     private int heapStart;
     protected int heapStart() { return heapStart; }
     
+    // stores that miss writePages all end up in memWrite()
+    protected boolean supportsCopyOnWrite() { return true; }
+    // loads and stores check readBuffers/writeBuffers first
+    protected boolean supportsOffHeapMemory() { return true; }
+    
     // Image loading function
     private void loadImage(Seekable data) throws IOException {
         ELF elf = new ELF(data);
@@ -703,6 +1294,9 @@ public class Interpreter extends UnixRuntime implements Cloneable {
             if(addr == 0x0) throw new IOException("pheader vaddr == 0x0");
             brk = max(addr+memsize,brk);
             
+            // read-only segments another Interpreter for this image already loaded are shared
+            if(!ph.writable() && initSharedPages(addr,(memsize+3)>>>2)) continue;
+            
             for(int j=0;j<memsize+pageSize-1;j+=pageSize) {
                 int page = (j+addr) >>> pageShift;
                 if(readPages[page] == null)
@@ -721,8 +1315,13 @@ public class Interpreter extends UnixRuntime implements Cloneable {
             }
         }
         heapStart = (brk+pageSize-1)&~(pageSize-1);
+        shareReadOnlyPages();
     }
     
+    // Identifies the image read-only pages are shared under, null if we don't know where it came from
+    private Object sharedPagesKey;
+    protected Object sharedPagesKey() { return sharedPagesKey; }
+    
     protected void setCPUState(CPUState state) {
         for(int i=1;i<32;i++) registers[i] = state.r[i];
         for(int i=0;i<32;i++) fpregs[i] = state.f[i];
@@ -738,15 +1337,48 @@ public class Interpreter extends UnixRuntime implements Cloneable {
     }
     
     public Interpreter(Seekable data) throws IOException { this(data,false); }
-    public Interpreter(Seekable data, boolean isExec) throws IOException {
+    public Interpreter(Seekable data, boolean isExec) throws IOException { this(data,isExec,null); }
+    private Interpreter(Seekable data, boolean isExec, Object sharedPagesKey) throws IOException {
         super(4096,65536,isExec);
+        this.sharedPagesKey = sharedPagesKey;
         loadImage(data);
     }
     public Interpreter(String filename) throws IOException { this(filename,false); }
     public Interpreter(String filename, boolean isExec) throws IOException {
-        this(new Seekable.File(filename,false), isExec);
+        this(new Seekable.File(filename,false), isExec, fileKey(filename));
         image = filename;
     }
+    /** Loads <i>filename</i> with its memory off the Java heap, allocated from <i>memory</i> */
+    public Interpreter(String filename, OffHeapMemory memory) throws IOException {
+        this(filename,false);
+        useOffHeapMemory(memory);
+    }
+    
+    // The keys of the last few images loaded. Runtime.sharedPages only holds its keys weakly, so every
+    // instance of an image has to use the same key object and something has to keep it reachable between them.
+    private static final int IMAGE_KEYS = 16;
+    private static final java.util.Hashtable imageKeys = new java.util.Hashtable();
+    private static final java.util.Vector imageKeyOrder = new java.util.Vector();
+    
+    private static Object fileKey(String filename) {
+        File f = new File(filename);
+        String key = f.getAbsolutePath() + ":" + f.lastModified() + ":" + f.length();
+        synchronized(imageKeys) {
+            Object canonical = imageKeys.get(key);
+            if(canonical != null) {
+                imageKeyOrder.removeElement(canonical);
+            } else {
+                canonical = key;
+                imageKeys.put(key,canonical);
+                if(imageKeyOrder.size() == IMAGE_KEYS) {
+                    imageKeys.remove(imageKeyOrder.elementAt(0));
+                    imageKeyOrder.removeElementAt(0);
+                }
+            }
+            imageKeyOrder.addElement(canonical);
+            return canonical;
+        }
+    }
     public Interpreter(InputStream is) throws IOException { this(new Seekable.InputStream(is)); }
     
     // Debug functions
@@ -123,6 +123,8 @@ public class JavaSourceCompiler extends Compiler {
         indent++;
         p("super(" + pageSize + "," + totalPages + ");");
         pblock(inits);
+        if(offHeap) p("useOffHeapMemory(org.ibex.nestedvm.OffHeapMemory.getDefault());");
+        else if(!onePage) p("shareReadOnlyPages();");
         indent--;
         p("}");
         p();
@@ -130,6 +132,8 @@ public class JavaSourceCompiler extends Compiler {
         p("protected int entryPoint() { return " + toHex(elf.header.entry) + "; }");
         p("protected int heapStart() { return " + toHex(highestAddr) + "; }");
         p("protected int gp() { return " + toHex(gp.addr) + "; }");
+        if(!onePage && !offHeap) p("protected boolean supportsCopyOnWrite() { return true; }");
+        if(offHeap || !fastMem) p("protected boolean supportsOffHeapMemory() { return true; }");
         if(userInfo != null) {
             p("protected int userInfoBase() { return " + toHex(userInfo.addr) + "; }");            
             p("protected int userInfoSize() { return " + toHex(userInfo.size) + "; }");            
@@ -282,13 +286,18 @@ public class JavaSourceCompiler extends Compiler {
         
         if((addr&3)!=0 || (size&3)!=0) throw new Exn("Section on weird boundaries");
         int count = size/4;
-        int nextInsn = dis.readInt();
-        if(nextInsn == -1) throw new Error("Actually read -1 at " + toHex(addr));
-        int insn;
+        int[] words = new int[count];
+        for(int i=0;i<count;i++) words[i] = dis.readInt();
+        dis.close();
+        if(count > 0 && words[0] == -1) throw new Error("Actually read -1 at " + toHex(addr));
+        optimizeText(addr,words);
+        int insn,nextInsn;
         
         for(int i=0;i<count;i++,addr+=4) {
-            insn = nextInsn;
-            nextInsn = (i == count-1) ? -1 : dis.readInt();
+            insn = words[i];
+            nextInsn = (i == count-1) ? -1 : words[i+1];
+            // left out by pruneFunctions, a method with nothing else in it isn't even started
+            if(dead(addr)) { unreachable = true; continue; }
             if(addr >= endOfMethod) { endMethod(); startMethod(addr); }
             if(jumpableAddresses==null || addr == startOfMethod || jumpableAddresses.get(new Integer(addr)) != null) {
                 p("case " + toHex(addr) + ":");
@@ -304,7 +313,6 @@ public class JavaSourceCompiler extends Compiler {
         }
         endMethod(addr);
         p();
-        dis.close();
     }
     
     private int initDataCount = 0;
@@ -901,8 +909,10 @@ public class JavaSourceCompiler extends Compiler {
         if(nullPointerCheck) p("nullPointerCheck(" + addr + ");");
         if(onePage)
             p("page[(" + addr + ")>>>2] = " + target + ";");
+        else if(fastMem && offHeap)
+            p("{ java.nio.IntBuffer _p = writeBuffers[("+addr+")>>>"+pageShift+"]; if(_p == null) _p = writeBufferFault("+addr+"); _p.put((("+addr+")>>>2)&"+toHex((pageSize>>2)-1)+"," + target + "); }");
         else if(fastMem)
-            p("writePages[("+addr+")>>>"+pageShift+"][(("+addr+")>>>2)&"+toHex((pageSize>>2)-1)+"] = " + target + ";");
+            p("{ int[] _p = writePages[("+addr+")>>>"+pageShift+"]; if(_p == null) _p = copyOnWrite("+addr+"); _p[(("+addr+")>>>2)&"+toHex((pageSize>>2)-1)+"] = " + target + "; }");
         else
             p("unsafeMemWrite(" + addr + "," + target + ");");
     }
@@ -910,8 +920,10 @@ public class JavaSourceCompiler extends Compiler {
         if(nullPointerCheck) p("nullPointerCheck(" + addr + ");");
         if(onePage)
             p(target + "= page[(" + addr + ")>>>2];");
+        else if(fastMem && offHeap)
+            p("{ java.nio.IntBuffer _p = readBuffers[("+addr+")>>>"+pageShift+"]; if(_p == null) _p = readBufferFault("+addr+"); " + target + " = _p.get((("+addr+")>>>2)&"+toHex((pageSize>>2)-1)+"); }");
         else if(fastMem)
-            p(target  + " = readPages[("+addr+")>>>"+pageShift+"][(("+addr+")>>>2)&"+toHex((pageSize>>2)-1)+"];");
+            p("{ int[] _p = readPages[("+addr+")>>>"+pageShift+"]; if(_p == null) _p = readFault("+addr+"); " + target + " = _p[(("+addr+")>>>2)&"+toHex((pageSize>>2)-1)+"]; }");
         else
             p(target + " = unsafeMemRead(" + addr + ");");
     }
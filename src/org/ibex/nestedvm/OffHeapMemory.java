@@ -0,0 +1,108 @@
+// Copyright 2000-2005 the Contributors, as shown in the revision logs.
+// Licensed under the Apache Public Source License 2.0 ("the License").
+// You may not use this file except in compliance with the License.
+
+package org.ibex.nestedvm;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/** Hands out guest memory pages that live outside the Java heap (JDK 1.4+).
+    Pages are carved out of large direct ByteBuffers, or out of a memory mapped file, so the garbage
+    collector only ever sees a handful of small buffer objects no matter how much memory the processes use.
+    Pages released by a Runtime (see Runtime.restore()) are kept and handed out again.
+
+    <pre>
+    Interpreter vm = new Interpreter("prog.mips",OffHeapMemory.getDefault());
+    // or backed by a file
+    Interpreter vm = new Interpreter("prog.mips",new OffHeapMemory(new File("/tmp/guest.mem")));
+    </pre> */
+public class OffHeapMemory {
+    private static final int DEFAULT_SLAB_SIZE = 4*1024*1024;
+    private static OffHeapMemory defaultMemory;
+
+    private final int slabSize;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private long fileSize;
+
+    private ByteBuffer slab;
+    // released pages by page size
+    private final Hashtable free = new Hashtable();
+
+    /** Creates an allocator backed by direct ByteBuffers */
+    public OffHeapMemory() { this(DEFAULT_SLAB_SIZE); }
+    /** Creates an allocator backed by direct ByteBuffers of <i>slabSize</i> bytes each */
+    public OffHeapMemory(int slabSize) {
+        if(slabSize <= 0) throw new IllegalArgumentException("slabSize <= 0");
+        this.slabSize = slabSize;
+        file = null;
+        channel = null;
+    }
+
+    /** Creates an allocator that maps pages from <i>f</i>. The file is truncated and grows as pages are needed.
+        Released pages are reused, the file never shrinks until close() is called. */
+    public OffHeapMemory(File f) throws IOException { this(f,DEFAULT_SLAB_SIZE); }
+    public OffHeapMemory(File f, int slabSize) throws IOException {
+        if(slabSize <= 0) throw new IllegalArgumentException("slabSize <= 0");
+        this.slabSize = slabSize;
+        file = new RandomAccessFile(f,"rw");
+        file.setLength(0);
+        channel = file.getChannel();
+    }
+
+    /** Returns the allocator used by classes compiled with the offHeap option, creating a direct one if none was set */
+    public static synchronized OffHeapMemory getDefault() {
+        if(defaultMemory == null) defaultMemory = new OffHeapMemory();
+        return defaultMemory;
+    }
+
+    /** Sets the allocator returned by getDefault() */
+    public static synchronized void setDefault(OffHeapMemory m) { defaultMemory = m; }
+
+    /** Returns a zero filled page of <i>pageSize</i> bytes */
+    public synchronized IntBuffer allocate(int pageSize) {
+        Vector v = (Vector) free.get(new Integer(pageSize));
+        if(v != null && v.size() != 0) {
+            IntBuffer page = (IntBuffer) v.lastElement();
+            v.removeElementAt(v.size()-1);
+            for(int i=0;i<page.capacity();i++) page.put(i,0);
+            return page;
+        }
+        if(slab == null || slab.remaining() < pageSize) slab = newSlab(Math.max(slabSize,pageSize));
+        int pos = slab.position();
+        slab.limit(pos + pageSize);
+        ByteBuffer b = slab.slice();
+        slab.limit(slab.capacity());
+        slab.position(pos + pageSize);
+        return b.order(ByteOrder.nativeOrder()).asIntBuffer();
+    }
+
+    /** Gives back a page returned by allocate(). The caller must not touch it afterwards. */
+    public synchronized void release(IntBuffer page) {
+        Integer key = new Integer(page.capacity()*4);
+        Vector v = (Vector) free.get(key);
+        if(v == null) free.put(key,v = new Vector());
+        v.addElement(page);
+    }
+
+    /** Closes the backing file, if any. Pages handed out earlier must not be used afterwards. */
+    public synchronized void close() throws IOException {
+        slab = null;
+        free.clear();
+        if(file != null) file.close();
+    }
+
+    private ByteBuffer newSlab(int size) {
+        if(channel == null) return ByteBuffer.allocateDirect(size);
+        try {
+            ByteBuffer b = channel.map(FileChannel.MapMode.READ_WRITE,fileSize,size);
+            fileSize += size;
+            return b;
+        } catch(IOException e) {
+            throw new OutOfMemoryError("couldn't map guest memory: " + e.getMessage());
+        }
+    }
+}
@@ -27,6 +27,21 @@ public abstract class Runtime implements UsermodeConstants,Registers,Cloneable {
     /** Writable main memory pages.
         If the page is writable writePages[x] == readPages[x]; if not writePages[x] == null. */
     protected int[][] writePages;
+    /** Pages shared copy-on-write with a fork()ed process. These are in readPages but not in writePages
+        until the first write gives this process its own copy (null if there never were any) */
+    private boolean[] cowPages;
+    /** Off-heap main memory pages (see useOffHeapMemory()). When these are set they are used instead of
+        readPages and writePages (which are then empty), with the same rules: if the page is writable
+        writeBuffers[x] == readBuffers[x]; if not writeBuffers[x] == null. */
+    protected java.nio.IntBuffer[] readBuffers;
+    protected java.nio.IntBuffer[] writeBuffers;
+    /** Where readBuffers come from (null if memory is on the heap) */
+    private OffHeapMemory offHeapMemory;
+    /** Set once the read-only off-heap pages are also used by a fork()ed copy or a snapshot of this process */
+    private boolean sharedReadBuffers;
+    /** mmap()ed regions sorted by address (null if there are none). Never modified, mmap() and munmap()
+        replace it, so a clone can share it. */
+    private Mapping[] mappings;
     
     /** The address of the end of the heap */
     private int heapEnd;
@@ -34,6 +49,19 @@ public abstract class Runtime implements UsermodeConstants,Registers,Cloneable {
     /** Number of guard pages to keep between the stack and the heap */
     private static final int STACK_GUARD_PAGES = 4;
     
+    /** Free on-heap pages by page size (in words), shared by all instances. Pages freed by sbrk(), madvise(),
+        munmap() and restore() end up here and are handed out again by allocPage(). */
+    private static final java.util.Hashtable freePages = new java.util.Hashtable();
+    private static int freePagesSize;
+    /** The most bytes worth of pages freePages holds on to (nestedvm.pagepool system property) */
+    private static final int PAGE_POOL_SIZE;
+    static {
+        int n = 16*1024*1024;
+        String prop = Platform.getProperty("nestedvm.pagepool");
+        if(prop != null) try { n = Integer.parseInt(prop); } catch(NumberFormatException e) { }
+        PAGE_POOL_SIZE = n;
+    }
+    
     /** The last address the executable uses (other than the heap/stack) */
     protected abstract int heapStart();
         
@@ -122,15 +150,484 @@ public abstract class Runtime implements UsermodeConstants,Registers,Cloneable {
         r.startTime = 0;
         r.fds = new FD[OPEN_MAX];
         for(int i=0;i<OPEN_MAX;i++) if(fds[i] != null) r.fds[i] = fds[i].dup();
+        if(closeOnExec != null) r.closeOnExec = (boolean[]) closeOnExec.clone();
+        copyMemoryTo(r);
+        return r;
+    }
+    
+    /** Gives <i>r</i> a copy of our memory (shared copy-on-write if supported) */
+    private void copyMemoryTo(Runtime r) {
+        int totalPages = writePages.length;
+        r.mappings = mappings;
+        boolean[] shared = sharedMappingPages();
+        if(readBuffers != null) {
+            // no copy-on-write off the heap, read-only pages are shared, everything else is copied
+            r.readPages = r.writePages = new int[totalPages][];
+            r.cowPages = null;
+            r.offHeapMemory = offHeapMemory;
+            sharedReadBuffers = r.sharedReadBuffers = true;
+            r.readBuffers = new java.nio.IntBuffer[totalPages];
+            r.writeBuffers = new java.nio.IntBuffer[totalPages];
+            for(int i=0;i<totalPages;i++) {
+                if(readBuffers[i] == null) continue;
+                if(shared != null && shared[i]) {
+                    r.readBuffers[i] = r.writeBuffers[i] = writeBuffers[i];
+                } else if(writeBuffers[i] == null) {
+                    r.readBuffers[i] = readBuffers[i];
+                } else {
+                    java.nio.IntBuffer copy = offHeapMemory.allocate(1<<pageShift);
+                    copy.duplicate().put(readBuffers[i].duplicate());
+                    r.readBuffers[i] = r.writeBuffers[i] = copy;
+                }
+            }
+            return;
+        }
+        r.readBuffers = r.writeBuffers = null;
+        r.offHeapMemory = null;
+        if(supportsCopyOnWrite()) {
+            // share everything, writable pages become copy-on-write in both processes (except the ones of
+            // shared mappings, both processes keep writing to the same page)
+            if(cowPages == null) cowPages = new boolean[totalPages];
+            for(int i=0;i<totalPages;i++) {
+                if(writePages[i] == null || (shared != null && shared[i])) continue;
+                writePages[i] = null;
+                cowPages[i] = true;
+            }
+            r.readPages = (int[][]) readPages.clone();
+            r.writePages = new int[totalPages][];
+            if(shared != null) for(int i=0;i<totalPages;i++) if(shared[i]) r.writePages[i] = writePages[i];
+            r.cowPages = (boolean[]) cowPages.clone();
+        } else {
+            r.readPages = new int[totalPages][];
+            r.writePages = new int[totalPages][];
+            r.cowPages = null;
+            for(int i=0;i<totalPages;i++) {
+                if(readPages[i] == null) continue;
+                if(writePages[i] == null) r.readPages[i] = readPages[i];
+                else if(shared != null && shared[i]) r.readPages[i] = r.writePages[i] = writePages[i];
+                else r.readPages[i] = r.writePages[i] = (int[])writePages[i].clone();
+            }
+        }
+    }
+    
+    /** Returns true if every write to a page missing from writePages goes through copyOnWrite() (or one of the
+        memory access methods in this class). clone() only shares writable pages between the processes if this is true. */
+    protected boolean supportsCopyOnWrite() { return false; }
+    
+    /** Called when a write to <i>addr</i> finds no page in writePages. If the page is shared copy-on-write with
+        another process this process gets its own copy of it, which is returned. Otherwise the page really isn't
+        writable and null is returned. */
+    protected final int[] copyOnWrite(int addr) {
+        int page = addr >>> pageShift;
+        if(page < readPages.length && fillPage(page)) return writePages[page];
+        if(cowPages == null || page >= cowPages.length || !cowPages[page]) return null;
+        int[] copy = (int[]) readPages[page].clone();
+        readPages[page] = writePages[page] = copy;
+        cowPages[page] = false;
+        return copy;
+    }
+    
+    /** Returns true if every memory access either goes through the memory access methods in this class or
+        uses readBuffers/writeBuffers when they are set. useOffHeapMemory() only works if this is true. */
+    protected boolean supportsOffHeapMemory() { return false; }
+    
+    /** Moves all of the processes memory off the Java heap into pages allocated from <i>m</i> (JDK 1.4+).
+        Memory accesses get a bit slower, but the garbage collector no longer has to deal with guest memory.
+        This must be done before the process is started. Read-only pages are no longer shared with other
+        instances afterwards. */
+    public final void useOffHeapMemory(OffHeapMemory m) {
+        if(m == null) throw new NullPointerException();
+        if(state != STOPPED) throw new IllegalStateException("useOffHeapMemory() called in inappropriate state");
+        if(!supportsOffHeapMemory() || writePages.length == 1) throw new IllegalStateException(getClass().getName() + " can't use off-heap memory");
         int totalPages = writePages.length;
-        r.readPages = new int[totalPages][];
-        r.writePages = new int[totalPages][];
+        java.nio.IntBuffer[] rb = new java.nio.IntBuffer[totalPages];
+        java.nio.IntBuffer[] wb = new java.nio.IntBuffer[totalPages];
         for(int i=0;i<totalPages;i++) {
-            if(readPages[i] == null) continue;
-            if(writePages[i] == null) r.readPages[i] = readPages[i];
-            else r.readPages[i] = r.writePages[i] = (int[])writePages[i].clone();
+            java.nio.IntBuffer page;
+            boolean writable;
+            if(readBuffers != null) {
+                if(readBuffers[i] == null) continue;
+                page = m.allocate(1<<pageShift);
+                page.duplicate().put(readBuffers[i].duplicate());
+                writable = writeBuffers[i] != null;
+                if(writable) offHeapMemory.release(writeBuffers[i]);
+            } else {
+                if(readPages[i] == null) continue;
+                page = m.allocate(1<<pageShift);
+                page.duplicate().put(readPages[i]);
+                writable = writePages[i] != null || (cowPages != null && cowPages[i]);
+            }
+            rb[i] = page;
+            if(writable) wb[i] = page;
         }
-        return r;
+        readPages = writePages = new int[totalPages][];
+        cowPages = null;
+        readBuffers = rb;
+        writeBuffers = wb;
+        offHeapMemory = m;
+        sharedReadBuffers = false;
+    }
+    
+    /** Gives the pages only this process uses back to the page pool (or the off-heap allocator). The
+        memory is unusable afterwards, this is only for when it is about to be replaced. */
+    private void releasePages() {
+        if(writeBuffers == null) {
+            for(int i=0;i<writePages.length;i++) if(writePages[i] != null && !isSharedMappingPage(i)) freePage(writePages[i]);
+            return;
+        }
+        for(int i=0;i<writeBuffers.length;i++)
+            // mapped pages might be views of a file
+            if(writeBuffers[i] != null && findMapping(i) == null) offHeapMemory.release(writeBuffers[i]);
+        readBuffers = writeBuffers = null;
+    }
+    
+    /** Gives the off-heap pages of a process that is gone (exited or exec()ed) back to its OffHeapMemory, the
+        garbage collector can't. Read-only pages are only released if no fork()ed copy or snapshot could
+        still be using them. */
+    final void releaseOffHeapPages() {
+        if(readBuffers == null) return;
+        if(!sharedReadBuffers)
+            for(int i=0;i<readBuffers.length;i++)
+                if(readBuffers[i] != null && writeBuffers[i] == null && findMapping(i) == null) offHeapMemory.release(readBuffers[i]);
+        releasePages();
+    }
+    
+    /** Returns a view of <i>n</i> words of the off-heap page <i>page</i> starting at <i>index</i> */
+    private static java.nio.IntBuffer words(java.nio.IntBuffer page, int index, int n) {
+        java.nio.IntBuffer b = page.duplicate();
+        b.limit(index+n);
+        b.position(index);
+        return b;
+    }
+    
+    // mmap()
+    /* Mapped pages are only filled in when they are first touched. Every access that misses readPages or
+       writePages ends up in readFault() or copyOnWrite() (or the off-heap equivalents) which fill in the
+       page if it belongs to a mapping. File mappings read from a MappedByteBuffer. Off the heap
+       pages of read-only and shared mappings are views of it, on the heap they are copied in when
+       they are touched. Dirty pages of shared mappings are written back on munmap(), exec() and exit.
+       
+       fork() fills in every page of the writable shared mappings and gives the child the same pages
+       instead of copy-on-write ones, so parent and child see each other's changes. Read-only shared
+       mappings are still copied on the heap, they don't see changes another process makes to the file
+       after the page was touched. */
+    
+    private static final class Mapping {
+        final int start; // pages
+        final int end;
+        final int prot;
+        final boolean shared;
+        /** File contents starting at start, null for anonymous mappings. May be shorter than the mapping. */
+        final java.nio.ByteBuffer data;
+        
+        Mapping(int start, int end, int prot, boolean shared, java.nio.ByteBuffer data) {
+            this.start = start; this.end = end; this.prot = prot; this.shared = shared; this.data = data;
+        }
+        
+        /** Returns the part of this mapping from page <i>from</i> to page <i>to</i> */
+        Mapping sub(int from, int to, int pageShift) {
+            java.nio.ByteBuffer d = null;
+            int off = (from - start) << pageShift;
+            if(data != null && off < data.capacity()) {
+                d = data.duplicate();
+                d.position(off);
+                d = d.slice();
+            }
+            return new Mapping(from,to,prot,shared,d);
+        }
+    }
+    
+    private Mapping findMapping(int page) {
+        Mapping[] m = mappings;
+        if(m == null) return null;
+        for(int i=0;i<m.length;i++)
+            if(page >= m[i].start && page < m[i].end) return m[i];
+        return null;
+    }
+    
+    /** True if page <i>page</i> belongs to a writable shared mapping. Processes forked off this one may use the same page. */
+    private boolean isSharedMappingPage(int page) {
+        if(mappings == null) return false;
+        Mapping m = findMapping(page);
+        return m != null && m.shared && (m.prot & PROT_WRITE) != 0;
+    }
+    
+    /** Returns the pages of writable shared mappings (indexed by page number) after filling in all of them, or null
+        if there aren't any. fork() hands these to the child as they are instead of copying them. */
+    private boolean[] sharedMappingPages() {
+        Mapping[] ms = mappings;
+        if(ms == null) return null;
+        boolean[] shared = null;
+        for(int i=0;i<ms.length;i++) {
+            Mapping m = ms[i];
+            if(!m.shared || (m.prot & PROT_WRITE) == 0) continue;
+            if(shared == null) shared = new boolean[writePages.length];
+            for(int page=m.start;page<m.end;page++) {
+                mapPage(page);
+                shared[page] = true;
+            }
+        }
+        return shared;
+    }
+    
+    /** Fills in page <i>page</i> if it is part of a mapping and hasn't been touched yet. Returns false if it isn't. */
+    private boolean mapPage(int page) {
+        if(readBuffers != null ? readBuffers[page] != null : readPages[page] != null) return false;
+        Mapping m = findMapping(page);
+        if(m == null || (m.prot & (PROT_READ|PROT_WRITE)) == 0) return false;
+        boolean writable = (m.prot & PROT_WRITE) != 0;
+        int pageSize = 1<<pageShift;
+        java.nio.ByteBuffer src = null;
+        int off = (page - m.start) << pageShift;
+        int n = 0;
+        if(m.data != null && off < m.data.capacity()) {
+            src = m.data.duplicate();
+            n = min(pageSize,src.capacity() - off);
+            src.limit(off + n);
+            src.position(off);
+            src = src.slice();
+        }
+        if(readBuffers != null) {
+            java.nio.IntBuffer buf;
+            if(n == pageSize && (!writable || m.shared)) {
+                // no copy at all
+                buf = src.asIntBuffer();
+            } else {
+                buf = offHeapMemory.allocate(pageSize);
+                if(src != null) {
+                    buf.duplicate().put(src.asIntBuffer());
+                    if((n&3) != 0) buf.put(n>>>2,tailWord(src,n));
+                }
+            }
+            readBuffers[page] = buf;
+            if(writable) writeBuffers[page] = buf;
+        } else {
+            int[] buf = allocPage(pageSize>>>2);
+            if(src != null) {
+                src.asIntBuffer().get(buf,0,n>>>2);
+                if((n&3) != 0) buf[n>>>2] = tailWord(src,n);
+            }
+            readPages[page] = buf;
+            if(writable) writePages[page] = buf;
+        }
+        return true;
+    }
+    
+    /** Returns the last (n&3) bytes of the first <i>n</i> bytes of <i>b</i> as a big endian word */
+    private static int tailWord(java.nio.ByteBuffer b, int n) {
+        int word = 0;
+        for(int i=n&~3;i<n;i++) word |= (b.get(i)&0xff) << ((3-(i&3))<<3);
+        return word;
+    }
+    
+    /** True if page <i>page</i> is part of the heap or the stack, which are zero filled when they are first touched */
+    private boolean isZeroFillPage(int page) {
+        if(page >= stackBottom >>> pageShift) return true;
+        int pageMask = (1<<pageShift) - 1;
+        return page >= (heapStart() + pageMask) >>> pageShift && page < (heapEnd + pageMask) >>> pageShift;
+    }
+    
+    /** Fills in page <i>page</i> if it hasn't been touched yet and is part of a mapping, the heap or the stack (stack
+        pages start out missing, heap pages are missing after madvise(MADV_DONTNEED)). Returns false if it isn't,
+        the access really is a fault. */
+    private boolean fillPage(int page) {
+        if(mappings != null && mapPage(page)) return true;
+        if(!isZeroFillPage(page)) return false;
+        if(readBuffers != null) {
+            if(readBuffers[page] != null) return false;
+            initBuffer(page,false);
+        } else {
+            if(readPages[page] != null) return false;
+            initPage(page);
+        }
+        return true;
+    }
+    
+    /** Called when a read from <i>addr</i> finds no page in readPages. Returns the page if it could be filled in
+        (it is part of a mapping or the heap and hasn't been touched yet), otherwise null. */
+    protected final int[] readFault(int addr) {
+        int page = addr >>> pageShift;
+        if(page >= readPages.length || !fillPage(page)) return null;
+        return readPages[page];
+    }
+    
+    /** Like readFault() for off-heap memory */
+    protected final java.nio.IntBuffer readBufferFault(int addr) {
+        int page = addr >>> pageShift;
+        if(page >= readBuffers.length || !fillPage(page)) return null;
+        return readBuffers[page];
+    }
+    
+    /** Called when a write to <i>addr</i> finds no page in writeBuffers. Returns the page if it could be filled in
+        and is writable, otherwise null. */
+    protected final java.nio.IntBuffer writeBufferFault(int addr) {
+        int page = addr >>> pageShift;
+        if(page >= writeBuffers.length || !fillPage(page)) return null;
+        return writeBuffers[page];
+    }
+    
+    /** Writes the dirty pages of shared mappings between page <i>from</i> and page <i>to</i> back to their files */
+    private void syncMappings(int from, int to) {
+        Mapping[] ms = mappings;
+        if(ms == null) return;
+        for(int i=0;i<ms.length;i++) {
+            Mapping m = ms[i];
+            if(!m.shared || m.data == null || (m.prot & PROT_WRITE) == 0) continue;
+            for(int page=max(from,m.start);page<min(to,m.end);page++) {
+                int off = (page - m.start) << pageShift;
+                if(off >= m.data.capacity()) break;
+                int n = min(1<<pageShift,m.data.capacity() - off);
+                if(readBuffers != null) {
+                    java.nio.IntBuffer buf = writeBuffers[page];
+                    // full pages are views of the file already
+                    if(buf == null || n == (1<<pageShift)) continue;
+                    for(int j=0;j<n;j++) m.data.put(off+j,(byte)(buf.get(j>>>2) >>> ((3-(j&3))<<3)));
+                } else {
+                    int[] buf = writePages[page];
+                    // a page shared copy-on-write can be dirty too
+                    if(buf == null && cowPages != null && cowPages[page]) buf = readPages[page];
+                    if(buf == null) continue;
+                    for(int j=0;j<n;j++) m.data.put(off+j,(byte)(buf[j>>>2] >>> ((3-(j&3))<<3)));
+                }
+            }
+        }
+    }
+    
+    /** Writes the dirty pages of every shared mapping back to their files. exec() calls this before it throws
+        the image away. */
+    final void syncMappings() { syncMappings(0,writePages.length); }
+    
+    /** Throws away the pages and mappings between page <i>from</i> and page <i>to</i> */
+    private void unmapPages(int from, int to) {
+        Mapping[] ms = mappings;
+        if(ms == null) return;
+        syncMappings(from,to);
+        int count = 0;
+        Mapping[] out = new Mapping[ms.length+1];
+        for(int i=0;i<ms.length;i++) {
+            Mapping m = ms[i];
+            if(m.end <= from || m.start >= to) { out[count++] = m; continue; }
+            discardPages(max(from,m.start),min(to,m.end));
+            if(m.start < from) out[count++] = m.sub(m.start,from,pageShift);
+            if(m.end > to) out[count++] = m.sub(to,m.end,pageShift);
+        }
+        if(count == 0) {
+            mappings = null;
+        } else {
+            mappings = new Mapping[count];
+            System.arraycopy(out,0,mappings,0,count);
+        }
+    }
+    
+    /** The lowest address in use by mappings or the stack, the heap can't grow past this */
+    private int heapLimit() {
+        Mapping[] ms = mappings;
+        return ms == null ? stackBottom : ms[0].start << pageShift;
+    }
+    
+    /** The mmap syscall */
+    private int sys_mmap(int addr, int len, int prot, int flags, int fdn, int off) {
+        if(writePages.length == 1) return -ENOMEM;
+        int pageMask = (1<<pageShift) - 1;
+        if(len <= 0 || (off&pageMask) != 0 || off < 0) return -EINVAL;
+        int type = flags & (MAP_SHARED|MAP_PRIVATE);
+        if(type != MAP_SHARED && type != MAP_PRIVATE) return -EINVAL;
+        boolean shared = type == MAP_SHARED;
+        boolean writable = (prot & PROT_WRITE) != 0;
+        int pages = (int)(((len&0xffffffffL) + pageMask) >>> pageShift);
+        
+        java.nio.ByteBuffer data = null;
+        if((flags & MAP_ANONYMOUS) == 0) {
+            if(fdn < 0 || fdn >= OPEN_MAX || fds[fdn] == null) return -EBADFD;
+            FD fd = fds[fdn];
+            Seekable s = fd.seekable();
+            if(s == null) return -ENODEV;
+            if((fd.flags()&3) == WR_ONLY || (shared && writable && (fd.flags()&3) == RD_ONLY)) return -EACCES;
+            try {
+                int n = min(len,s.length() - off);
+                // private writable pages are copies anyway, only map read-write if changes have to go to the file
+                if(n > 0) data = s.map(off,n,shared && writable);
+            } catch(IOException e) {
+                if(STDERR_DIAG) System.err.println("WARNING: mmap of fd " + fdn + " failed: " + e);
+                return -ENODEV;
+            }
+        }
+        
+        // mappings go between the heap and the stack, top down
+        int lowest = (heapEnd + pageMask) >>> pageShift;
+        int highest = (stackBottom >>> pageShift) - STACK_GUARD_PAGES;
+        int start;
+        if((flags & MAP_FIXED) != 0) {
+            if((addr&pageMask) != 0) return -EINVAL;
+            start = addr >>> pageShift;
+            if(start < lowest || start + pages > highest) return -EINVAL;
+            unmapPages(start,start+pages);
+        } else {
+            Mapping[] ms = mappings;
+            int top = highest;
+            start = -1;
+            for(int i=ms == null ? -1 : ms.length-1;;i--) {
+                int bottom = i < 0 ? lowest : ms[i].end;
+                if(top - bottom >= pages) { start = top - pages; break; }
+                if(i < 0) break;
+                top = ms[i].start;
+            }
+            if(start < 0) return -ENOMEM;
+        }
+        
+        Mapping m = new Mapping(start,start+pages,prot,shared,data);
+        Mapping[] ms = mappings;
+        int n = ms == null ? 0 : ms.length;
+        Mapping[] out = new Mapping[n+1];
+        int j = 0;
+        for(int i=0;i<n;i++) {
+            if(j == i && ms[i].start > start) out[j++] = m;
+            out[j++] = ms[i];
+        }
+        if(j == n) out[j] = m;
+        mappings = out;
+        return start << pageShift;
+    }
+    
+    /** The munmap syscall */
+    private int sys_munmap(int addr, int len) {
+        int pageMask = (1<<pageShift) - 1;
+        if((addr&pageMask) != 0 || len <= 0) return -EINVAL;
+        int start = addr >>> pageShift;
+        int end = (int)((((addr&0xffffffffL) + (len&0xffffffffL)) + pageMask) >>> pageShift);
+        unmapPages(start,end);
+        return 0;
+    }
+    
+    /** The madvise syscall. Only MADV_DONTNEED does anything: heap, stack and mmap()ed pages in the range are
+        thrown away and come back zero filled (or from their file) the next time they are touched. Runtimes that
+        can't take faults on missing pages get the fresh pages right away. */
+    private int sys_madvise(int addr, int len, int advice) {
+        // same page size sysconf(_SC_PAGESIZE) returns
+        int pageMask = (writePages.length == 1 ? 4096 : 1<<pageShift) - 1;
+        if((addr&pageMask) != 0 || len < 0) return -EINVAL;
+        switch(advice) {
+            case MADV_NORMAL: case MADV_RANDOM: case MADV_SEQUENTIAL: case MADV_WILLNEED: return 0;
+            case MADV_DONTNEED: break;
+            default: return -EINVAL;
+        }
+        // the page is all of memory, there is nothing to give back and nothing we could zero safely
+        if(writePages.length == 1) return -ENOSYS;
+        boolean refill = !canFaultPages();
+        int start = addr >>> pageShift;
+        long last = (((addr&0xffffffffL) + (len&0xffffffffL)) + pageMask) >>> pageShift;
+        int end = last > readPages.length ? readPages.length : (int) last;
+        for(int page=start;page<end;page++) {
+            if(!isZeroFillPage(page)) {
+                Mapping m = findMapping(page);
+                if(m == null) continue;
+                // changes to shared mappings aren't lost, they're in the file
+                if(m.shared) syncMappings(page,page+1);
+            }
+            discardPages(page,page+1);
+            if(refill) fillPage(page);
+        }
+        return 0;
     }
     
     protected Runtime(int pageSize, int totalPages) { this(pageSize, totalPages,false); }
@@ -156,7 +653,7 @@ public abstract class Runtime implements UsermodeConstants,Registers,Cloneable {
                 throw new IllegalArgumentException("total pages too small");
         } else {
             if(pageSize < heapStart + stackSize) throw new IllegalArgumentException("total memory too small");
-            heapStart = (heapStart + 4095) & ~4096;
+            heapStart = (heapStart + 4095) & ~4095;
         }
         
         stackBottom = totalMemory - stackSize;
@@ -167,9 +664,10 @@ public abstract class Runtime implements UsermodeConstants,Registers,Cloneable {
         
         if(totalPages == 1) {
             readPages[0] = writePages[0] = new int[pageSize>>2];
-        } else {
+        } else if(!canFaultPages()) {
+            // otherwise stack pages are filled in when they are first touched (see fillPage())
             for(int i=(stackBottom >>> pageShift);i<writePages.length;i++) {
-                readPages[i] = writePages[i] = new int[pageSize>>2];
+                readPages[i] = writePages[i] = allocPage(pageSize>>2);
             }
         }
 
@@ -184,22 +682,99 @@ public abstract class Runtime implements UsermodeConstants,Registers,Cloneable {
         }
     }
     
+    // Shared read-only pages
+    /* Pages that are only ever filled by read-only initPages() calls come out the same in every instance
+       of a class (or image). The first instance to finish loading publishes them with shareReadOnlyPages() and
+       later instances just reference them from readPages instead of building their own copies. */
+    
+    private static final class SharedPages {
+        final int pageShift;
+        final int[][] pages; // indexed by page number, only as long as it needs to be
+        SharedPages(int pageShift, int[][] pages) { this.pageShift = pageShift; this.pages = pages; }
+    }
+    
+    private static final java.util.WeakHashMap sharedPages = new java.util.WeakHashMap();
+    
+    /** The shared read-only pages for this instance, looked up on the first initPages() call */
+    private int[][] sharedROPages;
+    private boolean sharedROPagesLookedUp;
+    
+    /** Returns the key read-only pages are shared under. Every instance returning an equal key must build
+        identical read-only pages. The pages are only kept while the key is reachable, so this should be the
+        same object every time, one that lives as long as the image. Returns null to disable sharing. */
+    protected Object sharedPagesKey() { return getClass(); }
+    
+    private int[][] sharedROPages() {
+        if(sharedROPagesLookedUp) return sharedROPages;
+        sharedROPagesLookedUp = true;
+        Object key = sharedPagesKey();
+        if(key == null || writePages.length == 1) return null;
+        synchronized(sharedPages) {
+            SharedPages sp = (SharedPages) sharedPages.get(key);
+            if(sp != null && sp.pageShift == pageShift && sp.pages.length <= readPages.length) sharedROPages = sp.pages;
+        }
+        return sharedROPages;
+    }
+    
+    /** Installs the shared copies of every page in <i>words</i> words starting at <i>addr</i> and returns true.
+        If any of them isn't available nothing is changed and false is returned. */
+    protected final boolean initSharedPages(int addr, int words) {
+        int[][] shared = readBuffers == null ? sharedROPages() : null;
+        if(shared == null || words <= 0) return false;
+        int first = addr >>> pageShift;
+        int last = (addr + words*4 - 1) >>> pageShift;
+        if(last >= shared.length) return false;
+        for(int page=first;page<=last;page++)
+            if(shared[page] == null || readPages[page] != null) return false;
+        for(int page=first;page<=last;page++) readPages[page] = shared[page];
+        return true;
+    }
+    
+    /** Publishes the read-only pages of this instance for later instances with the same sharedPagesKey().
+        Called once loading is done, before any code runs. */
+    protected final void shareReadOnlyPages() {
+        Object key = sharedPagesKey();
+        if(key == null || writePages.length == 1 || readBuffers != null) return;
+        synchronized(sharedPages) {
+            SharedPages sp = (SharedPages) sharedPages.get(key);
+            if(sp != null && sp.pageShift == pageShift) return;
+            int n = 0;
+            for(int i=0;i<readPages.length;i++)
+                if(readPages[i] != null && writePages[i] == null) n = i + 1;
+            if(n == 0 || cowPages != null) return;
+            int[][] pages = new int[n][];
+            for(int i=0;i<n;i++)
+                if(readPages[i] != null && writePages[i] == null) pages[i] = readPages[i];
+            sharedPages.put(key,new SharedPages(pageShift,pages));
+        }
+    }
+    
     /** Copy everything from <i>src</i> to <i>addr</i> initializing uninitialized pages if required. 
        Newly initalized pages will be marked read-only if <i>ro</i> is set */
     protected final void initPages(int[] src, int addr, boolean ro) {
         int pageWords = (1<<pageShift)>>>2;
         int pageMask = (1<<pageShift) - 1;
+        int[][] shared = ro && readBuffers == null ? sharedROPages() : null;
         
         for(int i=0;i<src.length;) {
             int page = addr >>> pageShift;
             int start = (addr&pageMask)>>2;
             int elements = min(pageWords-start,src.length-i);
-            if(readPages[page]==null) {
-                initPage(page,ro);
-            } else if(!ro) {
-                if(writePages[page] == null) writePages[page] = readPages[page];
+            if(readBuffers != null) {
+                if(readBuffers[page] == null) initBuffer(page,ro);
+                else if(!ro && writeBuffers[page] == null) writeBuffers[page] = readBuffers[page];
+                words(readBuffers[page],start,elements).put(src,i,elements);
+            } else if(shared != null && page < shared.length && shared[page] != null && (readPages[page] == null || readPages[page] == shared[page])) {
+                // already built by an earlier instance
+                readPages[page] = shared[page];
+            } else {
+                if(readPages[page]==null) {
+                    initPage(page,ro);
+                } else if(!ro) {
+                    if(writePages[page] == null) writePages[page] = readPages[page];
+                }
+                System.arraycopy(src,i,readPages[page],start,elements);
             }
-            System.arraycopy(src,i,readPages[page],start,elements);
             i += elements;
             addr += elements*4;
         }
@@ -214,8 +789,15 @@ public abstract class Runtime implements UsermodeConstants,Registers,Cloneable {
             int page = addr >>> pageShift;
             int start = (addr&pageMask)>>2;
             int elements = min(pageWords-start,words-i);
-            if(readPages[page]==null) {
-                readPages[page] = writePages[page] = new int[pageWords];
+            if(readBuffers != null) {
+                if(readBuffers[page] == null) {
+                    initBuffer(page,false);
+                } else {
+                    if(writeBuffers[page] == null) writeBuffers[page] = readBuffers[page];
+                    for(int j=start;j<start+elements;j++) writeBuffers[page].put(j,0);
+                }
+            } else if(readPages[page]==null) {
+                readPages[page] = writePages[page] = allocPage(pageWords);
             } else {
                 if(writePages[page] == null) writePages[page] = readPages[page];
                 for(int j=start;j<start+elements;j++) writePages[page][j] = 0;
@@ -228,6 +810,7 @@ public abstract class Runtime implements UsermodeConstants,Registers,Cloneable {
     /** Copies <i>length</i> bytes from the processes memory space starting at
         <i>addr</i> INTO a java byte array <i>a</i> */
     public final void copyin(int addr, byte[] buf, int count) throws ReadFaultException {
+        if(readBuffers != null) { copyin(addr,java.nio.ByteBuffer.wrap(buf,0,count),count); return; }
         int pageWords = (1<<pageShift)>>>2;
         int pageMask = pageWords - 1;
 
@@ -247,7 +830,7 @@ public abstract class Runtime implements UsermodeConstants,Registers,Cloneable {
             int a = addr>>>2;
             while(c != 0) {
                 int[] page = readPages[a >>> (pageShift-2)];
-                if(page == null) throw new ReadFaultException(a<<2);
+                if(page == null && (page = readFault(a<<2)) == null) throw new ReadFaultException(a<<2);
                 int index = a&pageMask;
                 int n = min(c,pageWords-index);
                 for(int i=0;i<n;i++,x+=4) {
@@ -272,6 +855,7 @@ public abstract class Runtime implements UsermodeConstants,Registers,Cloneable {
     /** Copies <i>length</i> bytes OUT OF the java array <i>a</i> into the processes memory
         space at <i>addr</i> */
     public final void copyout(byte[] buf, int addr, int count) throws FaultException {
+        if(readBuffers != null) { copyout(java.nio.ByteBuffer.wrap(buf,0,count),addr,count); return; }
         int pageWords = (1<<pageShift)>>>2;
         int pageWordMask = pageWords - 1;
         
@@ -293,7 +877,7 @@ public abstract class Runtime implements UsermodeConstants,Registers,Cloneable {
             int a = addr>>>2;
             while(c != 0) {
                 int[] page = writePages[a >>> (pageShift-2)];
-                if(page == null) throw new WriteFaultException(a<<2);
+                if(page == null && (page = copyOnWrite(a<<2)) == null) throw new WriteFaultException(a<<2);
                 int index = a&pageWordMask;
                 int n = min(c,pageWords-index);
                 for(int i=0;i<n;i++,x+=4)
@@ -314,6 +898,166 @@ public abstract class Runtime implements UsermodeConstants,Registers,Cloneable {
         }
     }
     
+    /** Returns the size of a page in bytes. Memory views can't cross a page boundary. */
+    public final int getPageSize() { return 1<<pageShift; }
+    
+    /** Copies <i>words</i> 32-bit words from the processes memory at <i>addr</i> (word aligned) into <i>dst</i>
+        starting at <i>off</i>. Words are copied a page at a time without any byte shuffling. */
+    public final void copyinWords(int addr, int[] dst, int off, int words) throws ReadFaultException {
+        if((addr&3) != 0) throw new ReadFaultException(addr);
+        int pageWords = (1<<pageShift)>>>2;
+        int pageWordMask = pageWords - 1;
+        int a = addr>>>2;
+        while(words != 0) {
+            int index = a&pageWordMask;
+            int n = min(words,pageWords-index);
+            if(readBuffers != null) {
+                java.nio.IntBuffer page = readBuffers[a >>> (pageShift-2)];
+                if(page == null && (page = readBufferFault(a<<2)) == null) throw new ReadFaultException(a<<2);
+                words(page,index,n).get(dst,off,n);
+            } else {
+                int[] page = readPages[a >>> (pageShift-2)];
+                if(page == null && (page = readFault(a<<2)) == null) throw new ReadFaultException(a<<2);
+                System.arraycopy(page,index,dst,off,n);
+            }
+            a += n; off += n; words -= n;
+        }
+    }
+    
+    /** Copies <i>words</i> 32-bit words from <i>src</i> starting at <i>off</i> into the processes memory at
+        <i>addr</i> (word aligned) */
+    public final void copyoutWords(int[] src, int off, int addr, int words) throws FaultException {
+        if((addr&3) != 0) throw new WriteFaultException(addr);
+        int pageWords = (1<<pageShift)>>>2;
+        int pageWordMask = pageWords - 1;
+        int a = addr>>>2;
+        while(words != 0) {
+            int index = a&pageWordMask;
+            int n = min(words,pageWords-index);
+            if(writeBuffers != null) {
+                java.nio.IntBuffer page = writeBuffers[a >>> (pageShift-2)];
+                if(page == null && (page = writeBufferFault(a<<2)) == null) throw new WriteFaultException(a<<2);
+                words(page,index,n).put(src,off,n);
+            } else {
+                int[] page = writePages[a >>> (pageShift-2)];
+                if(page == null && (page = copyOnWrite(a<<2)) == null) throw new WriteFaultException(a<<2);
+                System.arraycopy(src,off,page,index,n);
+            }
+            a += n; off += n; words -= n;
+        }
+    }
+    
+    /** Copies <i>count</i> bytes from the processes memory at <i>addr</i> into <i>dst</i> at its current position (JDK 1.4+).
+        Whole words are transfered with bulk big-endian puts, so this is much faster than copyin() for large copies. */
+    public final void copyin(int addr, java.nio.ByteBuffer dst, int count) throws ReadFaultException {
+        if(dst.remaining() < count) throw new IndexOutOfBoundsException("buffer too small");
+        java.nio.ByteOrder order = dst.order();
+        dst.order(java.nio.ByteOrder.BIG_ENDIAN);
+        try {
+            while(count > 0 && (addr&3) != 0) {
+                dst.put((byte)(memRead(addr&~3) >>> ((3-(addr&3))<<3)));
+                addr++; count--;
+            }
+            int pageWords = (1<<pageShift)>>>2;
+            int pageWordMask = pageWords - 1;
+            int a = addr>>>2;
+            int c = count>>>2;
+            while(c != 0) {
+                int index = a&pageWordMask;
+                int n = min(c,pageWords-index);
+                if(readBuffers != null) {
+                    java.nio.IntBuffer page = readBuffers[a >>> (pageShift-2)];
+                    if(page == null && (page = readBufferFault(a<<2)) == null) throw new ReadFaultException(a<<2);
+                    dst.asIntBuffer().put(words(page,index,n));
+                } else {
+                    int[] page = readPages[a >>> (pageShift-2)];
+                    if(page == null && (page = readFault(a<<2)) == null) throw new ReadFaultException(a<<2);
+                    dst.asIntBuffer().put(page,index,n);
+                }
+                dst.position(dst.position() + n*4);
+                a += n; c -= n;
+            }
+            addr = a<<2; count &= 3;
+            for(int i=0;i<count;i++) dst.put((byte)(memRead(addr) >>> ((3-i)<<3)));
+        } finally {
+            dst.order(order);
+        }
+    }
+    
+    /** Copies <i>count</i> bytes from <i>src</i> at its current position into the processes memory at <i>addr</i> (JDK 1.4+) */
+    public final void copyout(java.nio.ByteBuffer src, int addr, int count) throws FaultException {
+        if(src.remaining() < count) throw new IndexOutOfBoundsException("buffer too small");
+        java.nio.ByteOrder order = src.order();
+        src.order(java.nio.ByteOrder.BIG_ENDIAN);
+        try {
+            while(count > 0 && (addr&3) != 0) {
+                int shift = (3-(addr&3))<<3;
+                int word = memRead(addr&~3);
+                memWrite(addr&~3,(word&~(0xff<<shift))|((src.get()&0xff)<<shift));
+                addr++; count--;
+            }
+            int pageWords = (1<<pageShift)>>>2;
+            int pageWordMask = pageWords - 1;
+            int a = addr>>>2;
+            int c = count>>>2;
+            while(c != 0) {
+                int index = a&pageWordMask;
+                int n = min(c,pageWords-index);
+                if(writeBuffers != null) {
+                    java.nio.IntBuffer page = writeBuffers[a >>> (pageShift-2)];
+                    if(page == null && (page = writeBufferFault(a<<2)) == null) throw new WriteFaultException(a<<2);
+                    java.nio.IntBuffer in = src.asIntBuffer();
+                    in.limit(n);
+                    words(page,index,n).put(in);
+                } else {
+                    int[] page = writePages[a >>> (pageShift-2)];
+                    if(page == null && (page = copyOnWrite(a<<2)) == null) throw new WriteFaultException(a<<2);
+                    src.asIntBuffer().get(page,index,n);
+                }
+                src.position(src.position() + n*4);
+                a += n; c -= n;
+            }
+            addr = a<<2; count &= 3;
+            for(int i=0;i<count;i++) {
+                int shift = (3-i)<<3;
+                int word = memRead(addr);
+                memWrite(addr,(word&~(0xff<<shift))|((src.get()&0xff)<<shift));
+            }
+        } finally {
+            src.order(order);
+        }
+    }
+    
+    /** Returns an IntBuffer backed directly by <i>words</i> words of the processes memory at <i>addr</i> (JDK 1.4+).
+        Each int is one big-endian guest word. The range must lie within a single page (see getPageSize()). Nothing
+        is copied, reads see the guest's writes and, if <i>writable</i>, the guest sees the buffer's. The view is
+        only good until the page is replaced (a copy-on-write fault, exec(), or the memory being freed), don't keep
+        it across calls into the process. */
+    public final java.nio.IntBuffer intBuffer(int addr, int words, boolean writable) throws FaultException {
+        if((addr&3) != 0 || words < 0) throw new IllegalArgumentException("bad address or length");
+        int pageWords = (1<<pageShift)>>>2;
+        int index = (addr>>>2)&(pageWords-1);
+        if(index + words > pageWords) throw new IllegalArgumentException("range crosses a page boundary");
+        int pn = addr >>> pageShift;
+        if(readBuffers != null) {
+            java.nio.IntBuffer page = writable ? writeBuffers[pn] : readBuffers[pn];
+            if(page == null) page = writable ? writeBufferFault(addr) : readBufferFault(addr);
+            if(page == null) throw writable ? (FaultException) new WriteFaultException(addr) : new ReadFaultException(addr);
+            java.nio.IntBuffer b = words(page,index,words).slice();
+            return writable ? b : b.asReadOnlyBuffer();
+        }
+        int[] page;
+        if(writable) {
+            page = writePages[pn];
+            if(page == null && (page = copyOnWrite(addr)) == null) throw new WriteFaultException(addr);
+        } else {
+            page = readPages[pn];
+            if(page == null && (page = readFault(addr)) == null) throw new ReadFaultException(addr);
+        }
+        java.nio.IntBuffer b = java.nio.IntBuffer.wrap(page,index,words).slice();
+        return writable ? b : b.asReadOnlyBuffer();
+    }
+    
     public final void memcpy(int dst, int src, int count) throws FaultException {
         int pageWords = (1<<pageShift)>>>2;
         int pageWordMask = pageWords - 1;
@@ -323,14 +1067,22 @@ public abstract class Runtime implements UsermodeConstants,Registers,Cloneable {
                 int s = src>>>2;
                 int d = dst>>>2;
                 while(c != 0) {
-                    int[] srcPage = readPages[s>>>(pageShift-2)];
-                    if(srcPage == null) throw new ReadFaultException(s<<2);
-                    int[] dstPage = writePages[d>>>(pageShift-2)];
-                    if(dstPage == null) throw new WriteFaultException(d<<2);
                     int srcIndex = s&pageWordMask;
                     int dstIndex = d&pageWordMask;
                     int n = min(c,pageWords-max(srcIndex,dstIndex));
-                    System.arraycopy(srcPage,srcIndex,dstPage,dstIndex,n);
+                    if(readBuffers != null) {
+                        java.nio.IntBuffer srcPage = readBuffers[s>>>(pageShift-2)];
+                        if(srcPage == null && (srcPage = readBufferFault(s<<2)) == null) throw new ReadFaultException(s<<2);
+                        java.nio.IntBuffer dstPage = writeBuffers[d>>>(pageShift-2)];
+                        if(dstPage == null && (dstPage = writeBufferFault(d<<2)) == null) throw new WriteFaultException(d<<2);
+                        words(dstPage,dstIndex,n).put(words(srcPage,srcIndex,n));
+                    } else {
+                        int[] srcPage = readPages[s>>>(pageShift-2)];
+                        if(srcPage == null && (srcPage = readFault(s<<2)) == null) throw new ReadFaultException(s<<2);
+                        int[] dstPage = writePages[d>>>(pageShift-2)];
+                        if(dstPage == null && (dstPage = copyOnWrite(d<<2)) == null) throw new WriteFaultException(d<<2);
+                        System.arraycopy(srcPage,srcIndex,dstPage,dstIndex,n);
+                    }
                     s += n; d += n; c -= n;
                 }
                 src = s<<2; dst = d<<2; count&=3;
@@ -360,6 +1112,7 @@ public abstract class Runtime implements UsermodeConstants,Registers,Cloneable {
         int pageWordMask = pageWords - 1;
         
         int fourBytes = ((ch&0xff)<<24)|((ch&0xff)<<16)|((ch&0xff)<<8)|((ch&0xff)<<0);
+        if(count == 0) return;
         if((addr&3)!=0) {
             int word = memRead(addr&~3);
             switch(addr&3) {
@@ -374,12 +1127,18 @@ public abstract class Runtime implements UsermodeConstants,Registers,Cloneable {
             int c = count>>2;
             int a = addr>>>2;
             while(c != 0) {
-                int[] page = readPages[a>>>(pageShift-2)];
-                if(page == null) throw new WriteFaultException(a<<2);
                 int index = a&pageWordMask;
                 int n = min(c,pageWords-index);
-                /* Arrays.fill(page,index,index+n,fourBytes);*/
-                for(int i=index;i<index+n;i++) page[i] = fourBytes;
+                if(writeBuffers != null) {
+                    java.nio.IntBuffer page = writeBuffers[a>>>(pageShift-2)];
+                    if(page == null && (page = writeBufferFault(a<<2)) == null) throw new WriteFaultException(a<<2);
+                    for(int i=index;i<index+n;i++) page.put(i,fourBytes);
+                } else {
+                    int[] page = writePages[a>>>(pageShift-2)];
+                    if(page == null && (page = copyOnWrite(a<<2)) == null) throw new WriteFaultException(a<<2);
+                    /* Arrays.fill(page,index,index+n,fourBytes);*/
+                    for(int i=index;i<index+n;i++) page[i] = fourBytes;
+                }
                 a += n; c -= n;
             }
             addr = a<<2; count&=3;
@@ -404,13 +1163,20 @@ public abstract class Runtime implements UsermodeConstants,Registers,Cloneable {
     protected final int unsafeMemRead(int addr) throws ReadFaultException {
         int page = addr >>> pageShift;
         int entry = (addr&(1<<pageShift) - 1)>>2;
+        if(readBuffers != null) {
+            java.nio.IntBuffer b = page < readBuffers.length ? readBuffers[page] : null;
+            if(b == null && (b = readBufferFault(addr)) == null) throw new ReadFaultException(addr);
+            return b.get(entry);
+        }
         try {
             return readPages[page][entry];
         } catch(ArrayIndexOutOfBoundsException e) {
             if(page < 0 || page >= readPages.length) throw new ReadFaultException(addr);
             throw e; // should never happen
         } catch(NullPointerException e) {
-            throw new ReadFaultException(addr);
+            int[] p = readFault(addr);
+            if(p == null) throw new ReadFaultException(addr);
+            return p[entry];
         }
     }
     
@@ -423,13 +1189,21 @@ public abstract class Runtime implements UsermodeConstants,Registers,Cloneable {
     protected final void unsafeMemWrite(int addr, int value) throws WriteFaultException {
         int page = addr >>> pageShift;
         int entry = (addr&(1<<pageShift) - 1)>>2;
+        if(writeBuffers != null) {
+            java.nio.IntBuffer b = page < writeBuffers.length ? writeBuffers[page] : null;
+            if(b == null && (b = writeBufferFault(addr)) == null) throw new WriteFaultException(addr);
+            b.put(entry,value);
+            return;
+        }
         try {
             writePages[page][entry] = value;
         } catch(ArrayIndexOutOfBoundsException e) {
             if(page < 0 || page >= writePages.length) throw new WriteFaultException(addr);
             throw e; // should never happen
         } catch(NullPointerException e) {
-            throw new WriteFaultException(addr);
+            int[] copy = copyOnWrite(addr);
+            if(copy == null) throw new WriteFaultException(addr);
+            copy[entry] = value;
         }
     }
     
@@ -437,12 +1211,98 @@ public abstract class Runtime implements UsermodeConstants,Registers,Cloneable {
     private final int[] initPage(int page) { return initPage(page,false); }
     /** Created a new non-empty page at page number <i>page</i>. If <i>ro</i> is set the page will be read-only */
     private final int[] initPage(int page, boolean ro) {
-        int[] buf = new int[(1<<pageShift)>>>2];
+        int[] buf = allocPage((1<<pageShift)>>>2);
         writePages[page] = ro ? null : buf;
         readPages[page] = buf;
         return buf;
     }
     
+    /** Like initPage() but for off-heap memory */
+    private final java.nio.IntBuffer initBuffer(int page, boolean ro) {
+        java.nio.IntBuffer buf = offHeapMemory.allocate(1<<pageShift);
+        writeBuffers[page] = ro ? null : buf;
+        readBuffers[page] = buf;
+        return buf;
+    }
+    
+    /** Returns a zero filled page of <i>words</i> words, reusing a free one if there is one */
+    private static int[] allocPage(int words) {
+        int[] page = null;
+        synchronized(freePages) {
+            java.util.Vector v = (java.util.Vector) freePages.get(new Integer(words));
+            if(v != null && v.size() != 0) {
+                page = (int[]) v.lastElement();
+                v.removeElementAt(v.size()-1);
+                freePagesSize -= words*4;
+            }
+        }
+        if(page == null) return new int[words];
+        for(int i=0;i<words;i++) page[i] = 0;
+        return page;
+    }
+    
+    /** Puts <i>page</i> in the pool of free pages. Nobody may use it afterwards. */
+    private static void freePage(int[] page) {
+        synchronized(freePages) {
+            if(freePagesSize + page.length*4 > PAGE_POOL_SIZE) return;
+            Integer key = new Integer(page.length);
+            java.util.Vector v = (java.util.Vector) freePages.get(key);
+            if(v == null) freePages.put(key,v = new java.util.Vector());
+            v.addElement(page);
+            freePagesSize += page.length*4;
+        }
+    }
+    
+    /** True if pages can be missing from readPages and writePages (or the off-heap equivalents) while the
+        process runs, every access to them ends up in one of the fault handlers which fill them in */
+    private boolean canFaultPages() {
+        return writePages.length > 1 && (supportsCopyOnWrite() || supportsOffHeapMemory());
+    }
+    
+    /** Drops pages <i>from</i> to <i>to</i>. The ones only this process uses go back to the page pool. Pages shared
+        copy-on-write with another process, read-only pages shared between instances and the pages of shared
+        mappings don't, somebody else might still be using them. They are left to the garbage collector. */
+    private void discardPages(int from, int to) {
+        for(int i=from;i<to;i++) {
+            if(readBuffers != null) {
+                // mapped pages might be views of a file
+                if(writeBuffers[i] != null && findMapping(i) == null) offHeapMemory.release(writeBuffers[i]);
+                readBuffers[i] = writeBuffers[i] = null;
+            } else {
+                // pages shared copy-on-write aren't in writePages, the ones of shared mappings might be used by a child
+                if(writePages[i] != null && !isSharedMappingPage(i)) freePage(writePages[i]);
+                readPages[i] = writePages[i] = null;
+                if(cowPages != null) cowPages[i] = false;
+            }
+        }
+    }
+    
+    /** Moves the address space of <i>from</i> into this Runtime. This is used to hand a running
+        process over to a different Runtime for the same binary (see UnixRuntime) */
+    final void takeOverMemory(Runtime from) {
+        if(from.pageShift != pageShift || from.writePages.length != writePages.length)
+            throw new IllegalArgumentException("incompatible memory layout");
+        if(from.readBuffers != null && !supportsOffHeapMemory())
+            throw new IllegalArgumentException("can't take over off-heap memory");
+        readPages = from.readPages;
+        writePages = from.writePages;
+        cowPages = from.cowPages;
+        readBuffers = from.readBuffers;
+        writeBuffers = from.writeBuffers;
+        offHeapMemory = from.offHeapMemory;
+        sharedReadBuffers = from.sharedReadBuffers;
+        mappings = from.mappings;
+        // we can't take copy-on-write faults, give ourselves a private copy of everything now
+        if(cowPages != null && !supportsCopyOnWrite()) {
+            for(int i=0;i<cowPages.length;i++) if(cowPages[i]) copyOnWrite(i<<pageShift);
+            cowPages = null;
+        }
+        heapEnd = from.heapEnd;
+        startTime = from.startTime;
+        callJavaCB = from.callJavaCB;
+        sm = from.sm;
+    }
+    
     /** Returns the exit status of the process. (only valid if state == DONE) 
         @see Runtime#state */
     public final int exitStatus() {
@@ -648,21 +1508,98 @@ public abstract class Runtime implements UsermodeConstants,Registers,Cloneable {
         return call(helper,func,args);
     }
     
+    /** Resolves <i>sym</i> once and returns a handle that calls it without any lookups or allocation */
+    public final CallHandle callHandle(String sym) throws CallException {
+        int func = lookupSymbol(sym);
+        if(func == -1) throw new CallException(sym + " not found");
+        return callHandle(func);
+    }
+    
+    /** Returns a handle that calls the function at <i>addr</i> without any lookups or allocation */
+    public final CallHandle callHandle(int addr) throws CallException {
+        int helper = lookupSymbol("_call_helper");
+        if(helper == -1) throw new CallException("_call_helper not found");
+        return new CallHandle(helper,addr);
+    }
+    
+    /** A function in the process resolved for repeated calls. Calls through a handle work exactly like
+        call(String,int[]) but don't allocate. A handle belongs to the process it was created by and, like
+        the process, must not be used by more than one thread at a time.
+        
+        Handles are reentrant: a callJava() callback may call through the same handle the process is
+        currently being called through. Only the outermost call uses the handle's preallocated state,
+        nested ones allocate their own. */
+    public final class CallHandle {
+        private final int helper;
+        private final int func;
+        private final int[] args = new int[7];
+        private final CPUState saved = new CPUState();
+        private final CPUState cpuState = new CPUState();
+        /** Number of calls through this handle that haven't returned yet */
+        private int depth;
+        
+        CallHandle(int helper, int func) { this.helper = helper; this.func = func; }
+        
+        /** The address of the function */
+        public int address() { return func; }
+        
+        public int call() throws CallException {
+            return invoke(args,0);
+        }
+        public int call(int a0) throws CallException {
+            args[0] = a0;
+            return invoke(args,1);
+        }
+        public int call(int a0, int a1) throws CallException {
+            args[0] = a0; args[1] = a1;
+            return invoke(args,2);
+        }
+        public int call(int a0, int a1, int a2) throws CallException {
+            args[0] = a0; args[1] = a1; args[2] = a2;
+            return invoke(args,3);
+        }
+        public int call(int a0, int a1, int a2, int a3) throws CallException {
+            args[0] = a0; args[1] = a1; args[2] = a2; args[3] = a3;
+            return invoke(args,4);
+        }
+        /** Calls the function with the first <i>count</i> (at most 7) entries of <i>a</i> as arguments */
+        public int call(int[] a, int count) throws CallException {
+            if(count > 7) throw new IllegalArgumentException("count > 7");
+            return invoke(a,count);
+        }
+        
+        private int invoke(int[] a, int count) throws CallException {
+            // the outer call still needs saved to put the process back when it returns
+            if(depth != 0) return Runtime.this.call(helper,func,a,count,new CPUState(),new CPUState());
+            depth++;
+            try {
+                return Runtime.this.call(helper,func,a,count,saved,cpuState);
+            } finally {
+                depth--;
+            }
+        }
+    }
+    
     /** Executes the code at <i>addr</i> in the process setting A0-A3 and S0-S3 to the given arguments
         and returns the contents of V1 when the the pause syscall is invoked */
     //public final int call(int addr, int a0, int a1, int a2, int a3, int s0, int s1, int s2, int s3) {
     public final int call(int addr, int a0, int[] rest) throws CallException {
         if(rest.length > 7) throw new IllegalArgumentException("rest.length > 7");
+        return call(addr,a0,rest,rest.length,new CPUState(),new CPUState());
+    }
+    
+    /** Same as call(int,int,int[]) using only the first <i>count</i> entries of <i>rest</i> and the given
+        scratch CPUStates (so it doesn't allocate anything) */
+    private int call(int addr, int a0, int[] rest, int count, CPUState saved, CPUState cpustate) throws CallException {
         if(state != PAUSED && state != CALLJAVA) throw new IllegalStateException("call() called in inappropriate state");
         int oldState = state;
-        CPUState saved = new CPUState();        
         getCPUState(saved);
-        CPUState cpustate = saved.dup();
+        saved.copyTo(cpustate);
         
         cpustate.r[SP] = cpustate.r[SP]&~15;
         cpustate.r[RA] = 0xdeadbeef;
         cpustate.r[A0] = a0;
-        switch(rest.length) {            
+        switch(count) {            
             case 7: cpustate.r[S3] = rest[6];
             case 6: cpustate.r[S2] = rest[5];
             case 5: cpustate.r[S1] = rest[4];
@@ -686,6 +1623,67 @@ public abstract class Runtime implements UsermodeConstants,Registers,Cloneable {
         return cpustate.r[V1];
     }
         
+    /** Takes a snapshot of the process (memory, cpu state, heap and file descriptors) that new processes
+        can be started from with Snapshot.newInstance(). The process must be PAUSED (for example right after start())
+        or in a callJava() callback. In the latter case the new processes resume as if callJava() returned 0.
+        Memory is shared copy-on-write where the runtime supports it, so this and newInstance() cost about the same
+        as fork(). The snapshot holds its own copies of the file descriptors, release() it when it is no longer needed. */
+    public final Snapshot snapshot() {
+        if(state != PAUSED && state != CALLJAVA) throw new IllegalStateException("snapshot() called in inappropriate state");
+        Runtime r;
+        try {
+            r = (Runtime) clone();
+        } catch(CloneNotSupportedException e) {
+            throw new Error("should never happen: " + e);
+        }
+        if(state == CALLJAVA) {
+            CPUState cpuState = new CPUState();
+            r.getCPUState(cpuState);
+            cpuState.r[V0] = 0;
+            cpuState.pc += 4; // skip over the syscall instruction
+            r.setCPUState(cpuState);
+            r.state = PAUSED;
+        }
+        return new Snapshot(r);
+    }
+    
+    /** Puts this process back into the state <i>snapshot</i> was taken in without creating a new Runtime.
+        Memory, heap, mmap()ed regions, cpu state and file descriptors are all replaced, subclasses reset their
+        own per-process state in _restored(). Dirty pages of shared file mappings are written back first.
+        The snapshot must have been taken from an instance of the same class. */
+    final void restore(Snapshot snapshot) {
+        Runtime image = snapshot.image;
+        if(image.getClass() != getClass() || image.pageShift != pageShift || image.writePages.length != writePages.length)
+            throw new IllegalArgumentException("snapshot is from a different binary");
+        if(state != PAUSED) throw new IllegalStateException("restore() called in inappropriate state");
+        
+        synchronized(snapshot) {
+            if(snapshot.released) throw new IllegalStateException("snapshot has been released");
+            syncMappings();
+            for(int i=0;i<OPEN_MAX;i++) {
+                if(fds[i] == null) continue;
+                fds[i].close();
+                fds[i] = null;
+            }
+            releasePages();
+            image.copyMemoryTo(this);
+            for(int i=0;i<OPEN_MAX;i++) {
+                if(image.fds[i] != null) fds[i] = image.fds[i].dup();
+                closeOnExec[i] = image.closeOnExec[i];
+            }
+        }
+        heapEnd = image.heapEnd;
+        startTime = 0;
+        
+        CPUState cpuState = new CPUState();
+        image.getCPUState(cpuState);
+        setCPUState(cpuState);
+        _restored(image);
+    }
+    
+    /** Called at the end of restore() with the image of the snapshot */
+    void _restored(Runtime image) { }
+    
     /** Allocated an entry in the FileDescriptor table for <i>fd</i> and returns the number.
         Returns -1 if the table is full. This can be used by subclasses to use custom file
         descriptors */
@@ -935,12 +1933,12 @@ public abstract class Runtime implements UsermodeConstants,Registers,Cloneable {
     /** The sbrk syscall. This can also be used by subclasses to allocate memory.
         <i>incr</i> is how much to increase the break by */
     public final int sbrk(int incr) {
-        if(incr < 0) return -ENOMEM;
         if(incr==0) return heapEnd;
+        if(incr < 0) return shrinkHeap(incr);
         incr = (incr+3)&~3;
         int oldEnd = heapEnd;
         int newEnd = oldEnd + incr;
-        if(newEnd >= stackBottom) return -ENOMEM;
+        if(newEnd >= heapLimit()) return -ENOMEM;
         
         if(writePages.length > 1) {
             int pageMask = (1<<pageShift) - 1;
@@ -948,7 +1946,8 @@ public abstract class Runtime implements UsermodeConstants,Registers,Cloneable {
             int start = (oldEnd + pageMask) >>> pageShift;
             int end = (newEnd + pageMask) >>> pageShift;
             try {
-                for(int i=start;i<end;i++) readPages[i] = writePages[i] = new int[pageWords];
+                if(readBuffers != null) { for(int i=start;i<end;i++) if(readBuffers[i] == null) initBuffer(i,false); }
+                else for(int i=start;i<end;i++) if(readPages[i] == null) readPages[i] = writePages[i] = allocPage(pageWords);
             } catch(OutOfMemoryError e) {
                 if(STDERR_DIAG) System.err.println("WARNING: Caught OOM Exception in sbrk: " + e);
                 return -ENOMEM;
@@ -957,6 +1956,28 @@ public abstract class Runtime implements UsermodeConstants,Registers,Cloneable {
         heapEnd = newEnd;
         return oldEnd;
     }
+    
+    /** sbrk() with a negative <i>incr</i>. Whole pages above the new end of the heap are given back to the
+        page pool, the rest of the released memory is zeroed so it is clean when the heap grows again. */
+    private int shrinkHeap(int incr) {
+        int oldEnd = heapEnd;
+        // rounded the same way as growing it so sbrk(n) followed by sbrk(-n) gets back to where it started
+        int newEnd = oldEnd - ((-incr+3)&~3);
+        if(newEnd < heapStart() || newEnd > oldEnd) return -ENOMEM;
+        int pageMask = (1<<pageShift) - 1;
+        int clearTo = oldEnd;
+        if(canFaultPages()) {
+            clearTo = min(oldEnd,(newEnd + pageMask) & ~pageMask);
+            discardPages((newEnd + pageMask) >>> pageShift,(oldEnd + pageMask) >>> pageShift);
+        }
+        try {
+            memset(newEnd,0,clearTo - newEnd);
+        } catch(FaultException e) {
+            throw new Error("should never happen: " + e);
+        }
+        heapEnd = newEnd;
+        return oldEnd;
+    }
 
     /** The getpid syscall */
     private int sys_getpid() { return getPid(); }
@@ -1002,6 +2023,8 @@ public abstract class Runtime implements UsermodeConstants,Registers,Cloneable {
             } catch(ErrnoException e) { }
         }
         exitStatus = status;
+        syncMappings();
+        releaseOffHeapPages();
         for(int i=0;i<fds.length;i++) if(fds[i] != null) closeFD(i);
         state = EXITED;
         _exited();
@@ -1028,6 +2051,8 @@ public abstract class Runtime implements UsermodeConstants,Registers,Cloneable {
                 return i;
             case F_GETFL:
                 return fd.flags();
+            case F_SETFL:
+                return fd.setFlags(arg) ? 0 : -EINVAL;
             case F_SETFD:
                 closeOnExec[fdn] = arg != 0;
                 return 0;
@@ -1095,6 +2120,9 @@ public abstract class Runtime implements UsermodeConstants,Registers,Cloneable {
             
             case SYS_memcpy: memcpy(a,b,c); return a;
             case SYS_memset: memset(a,b,c); return a;
+            case SYS_mmap: return sys_mmap(a,b,c,d,e,f);
+            case SYS_munmap: return sys_munmap(a,b);
+            case SYS_madvise: return sys_madvise(a,b,c);
 
             case SYS_kill:
             case SYS_fork:
@@ -1203,6 +2231,24 @@ public abstract class Runtime implements UsermodeConstants,Registers,Cloneable {
             This is required for exec() */
         Seekable seekable() { return null; }
         
+        /** Returns the events out of <i>events</i> (POLLIN, POLLOUT) that can be done without blocking right now,
+            plus POLLHUP or POLLERR if they apply. This is what select() and poll() use for fds without a channel().
+            Regular files are always ready. */
+        public int poll(int events) { return events & (POLLIN|POLLOUT); }
+        
+        /** Returns the channel select() and poll() should wait on for this fd (JDK 1.4+), null if there is none */
+        java.nio.channels.SelectableChannel channel() { return null; }
+        
+        /** Makes this fd call <i>sel</i>.wakeup() whenever poll() might return something different. Returns false if it
+            can't do that, select() and poll() then check it every few milliseconds instead. */
+        boolean addWaiter(java.nio.channels.Selector sel) { return false; }
+        /** Undoes addWaiter() */
+        void removeWaiter(java.nio.channels.Selector sel) { }
+        
+        /** Changes the flags fcntl(F_SETFL) can change, which is only O_NONBLOCK. Returns false if the fd can't
+            do non-blocking I/O. Fds that support it include O_NONBLOCK in flags() while it is set. */
+        boolean setFlags(int flags) { return (flags & O_NONBLOCK) == 0; }
+        
         private FStat cachedFStat = null;
         public final FStat fstat() {
             if(cachedFStat == null) cachedFStat = _fstat(); 
@@ -1314,6 +2360,20 @@ public abstract class Runtime implements UsermodeConstants,Registers,Cloneable {
             }
         }
         
+        // InputStream can't tell us about EOF without blocking, only about data that is already there
+        public int poll(int events) {
+            int revents = 0;
+            if(is != null && (events & POLLIN) != 0) {
+                try {
+                    if(is.available() > 0) revents |= POLLIN;
+                } catch(IOException e) {
+                    revents |= POLLERR;
+                }
+            }
+            if(os != null) revents |= events & POLLOUT;
+            return revents;
+        }
+        
         public FStat _fstat() { return new SocketFStat(); }
     }
     
@@ -1444,6 +2504,41 @@ public abstract class Runtime implements UsermodeConstants,Registers,Cloneable {
         public ErrnoException(int errno) { super("Errno: " + errno); this.errno = errno; }
     }
     
+    /** A frozen copy of a process, see Runtime.snapshot() */
+    public static final class Snapshot {
+        private final Runtime image;
+        private boolean released;
+        Snapshot(Runtime image) { this.image = image; }
+        
+        /** Returns a new process in the PAUSED state, ready for execute() or call(), that starts out
+            exactly like the process this snapshot was taken from */
+        public synchronized Runtime newInstance() {
+            if(released) throw new IllegalStateException("snapshot has been released");
+            Runtime r;
+            try {
+                r = (Runtime) image.clone();
+            } catch(CloneNotSupportedException e) {
+                throw new Error("should never happen: " + e);
+            }
+            r._started();
+            return r;
+        }
+        
+        /** Closes the snapshot's copies of the file descriptors and gives back the memory only it uses (off-heap
+            pages aren't garbage collected). Processes created from the snapshot are unaffected, but no new ones
+            can be created or restored from it. Releasing a snapshot twice does nothing. */
+        public synchronized void release() {
+            if(released) return;
+            released = true;
+            for(int i=0;i<OPEN_MAX;i++) {
+                if(image.fds[i] == null) continue;
+                image.fds[i].close();
+                image.fds[i] = null;
+            }
+            image.releaseOffHeapPages();
+        }
+    }
+    
     // CPU State
     public static class CPUState {
         public CPUState() { /* noop */ }
@@ -1457,15 +2552,20 @@ public abstract class Runtime implements UsermodeConstants,Registers,Cloneable {
         
         public CPUState dup() {
             CPUState c = new CPUState();
+            copyTo(c);
+            return c;
+        }
+        
+        /** Copies this state into <i>c</i> */
+        public void copyTo(CPUState c) {
             c.hi = hi;
             c.lo = lo;
             c.fcsr = fcsr;
             c.pc = pc;
             for(int i=0;i<32;i++) {
-                    c.r[i] = r[i];
+                c.r[i] = r[i];
                 c.f[i] = f[i];
             }
-            return c;
         }
     }
     
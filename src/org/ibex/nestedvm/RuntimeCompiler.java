@@ -5,34 +5,173 @@
 package org.ibex.nestedvm;
 
 import java.io.*;
+import java.util.*;
 
 import org.ibex.nestedvm.util.*;
 
-// This need a lot of work to support binaries spanned across many classes
+/** Compiles MIPS binaries into classes at runtime. Big binaries are split across several classes
+    (see the methodsPerClass compiler option), they all live in the returned class's class loader.
+    Passing "lazyclasses" as an extra option gets a class per function, they are only defined when they
+    are first called. */
 public class RuntimeCompiler {  
+    // enough to keep the constant pool of every class well below 64k entries with maxinsnpermethod=256
+    private static final int METHODS_PER_CLASS = 128;
+    
     public static Class compile(Seekable data) throws IOException, Compiler.Exn { return compile(data,null); }
     public static Class compile(Seekable data, String extraoptions) throws IOException, Compiler.Exn { return compile(data,extraoptions,null); }
     
     public static Class compile(Seekable data, String extraoptions, String sourceName) throws IOException, Compiler.Exn {
+        return compile(data,extraoptions,sourceName,null);
+    }
+    
+    /** Like compile(data,extraoptions,sourceName) but looks in <i>cache</i> (if not null) first and stores
+        newly compiled classes there */
+    public static Class compile(Seekable data, String extraoptions, String sourceName, CompileCache cache) throws IOException, Compiler.Exn {
         String className = "nestedvm.runtimecompiled";
-        byte[] bytecode;
+        String key = null;
+        if(cache != null && compilerId() != null) {
+            byte[] image = new byte[data.length()];
+            try {
+                if(data.tryReadFully(image,0,image.length) != image.length) throw new EOFException();
+            } finally {
+                data.seek(0);
+            }
+            // the source name ends up in the class file
+            key = CompileCache.key(image,className + "\0" + extraoptions + "\0" + sourceName,compilerId());
+            byte[] packed = cache.get(key);
+            if(packed != null) {
+                try {
+                    return new SingleClassLoader(unpack(packed)).loadMain(className);
+                } catch(IOException e) {
+                    if(Runtime.STDERR_DIAG) System.err.println("WARNING: Couldn't read cached classes for " + sourceName + ": " + e);
+                } catch(LinkageError e) {
+                    if(Runtime.STDERR_DIAG) System.err.println("WARNING: Couldn't load cached class for " + sourceName + ": " + e);
+                }
+            }
+        }
+        Hashtable classes;
         try {
-            bytecode = runCompiler(data,className,extraoptions,sourceName,null);
+            classes = runCompiler(data,className,extraoptions,sourceName,null);
         } catch(Compiler.Exn e) {
-            if(e.getMessage() != null || e.getMessage().indexOf("constant pool full")  != -1)
-                bytecode = runCompiler(data,className,extraoptions,sourceName,"lessconstants");
+            // a single method (or main class) that still has too many constants
+            if(e.getMessage() != null && e.getMessage().indexOf("constant pool full")  != -1)
+                classes = runCompiler(data,className,extraoptions,sourceName,"lessconstants");
             else
                 throw e;
         }
-        return new SingleClassLoader().fromBytes(className,bytecode);
+        // the class loader drops the class files once it has defined them
+        byte[] packed = key == null ? null : pack(classes);
+        Class c = new SingleClassLoader(classes).loadMain(className);
+        if(key != null) cache.put(key,packed);
+        return c;
+    }
+    
+    /** Puts several classes (name -> byte[]) into one byte array for the CompileCache */
+    private static byte[] pack(Hashtable classes) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeInt(classes.size());
+        for(Enumeration e = classes.keys();e.hasMoreElements();) {
+            String name = (String) e.nextElement();
+            byte[] b = (byte[]) classes.get(name);
+            dos.writeUTF(name);
+            dos.writeInt(b.length);
+            dos.write(b);
+        }
+        dos.close();
+        return baos.toByteArray();
+    }
+    
+    private static Hashtable unpack(byte[] packed) throws IOException {
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(packed));
+        Hashtable classes = new Hashtable();
+        int n = dis.readInt();
+        for(int i=0;i<n;i++) {
+            String name = dis.readUTF();
+            int len = dis.readInt();
+            if(len < 0 || len > packed.length) throw new IOException("bad class length " + len);
+            byte[] b = new byte[len];
+            dis.readFully(b);
+            classes.put(name,b);
+        }
+        return classes;
     }
     
-    private static byte[] runCompiler(Seekable data, String name, String options, String sourceName, String moreOptions) throws IOException, Compiler.Exn {
+    /** The classes that decide what the generated code looks like and what it runs against: the compiler, the
+        runtime, the util classes they use and the parts of classgen the ClassFileCompiler uses. Their inner
+        classes are hashed along with them. */
+    private static final String[] COMPILER_CLASSES = {
+        "org.ibex.nestedvm.ClassFileCompiler", "org.ibex.nestedvm.Compiler", "org.ibex.nestedvm.RuntimeCompiler",
+        "org.ibex.nestedvm.CallGraph", "org.ibex.nestedvm.TextOptimizer", "org.ibex.nestedvm.Registers",
+        "org.ibex.nestedvm.UsermodeConstants", "org.ibex.nestedvm.Runtime", "org.ibex.nestedvm.UnixRuntime",
+        "org.ibex.nestedvm.OffHeapMemory", "org.ibex.nestedvm.util.ELF", "org.ibex.nestedvm.util.Seekable",
+        "org.ibex.nestedvm.util.Sort", "org.ibex.classgen.ClassFile", "org.ibex.classgen.MethodGen",
+        "org.ibex.classgen.FieldGen", "org.ibex.classgen.ConstantPool", "org.ibex.classgen.Type",
+        "org.ibex.classgen.CGConst", "org.ibex.classgen.HasAttributes", "org.ibex.classgen.HasFlags"
+    };
+    
+    private static String compilerId;
+    private static boolean compilerIdDone;
+    
+    /** Identifies this build of the compiler (a hash of its class files) so cached classes from other
+        versions aren't used. Returns null if the class files can't be read, caching is off then. */
+    private static synchronized String compilerId() {
+        if(compilerIdDone) return compilerId;
+        compilerIdDone = true;
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        try {
+            for(int i=0;i<COMPILER_CLASSES.length;i++) {
+                if(!hashClass(COMPILER_CLASSES[i],baos,buf)) {
+                    if(Runtime.STDERR_DIAG) System.err.println("WARNING: Can't find " + COMPILER_CLASSES[i] + ", not using the compile cache");
+                    return null;
+                }
+            }
+        } catch(IOException e) {
+            if(Runtime.STDERR_DIAG) System.err.println("WARNING: " + e + " while hashing the compiler, not using the compile cache");
+            return null;
+        }
+        compilerId = CompileCache.key(baos.toByteArray(),null,"compiler");
+        return compilerId;
+    }
+    
+    /** Appends the class file of <i>name</i> and those of all of its inner classes to <i>out</i>. Returns false
+        if there is no such class file. */
+    private static boolean hashClass(String name, OutputStream out, byte[] buf) throws IOException {
+        InputStream is = RuntimeCompiler.class.getResourceAsStream("/" + name.replace('.','/') + ".class");
+        if(is == null) return false;
+        try {
+            int n;
+            while((n = is.read(buf)) != -1) out.write(buf,0,n);
+        } finally {
+            is.close();
+        }
+        // member classes by name (sorted, getDeclaredClasses() doesn't promise an order), anonymous ones are numbered
+        Class[] inner;
+        try {
+            inner = Class.forName(name,false,RuntimeCompiler.class.getClassLoader()).getDeclaredClasses();
+        } catch(ClassNotFoundException e) {
+            throw new IOException("can't load " + name);
+        }
+        String[] names = new String[inner.length];
+        for(int i=0;i<inner.length;i++) names[i] = inner[i].getName();
+        Sort.sort(names,new Sort.CompareFunc() {
+            public int compare(Object a, Object b) { return ((String) a).compareTo((String) b); }
+        });
+        for(int i=0;i<names.length;i++) hashClass(names[i],out,buf);
+        for(int i=1;hashClass(name + "$" + i,out,buf);i++) { }
+        return true;
+    }
+    
+    /** Returns the compiled classes (class name -> byte[]) */
+    private static Hashtable runCompiler(Seekable data, String name, String options, String sourceName, String moreOptions) throws IOException, Compiler.Exn {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        Hashtable classes = new Hashtable();
         
         try {
             ClassFileCompiler c = new ClassFileCompiler(data,name,baos);
-            c.parseOptions("nosupportcall,maxinsnpermethod=256");
+            c.setTextClassOutput(classes);
+            c.parseOptions("nosupportcall,maxinsnpermethod=256,methodsperclass=" + METHODS_PER_CLASS);
             c.setSource(sourceName);
             if(options != null) c.parseOptions(options);
             if(moreOptions != null) c.parseOptions(moreOptions);
@@ -42,19 +181,34 @@ public class RuntimeCompiler {
         }
         
         baos.close();
-        return baos.toByteArray();        
+        classes.put(name,baos.toByteArray());
+        return classes;
     }
     
+    /** Defines the classes of one compiled binary. The classes the text is split across are only defined
+        when the main class first needs them. */
     private static class SingleClassLoader extends ClassLoader {
+        private final Hashtable classes;
+        SingleClassLoader(Hashtable classes) { this.classes = classes; }
+        
         public Class loadClass(String name, boolean resolve) throws ClassNotFoundException {
             //System.err.println(this + ": loadClass(\"" + name + "," + resolve + ");");
             return super.loadClass(name,resolve);
         }
-        public Class fromBytes(String name, byte[] b) { return fromBytes(name,b,0,b.length); }
-        public Class fromBytes(String name, byte[] b, int off, int len) {
-            Class c = super.defineClass(name,b,off,len);
-            resolveClass(c);
-            return c;
+        protected Class findClass(String name) throws ClassNotFoundException {
+            byte[] b;
+            synchronized(this) { b = (byte[]) classes.remove(name); }
+            if(b == null) throw new ClassNotFoundException(name);
+            return defineClass(name,b,0,b.length);
+        }
+        Class loadMain(String name) {
+            try {
+                Class c = loadClass(name);
+                resolveClass(c);
+                return c;
+            } catch(ClassNotFoundException e) {
+                throw new Error("should never happen");
+            }
         }
     }
     
@@ -0,0 +1,166 @@
+// Copyright 2000-2005 the Contributors, as shown in the revision logs.
+// Licensed under the Apache Public Source License 2.0 ("the License").
+// You may not use this file except in compliance with the License.
+
+package org.ibex.nestedvm;
+
+import java.util.*;
+
+/** A pool of started processes of the same binary for call() heavy workloads.
+    Every instance checked out of the pool is in the state of the baseline snapshot. When it is checked
+    back in it is reset to that state (memory, heap, mmap()ed regions, cpu state, file descriptors and, for a
+    UnixRuntime, the working directory and children) so nothing leaks from one user to the next. Instances are
+    created from the snapshot as needed, up to maxSize. Changes made outside the process aren't undone: files
+    written, writes to shared file mappings and children that are still running (they are orphaned) stay.
+    Only instances checked out of this pool can be checked in, each of them once.
+
+    <pre>
+    Runtime r = (Runtime) Class.forName("tests.MSPackHelper").newInstance();
+    r.start(new String[]{"mspack"});
+    RuntimePool pool = new RuntimePool(r.snapshot(),8);
+    ...
+    Runtime vm = pool.checkout();
+    try {
+        vm.call("process",new int[]{ a, b });
+    } finally {
+        pool.checkin(vm);
+    }
+    </pre> */
+public class RuntimePool {
+    private final Runtime.Snapshot baseline;
+    private final int maxSize;
+
+    private final Vector idle = new Vector();
+    /** Instances currently checked out, checkin() only takes these */
+    private final Hashtable checkedOut = new Hashtable();
+    private int created;
+    private int inUse;
+
+    // statistics
+    private int peakInUse;
+    private long checkouts;
+    private long waits;
+    private long discarded;
+
+    /** Creates a pool that hands out at most <i>maxSize</i> instances at once, all starting from <i>baseline</i> */
+    public RuntimePool(Runtime.Snapshot baseline, int maxSize) {
+        if(baseline == null) throw new NullPointerException();
+        if(maxSize <= 0) throw new IllegalArgumentException("maxSize <= 0");
+        this.baseline = baseline;
+        this.maxSize = maxSize;
+    }
+
+    /** Returns an instance in the baseline state, blocking until one is available if maxSize instances are checked out */
+    public Runtime checkout() throws InterruptedException { return checkout(0); }
+
+    /** Returns an instance in the baseline state, waiting at most <i>timeout</i> milliseconds (0 means forever)
+        if maxSize instances are checked out. Returns null if the timeout expires. */
+    public Runtime checkout(long timeout) throws InterruptedException {
+        boolean create = false;
+        synchronized(this) {
+            long deadline = timeout == 0 ? 0 : System.currentTimeMillis() + timeout;
+            while(idle.size() == 0 && created == maxSize) {
+                waits++;
+                if(timeout == 0) {
+                    wait();
+                } else {
+                    long left = deadline - System.currentTimeMillis();
+                    if(left <= 0) return null;
+                    wait(left);
+                }
+            }
+            inUse++;
+            checkouts++;
+            if(inUse > peakInUse) peakInUse = inUse;
+            if(idle.size() != 0) {
+                Runtime r = (Runtime) idle.lastElement();
+                idle.removeElementAt(idle.size()-1);
+                checkedOut.put(r,r);
+                return r;
+            }
+            created++;
+            create = true;
+        }
+        // creating an instance takes a while, don't hold the lock
+        try {
+            Runtime r = baseline.newInstance();
+            synchronized(this) { checkedOut.put(r,r); }
+            return r;
+        } catch(RuntimeException e) {
+            synchronized(this) { created--; inUse--; notify(); }
+            throw e;
+        } catch(Error e) {
+            synchronized(this) { created--; inUse--; notify(); }
+            throw e;
+        }
+    }
+
+    /** Returns <i>r</i> to the pool. It is reset to the baseline state before anyone else gets it. Instances
+        that exited, exec()ed or can't be reset are dropped and replaced by fresh ones as needed.
+        @throws IllegalArgumentException if <i>r</i> didn't come from this pool
+        @throws IllegalStateException if <i>r</i> was already checked in */
+    public void checkin(Runtime r) {
+        synchronized(this) {
+            if(checkedOut.remove(r) == null) {
+                if(idle.contains(r)) throw new IllegalStateException("runtime was already checked in");
+                throw new IllegalArgumentException("runtime isn't checked out of this pool");
+            }
+        }
+        boolean ok = r.state == Runtime.PAUSED;
+        if(ok) {
+            try {
+                r.restore(baseline);
+            } catch(RuntimeException e) {
+                if(Runtime.STDERR_DIAG) System.err.println("WARNING: Couldn't reset pooled runtime: " + e);
+                ok = false;
+            }
+        }
+        if(!ok && r.state == Runtime.PAUSED) r.stop();
+        synchronized(this) {
+            inUse--;
+            if(ok) {
+                idle.addElement(r);
+            } else {
+                created--;
+                discarded++;
+            }
+            notify();
+        }
+    }
+
+    /** Drops all idle instances. Checked out instances are unaffected. */
+    public void clear() {
+        Vector old;
+        synchronized(this) {
+            old = (Vector) idle.clone();
+            created -= idle.size();
+            idle.removeAllElements();
+            notifyAll();
+        }
+        for(Enumeration e = old.elements();e.hasMoreElements();)
+            ((Runtime) e.nextElement()).stop();
+    }
+
+    public int maxSize() { return maxSize; }
+    /** Number of instances currently checked out */
+    public synchronized int inUse() { return inUse; }
+    /** Number of instances ready to be checked out without creating a new one */
+    public synchronized int idle() { return idle.size(); }
+    /** Number of live instances (checked out or idle) */
+    public synchronized int size() { return created; }
+    /** The highest number of instances that were ever checked out at once */
+    public synchronized int peakInUse() { return peakInUse; }
+    /** Total number of checkouts */
+    public synchronized long checkouts() { return checkouts; }
+    /** Number of times a checkout had to wait for an instance */
+    public synchronized long waits() { return waits; }
+    /** Number of instances that were dropped instead of being reused */
+    public synchronized long discarded() { return discarded; }
+    /** Fraction of maxSize that is currently checked out */
+    public synchronized float utilization() { return (float) inUse / maxSize; }
+
+    public synchronized String toString() {
+        return "RuntimePool[inUse=" + inUse + " idle=" + idle.size() + " max=" + maxSize + " peak=" + peakInUse +
+            " checkouts=" + checkouts + " waits=" + waits + " discarded=" + discarded + "]";
+    }
+}
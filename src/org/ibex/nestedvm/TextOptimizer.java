@@ -0,0 +1,412 @@
+// Copyright 2000-2005 the Contributors, as shown in the revision logs.
+// Licensed under the Apache Public Source License 2.0 ("the License").
+// You may not use this file except in compliance with the License.
+
+package org.ibex.nestedvm;
+
+import java.util.*;
+
+/** Rewrites the MIPS instructions of the text segment into simpler ones before a compiler translates
+    them (-o optimizetext). Both compilers run it, see Compiler.optimizeText().
+
+    It works on one basic block at a time. A block starts at every jumpable address and after every
+    jump, branch (and its delay slot), SYSCALL and BREAK, nothing is known about the registers at the
+    start of a block. Going forward it keeps track of registers holding constants and registers holding
+    another register plus a constant, and uses them for
+    <ul>
+    <li>constant propagation: instructions whose operands are all known become a single LUI, ORI or
+        ADDIU with $0, register operands that are known become immediates (ADDU to ADDIU, SLLV to SLL, ...)</li>
+    <li>copy propagation: a register that is a copy of another one is replaced by the original</li>
+    <li>address folding: a load or store through a register that is another register plus a constant
+        uses the other register with the constant added to its offset</li>
+    </ul>
+    Afterwards a backwards pass over the block turns register writes that are overwritten before they
+    are read into nops. Every register is considered live at the end of a block.
+
+    Only instructions that can't trap or fault are rewritten into something else or removed, the rest
+    only get their operands replaced. Jumps and branches are left alone. */
+class TextOptimizer {
+    private static final int ALL = 0xffffffff;
+
+    private final int base;
+    private final int[] words;
+    private final Hashtable jumpableAddresses;
+
+    // what is known about each register in the current block
+    private final boolean[] known = new boolean[32];
+    private final int[] value = new int[32];
+    // register r holds register copyOf[r] (-1 for nothing) plus delta[r]
+    private final int[] copyOf = new int[32];
+    private final int[] delta = new int[32];
+
+    // scratch space for info() and learn()
+    private int uses;
+    private int defs;
+    private boolean learnedKnown;
+    private int learnedValue;
+    private int learnedCopyOf;
+    private int learnedDelta;
+
+    // statistics
+    private int blocks;
+    private int constants;
+    private int copies;
+    private int addresses;
+    private int deadWrites;
+
+    /** <i>words</i> holds the text segment starting at <i>base</i>, it is changed in place */
+    TextOptimizer(int base, int[] words, Hashtable jumpableAddresses) {
+        this.base = base;
+        this.words = words;
+        this.jumpableAddresses = jumpableAddresses;
+    }
+
+    void run() {
+        int start = 0;
+        for(int i=1;i<=words.length;i++) {
+            if(i < words.length && !blockStart(i)) continue;
+            forward(start,i);
+            backward(start,i);
+            blocks++;
+            start = i;
+        }
+    }
+
+    private boolean blockStart(int i) {
+        if(jumpableAddresses.get(new Integer(base + i*4)) != null) return true;
+        int prev = words[i-1];
+        if(prev >>> 26 == 0 && ((prev & 0x3f) == 12 || (prev & 0x3f) == 13)) return true; // SYSCALL, BREAK
+        return i >= 2 && controlFlow(words[i-2]);
+    }
+
+    private static boolean controlFlow(int insn) {
+        int op = insn >>> 26;
+        if(op == 0) return (insn & 0x3f) == 8 || (insn & 0x3f) == 9;
+        return (op >= 1 && op <= 7) || (op >= 20 && op <= 23) || (op == 17 && ((insn >>> 21) & 0x1f) == 8);
+    }
+
+    private void forward(int from, int to) {
+        for(int r=0;r<32;r++) { known[r] = false; copyOf[r] = -1; }
+        known[0] = true;
+        value[0] = 0;
+
+        for(int i=from;i<to;i++) {
+            int insn = words[i];
+            if(!controlFlow(insn)) {
+                insn = replaceOperands(insn);
+                insn = fold(insn);
+                words[i] = insn;
+            }
+            info(insn);
+            // the destination might be an operand too, so this has to happen before it is forgotten
+            int d = pure(insn) ? learn(insn) : 0;
+            for(int r=1;r<32;r++) if((defs & (1<<r)) != 0) forget(r);
+            if(d != 0) {
+                known[d] = learnedKnown;
+                value[d] = learnedValue;
+                copyOf[d] = learnedCopyOf;
+                delta[d] = learnedDelta;
+            }
+        }
+    }
+
+    private void backward(int from, int to) {
+        int live = ALL;
+        for(int i=to-1;i>=from;i--) {
+            int insn = words[i];
+            if(insn == 0) continue;
+            info(insn);
+            if(pure(insn) && (live & defs) == 0) {
+                words[i] = 0;
+                deadWrites++;
+                continue;
+            }
+            live = (live & ~defs) | uses;
+        }
+    }
+
+    /** Nothing is known about <i>r</i> (and the registers that were copies of it) anymore */
+    private void forget(int r) {
+        known[r] = false;
+        copyOf[r] = -1;
+        for(int x=1;x<32;x++) if(copyOf[x] == r) copyOf[x] = -1;
+    }
+
+    /** Works out what the pure instruction <i>insn</i> puts in its destination (into the learned fields)
+        and returns the destination */
+    private int learn(int insn) {
+        int op = insn >>> 26;
+        int rs = (insn >>> 21) & 0x1f;
+        int rt = (insn >>> 16) & 0x1f;
+        int rd = op == 0 ? (insn >>> 11) & 0x1f : rt;
+        int subcode = insn & 0x3f;
+        learnedKnown = constant(insn);
+        learnedValue = learnedKnown ? eval(insn) : 0;
+        learnedCopyOf = -1;
+        learnedDelta = 0;
+        if(learnedKnown) return rd;
+        if(op == 0 && (subcode == 33 || subcode == 37) && rt == 0 && rs != rd) learnedCopyOf = rs; // MOVE
+        else if(op == 0 && (subcode == 33 || subcode == 37) && rs == 0 && rt != rd) learnedCopyOf = rt;
+        else if(op == 9 && rs != rd) { learnedCopyOf = rs; learnedDelta = (insn << 16) >> 16; } // ADDIU
+        return rd;
+    }
+
+    /** Replaces the source operands of <i>insn</i> by the registers they are copies of and folds
+        known offsets into loads, stores and ADDIU */
+    private int replaceOperands(int insn) {
+        int op = insn >>> 26;
+        int rs = (insn >>> 21) & 0x1f;
+        int rt = (insn >>> 16) & 0x1f;
+        switch(op) {
+            case 0:
+                switch(insn & 0x3f) {
+                    case 0: case 2: case 3: // SLL, SRL, SRA
+                        return setRt(insn,source(rt));
+                    case 24: case 25: case 26: case 27: // MULT, MULTU, DIV, DIVU (the compilers don't expect $0 here)
+                        return setRt(setRs(insn,copy(rs)),copy(rt));
+                    case 4: case 6: case 7: // SLLV, SRLV, SRAV
+                    case 33: case 35: case 36: case 37: case 38: case 39: case 42: case 43: // ADDU ... SLTU
+                        return setRt(setRs(insn,source(rs)),source(rt));
+                    case 17: case 19: // MTHI, MTLO
+                        return setRs(insn,source(rs));
+                    default:
+                        return insn;
+                }
+            case 9: // ADDIU
+                if(copyOf[rs] != -1 && delta[rs] != 0) {
+                    int imm = ((insn << 16) >> 16) + delta[rs];
+                    if(signed16(imm)) {
+                        addresses++;
+                        return setImm(setRs(insn,copyOf[rs]),imm);
+                    }
+                }
+                return setRs(insn,source(rs));
+            case 10: case 11: case 12: case 13: case 14: // SLTI, SLTIU, ANDI, ORI, XORI
+                return setRs(insn,source(rs));
+            case 40: case 41: case 42: case 43: case 46: // SB, SH, SWL, SW, SWR
+                insn = setRt(insn,source(rt));
+                // fall through
+            case 32: case 33: case 34: case 35: case 36: case 37: case 38: // loads
+            case 48: case 49: case 56: case 57: // LL, LWC1, SC, SWC1
+                return foldAddress(insn,rs);
+            case 17:
+                // MTC1, CTC1
+                if(rs == 4 || rs == 6) return setRt(insn,source(rt));
+                return insn;
+            default:
+                return insn;
+        }
+    }
+
+    /** Returns the register that holds the same value as <i>r</i>, $0 if it is known to be zero */
+    private int source(int r) {
+        if(r != 0 && known[r] && value[r] == 0) { copies++; return 0; }
+        return copy(r);
+    }
+    
+    /** Returns the register <i>r</i> is a copy of (or <i>r</i>) */
+    private int copy(int r) {
+        if(r != 0 && copyOf[r] != -1 && delta[r] == 0) { copies++; return copyOf[r]; }
+        return r;
+    }
+
+    private int foldAddress(int insn, int rs) {
+        int offset = (insn << 16) >> 16;
+        if(copyOf[rs] != -1 && signed16(offset + delta[rs])) {
+            if(delta[rs] == 0) copies++;
+            else addresses++;
+            return setImm(setRs(insn,copyOf[rs]),offset + delta[rs]);
+        }
+        if(rs != 0 && known[rs] && signed16(offset + value[rs])) {
+            addresses++;
+            return setImm(setRs(insn,0),offset + value[rs]);
+        }
+        return insn;
+    }
+
+    /** Turns a pure instruction with known operands into a constant load and known register operands
+        into immediates where the result fits in one instruction */
+    private int fold(int insn) {
+        if(!pure(insn)) return insn;
+        int op = insn >>> 26;
+        int rs = (insn >>> 21) & 0x1f;
+        int rt = (insn >>> 16) & 0x1f;
+        int rd = op == 0 ? (insn >>> 11) & 0x1f : rt;
+        if(rd == 0 || op == 15) return insn;
+        if(constant(insn)) {
+            int c = eval(insn);
+            int folded;
+            if(signed16(c)) folded = itype(9,0,rd,c); // ADDIU
+            else if((c & 0xffff) == 0) folded = itype(15,0,rd,c >>> 16); // LUI
+            else if((c & 0xffff0000) == 0) folded = itype(13,0,rd,c); // ORI
+            else return insn;
+            if(folded != insn) constants++;
+            return folded;
+        }
+        if(op != 0) return insn;
+        int subcode = insn & 0x3f;
+        int folded = insn;
+        switch(subcode) {
+            case 4: case 6: case 7: // SLLV, SRLV, SRAV -> SLL, SRL, SRA
+                if(known[rs]) folded = (rt << 16) | (rd << 11) | ((value[rs] & 31) << 6) | (subcode - 4);
+                break;
+            case 33: // ADDU -> ADDIU
+                if(known[rt] && signed16(value[rt])) folded = itype(9,rs,rd,value[rt]);
+                else if(known[rs] && signed16(value[rs])) folded = itype(9,rt,rd,value[rs]);
+                break;
+            case 35: // SUBU -> ADDIU
+                if(known[rt] && signed16(-value[rt])) folded = itype(9,rs,rd,-value[rt]);
+                break;
+            case 36: case 37: case 38: // AND, OR, XOR -> ANDI, ORI, XORI
+                if(known[rt] && (value[rt] & 0xffff0000) == 0) folded = itype(subcode - 24,rs,rd,value[rt]);
+                else if(known[rs] && (value[rs] & 0xffff0000) == 0) folded = itype(subcode - 24,rt,rd,value[rs]);
+                break;
+            case 42: case 43: // SLT, SLTU -> SLTI, SLTIU (the immediate is sign extended for both)
+                if(known[rt] && signed16(value[rt])) folded = itype(subcode - 32,rs,rd,value[rt]);
+                break;
+        }
+        if(folded != insn) constants++;
+        return folded;
+    }
+
+    /** True if every register <i>insn</i> (a pure instruction) reads is known */
+    private boolean constant(int insn) {
+        int op = insn >>> 26;
+        int rs = (insn >>> 21) & 0x1f;
+        int rt = (insn >>> 16) & 0x1f;
+        if(op == 15) return true;
+        if(op != 0) return known[rs];
+        switch(insn & 0x3f) {
+            case 0: case 2: case 3: return known[rt];
+            case 16: case 18: return false;
+            default: return known[rs] && known[rt];
+        }
+    }
+
+    /** Computes the result of <i>insn</i> (a pure instruction with known operands) */
+    private int eval(int insn) {
+        int op = insn >>> 26;
+        int a = value[(insn >>> 21) & 0x1f];
+        int b = value[(insn >>> 16) & 0x1f];
+        int signedImmediate = (insn << 16) >> 16;
+        int unsignedImmediate = insn & 0xffff;
+        int shamt = (insn >>> 6) & 0x1f;
+        switch(op) {
+            case 0:
+                switch(insn & 0x3f) {
+                    case 0: return b << shamt;
+                    case 2: return b >>> shamt;
+                    case 3: return b >> shamt;
+                    case 4: return b << (a & 31);
+                    case 6: return b >>> (a & 31);
+                    case 7: return b >> (a & 31);
+                    case 33: return a + b;
+                    case 35: return a - b;
+                    case 36: return a & b;
+                    case 37: return a | b;
+                    case 38: return a ^ b;
+                    case 39: return ~(a | b);
+                    case 42: return a < b ? 1 : 0;
+                    case 43: return (a & 0xffffffffL) < (b & 0xffffffffL) ? 1 : 0;
+                }
+                break;
+            case 9: return a + signedImmediate;
+            case 10: return a < signedImmediate ? 1 : 0;
+            case 11: return (a & 0xffffffffL) < (signedImmediate & 0xffffffffL) ? 1 : 0;
+            case 12: return a & unsignedImmediate;
+            case 13: return a | unsignedImmediate;
+            case 14: return a ^ unsignedImmediate;
+            case 15: return unsignedImmediate << 16;
+        }
+        throw new Error("should never happen");
+    }
+
+    /** True if <i>insn</i> only writes a general purpose register and can't trap */
+    private static boolean pure(int insn) {
+        int op = insn >>> 26;
+        if(op == 0) {
+            switch(insn & 0x3f) {
+                case 0: return insn != 0; // SLL (but not NOP)
+                case 2: case 3: case 4: case 6: case 7: // SRL, SRA, SLLV, SRLV, SRAV
+                case 16: case 18: // MFHI, MFLO
+                case 33: case 35: case 36: case 37: case 38: case 39: case 42: case 43: // ADDU, SUBU, AND, OR, XOR, NOR, SLT, SLTU
+                    return true;
+                default:
+                    return false;
+            }
+        }
+        return op >= 9 && op <= 15; // ADDIU, SLTI, SLTIU, ANDI, ORI, XORI, LUI
+    }
+
+    /** Sets uses and defs to the general purpose registers <i>insn</i> reads and writes. Unknown
+        instructions read and write everything. */
+    private void info(int insn) {
+        int op = insn >>> 26;
+        int rs = 1 << ((insn >>> 21) & 0x1f);
+        int rt = 1 << ((insn >>> 16) & 0x1f);
+        int rd = 1 << ((insn >>> 11) & 0x1f);
+        uses = defs = 0;
+        switch(op) {
+            case 0:
+                switch(insn & 0x3f) {
+                    case 0: case 2: case 3: uses = rt; defs = rd; break;
+                    case 8: uses = rs; break; // JR
+                    case 9: uses = rs; defs = rd; break; // JALR
+                    case 16: case 18: defs = rd; break; // MFHI, MFLO
+                    case 17: case 19: uses = rs; break; // MTHI, MTLO
+                    case 24: case 25: case 26: case 27: uses = rs|rt; break;
+                    case 4: case 6: case 7:
+                    case 33: case 35: case 36: case 37: case 38: case 39: case 42: case 43:
+                        uses = rs|rt; defs = rd; break;
+                    default: uses = defs = ALL; break; // SYSCALL, BREAK, anything else
+                }
+                break;
+            case 1:
+                uses = rs;
+                if(((insn >>> 16) & 0x1f) == 16 || ((insn >>> 16) & 0x1f) == 17) defs = 1 << 31; // BLTZAL, BGEZAL
+                break;
+            case 2: break;
+            case 3: defs = 1 << 31; break; // JAL
+            case 4: case 5: case 20: case 21: uses = rs|rt; break;
+            case 6: case 7: case 22: case 23: uses = rs; break;
+            case 9: case 10: case 11: case 12: case 13: case 14:
+            case 32: case 33: case 35: case 36: case 37: case 48: // loads
+                uses = rs; defs = rt; break;
+            case 15: defs = rt; break;
+            case 34: case 38: case 56: uses = rs|rt; defs = rt; break; // LWL, LWR, SC
+            case 40: case 41: case 42: case 43: case 46: uses = rs|rt; break; // stores
+            case 49: case 57: uses = rs; break; // LWC1, SWC1
+            case 17:
+                switch((insn >>> 21) & 0x1f) {
+                    case 0: case 2: defs = rt; break; // MFC1, CFC1
+                    case 4: case 6: uses = rt; break; // MTC1, CTC1
+                }
+                break;
+            default: uses = defs = ALL; break;
+        }
+        uses &= ~1;
+        defs &= ~1;
+    }
+
+    private static boolean signed16(int n) { return n >= -32768 && n <= 32767; }
+    private static int itype(int op, int rs, int rt, int imm) { return (op << 26) | (rs << 21) | (rt << 16) | (imm & 0xffff); }
+    private static int setRs(int insn, int r) { return (insn & ~(0x1f << 21)) | (r << 21); }
+    private static int setRt(int insn, int r) { return (insn & ~(0x1f << 16)) | (r << 16); }
+    private static int setImm(int insn, int imm) { return (insn & ~0xffff) | (imm & 0xffff); }
+
+    /** Number of basic blocks looked at */
+    int blocks() { return blocks; }
+    /** Number of instructions turned into constant loads or immediate forms */
+    int constants() { return constants; }
+    /** Number of operands replaced by the register they are a copy of */
+    int copies() { return copies; }
+    /** Number of offsets folded into loads, stores and ADDIU */
+    int addresses() { return addresses; }
+    /** Number of register writes removed */
+    int deadWrites() { return deadWrites; }
+
+    public String toString() {
+        return "TextOptimizer[blocks=" + blocks + " constants=" + constants + " copies=" + copies +
+            " addresses=" + addresses + " deadWrites=" + deadWrites + "]";
+    }
+}
@@ -8,6 +8,7 @@ import org.ibex.nestedvm.util.*;
 import java.io.*;
 import java.util.*;
 import java.net.*;
+import java.nio.channels.*;
 import java.lang.reflect.*; // For lazily linked RuntimeCompiler
 
 // FEATURE: vfork
@@ -19,6 +20,11 @@ public abstract class UnixRuntime extends Runtime implements Cloneable {
     public final int getPid() { return pid; }
     
     private static final GlobalState defaultGS = new GlobalState();
+    static {
+        defaultGS.compileCache = CompileCache.fromProperties();
+        if("true".equals(Platform.getProperty("nestedvm.virtualthreads")) && !defaultGS.setVirtualThreads(true) && STDERR_DIAG)
+            System.err.println("WARNING: nestedvm.virtualthreads is set but this JVM doesn't have virtual threads");
+    }
     private GlobalState gs;
     public void setGlobalState(GlobalState gs) {
         if(state != STOPPED) throw new IllegalStateException("can't change GlobalState when running");
@@ -33,7 +39,7 @@ public abstract class UnixRuntime extends Runtime implements Cloneable {
     /** The runtime that should be run next when in state == EXECED */
     private UnixRuntime execedRuntime;
 
-    private Object children; // used only for synchronizatin
+    private Platform.Lock children; // guards activeChildren and exitedChildren, waitpid() waits on it
     private Vector activeChildren;
     private Vector exitedChildren;
     
@@ -101,10 +107,16 @@ public abstract class UnixRuntime extends Runtime implements Cloneable {
                 UnixRuntime prev = tasks[pid];
                 if(prev == null || prev == this || prev.pid != pid || prev.parent != parent)
                     throw new Error("should never happen");
-                if (parent!=null) synchronized(parent.children) {
-                    int i = parent.activeChildren.indexOf(prev);
-                    if(i == -1) throw new Error("should never happen");
-                    parent.activeChildren.setElementAt(this,i);
+                if(parent != null) {
+                    Platform.Lock lock = parent.children;
+                    lock.lock();
+                    try {
+                        int i = parent.activeChildren.indexOf(prev);
+                        if(i == -1) throw new Error("should never happen");
+                        parent.activeChildren.setElementAt(this,i);
+                    } finally {
+                        lock.unlock();
+                    }
                 }
             } else {
                 int newpid = -1;
@@ -150,6 +162,7 @@ public abstract class UnixRuntime extends Runtime implements Cloneable {
             case SYS_sendto: return sys_sendto(a,b,c,d,e,f);
             case SYS_recvfrom: return sys_recvfrom(a,b,c,d,e,f);
             case SYS_select: return sys_select(a,b,c,d,e);
+            case SYS_poll: return sys_poll(a,b,c);
             case SYS_access: return sys_access(a,b);
             case SYS_realpath: return sys_realpath(a,b);
             case SYS_chown: return sys_chown(a,b,c);
@@ -249,7 +262,8 @@ public abstract class UnixRuntime extends Runtime implements Cloneable {
         
         UnixRuntime done = null;
         
-        synchronized(children) {
+        children.lock();
+        try {
             for(;;) {
                 if(pid == -1) {
                     if(exitedChildren.size() > 0) {
@@ -260,55 +274,76 @@ public abstract class UnixRuntime extends Runtime implements Cloneable {
                     if(pid >= gs.tasks.length) return -ECHILD;
                     UnixRuntime t = gs.tasks[pid];
                     if(t.parent != this) return -ECHILD;
-                    if(t.state == EXITED) {
-                        if(!exitedChildren.removeElement(t)) throw new Error("should never happen");
-                        done = t;
-                    }
+                    // state is EXITED a moment before _exited() moves the child to exitedChildren
+                    if(exitedChildren.removeElement(t)) done = t;
                 } else {
                     // process group stuff, EINVAL returned above
                         throw new Error("should never happen");
                 }
                 if(done == null) {
                     if(!blocking) return 0;
-                    try { children.wait(); } catch(InterruptedException e) {}
+                    children.await();
                     //System.err.println("waitpid woke up: " + exitedChildren.size());
                 } else {
                     gs.tasks[done.pid] = null;
                     break;
                 }
             }
+        } finally {
+            children.unlock();
         }
         if(statusAddr!=0) memWrite(statusAddr,done.exitStatus()<<8);
         return done.pid;
     }
     
     
-    void _exited() {
-        if(children != null) synchronized(children) {
-            for(Enumeration e = exitedChildren.elements(); e.hasMoreElements(); ) {
-                UnixRuntime child = (UnixRuntime) e.nextElement();
-                gs.tasks[child.pid] = null;
-            }
-            exitedChildren.removeAllElements();
-            for(Enumeration e = activeChildren.elements(); e.hasMoreElements(); ) {
-                UnixRuntime child = (UnixRuntime) e.nextElement();
-                child.parent = null;
+    /** A restored process is back in the snapshot's directory and has no children, the ones it fork()ed are
+        reaped or orphaned like on exit */
+    void _restored(Runtime image) {
+        cwd = ((UnixRuntime) image).cwd;
+        forgetChildren();
+    }
+    
+    private void forgetChildren() {
+        if(children != null) {
+            children.lock();
+            try {
+                for(Enumeration e = exitedChildren.elements(); e.hasMoreElements(); ) {
+                    UnixRuntime child = (UnixRuntime) e.nextElement();
+                    gs.tasks[child.pid] = null;
+                }
+                exitedChildren.removeAllElements();
+                for(Enumeration e = activeChildren.elements(); e.hasMoreElements(); ) {
+                    UnixRuntime child = (UnixRuntime) e.nextElement();
+                    child.parent = null;
+                }
+                activeChildren.removeAllElements();
+            } finally {
+                children.unlock();
             }
-            activeChildren.removeAllElements();
         }
+    }
+    
+    void _exited() {
+        forgetChildren();
         
         UnixRuntime _parent = parent;
         if(_parent == null) {
             gs.tasks[pid] = null;
         } else {
-            synchronized(_parent.children) {
+            // exec() hands the same lock to the parent's new runtime
+            Platform.Lock lock = _parent.children;
+            lock.lock();
+            try {
                 if(parent == null) {
                     gs.tasks[pid] = null;
                 } else {
                     if(!parent.activeChildren.removeElement(this)) throw new Error("should never happen _exited: pid: " + pid);
                     parent.exitedChildren.addElement(this);
-                    parent.children.notify();
+                    lock.signalAll();
                 }
+            } finally {
+                lock.unlock();
             }
         }
     }
@@ -347,7 +382,7 @@ public abstract class UnixRuntime extends Runtime implements Cloneable {
 
         //System.err.println("fork " + pid + " -> " + r.pid + " tasks[" + r.pid + "] = " + gd.tasks[r.pid]);
         if(children == null) {
-            children = new Object();
+            children = Platform.newLock();
             activeChildren = new Vector();
             exitedChildren = new Vector();
         }
@@ -360,7 +395,18 @@ public abstract class UnixRuntime extends Runtime implements Cloneable {
         r.setCPUState(state);
         r.state = PAUSED;
         
-        new ForkedProcess(r);
+        ProcessExecutor executor = gs.executor;
+        if(executor == null) {
+            new ForkedProcess(r);
+        } else {
+            try {
+                executor.execute(new Runnable() { public void run() { UnixRuntime.executeAndExec(r); } });
+            } catch(RuntimeException e) {
+                // the child is already in the process table, it has to run somewhere
+                if(STDERR_DIAG) System.err.println("WARNING: ProcessExecutor failed (" + e + "), starting a thread for pid " + r.pid);
+                new ForkedProcess(r);
+            }
+        }
         
         return r.pid;
     }
@@ -371,6 +417,21 @@ public abstract class UnixRuntime extends Runtime implements Cloneable {
         public void run() { UnixRuntime.executeAndExec(initial); }
     }
     
+    /** Runs the processes fork() creates (see GlobalState.setExecutor()). A java.util.concurrent.Executor
+        can be plugged in with <tt>gs.setExecutor(executor::execute)</tt>. */
+    public interface ProcessExecutor {
+        /** Runs <i>process</i> on some thread, it returns when the process (and whatever it exec()s) exits.
+            Processes block in syscalls like waitpid() and read() and wait for each other, so the executor
+            must not queue them behind a fixed number of threads. */
+        public void execute(Runnable process);
+    }
+    
+    private static final ProcessExecutor VIRTUAL_THREADS = new ProcessExecutor() {
+        public void execute(Runnable process) {
+            if(!Platform.startVirtualThread(process)) throw new UnsupportedOperationException("no virtual threads");
+        }
+    };
+    
     public static int runAndExec(UnixRuntime r, String argv0, String[] rest) { return runAndExec(r,concatArgv(argv0,rest)); }
     public static int runAndExec(UnixRuntime r, String[] argv) { r.start(argv); return executeAndExec(r); }
     
@@ -401,7 +462,7 @@ public abstract class UnixRuntime extends Runtime implements Cloneable {
     static {
         Method m;
         try {
-            m = Class.forName("org.ibex.nestedvm.RuntimeCompiler").getMethod("compile",new Class[]{Seekable.class,String.class,String.class});
+            m = Class.forName("org.ibex.nestedvm.RuntimeCompiler").getMethod("compile",new Class[]{Seekable.class,String.class,String.class,CompileCache.class});
         } catch(NoSuchMethodException e) {
             m = null;
         } catch(ClassNotFoundException e) {
@@ -416,8 +477,11 @@ public abstract class UnixRuntime extends Runtime implements Cloneable {
             return null;
         }
         
+        long start = System.currentTimeMillis();
+        Class c = null;
         try {
-            return (Class) runtimeCompilerCompile.invoke(null,new Object[]{s,"unixruntime,maxinsnpermethod=256,lessconstants",sourceName});
+            c = (Class) runtimeCompilerCompile.invoke(null,new Object[]{s,"unixruntime,maxinsnpermethod=256",sourceName,gs.compileCache});
+            return c;
         } catch(IllegalAccessException e) {
             e.printStackTrace();
             return null;
@@ -428,6 +492,8 @@ public abstract class UnixRuntime extends Runtime implements Cloneable {
             if(t instanceof Error) throw (Error) t;
             if(STDERR_DIAG) t.printStackTrace();
             return null;
+        } finally {
+            gs.execCache.compiled(System.currentTimeMillis() - start,c != null);
         }
     }
         
@@ -445,22 +511,29 @@ public abstract class UnixRuntime extends Runtime implements Cloneable {
         
         FStat fstat = gs.stat(this,path);
         if(fstat == null) return -ENOENT;
-        GlobalState.CacheEnt ent = (GlobalState.CacheEnt) gs.execCache.get(path);
         long mtime = fstat.mtime();
         long size = fstat.size();
-        if(ent != null) {
+        // waits if another process is compiling path right now
+        Object cached = gs.execCache.claim(path,mtime,size);
+        if(cached != null) {
             //System.err.println("Found cached entry for " + path);
-            if(ent.time ==mtime && ent.size == size) {
-                if(ent.o instanceof Class)
-                    return execClass((Class) ent.o,argv,envp);
-                if(ent.o instanceof String[]) 
-                    return execScript(path,(String[]) ent.o,argv,envp);
-                throw new Error("should never happen");
-            }
-            //System.err.println("Cache was out of date");
-            gs.execCache.remove(path);
+            if(cached instanceof Class)
+                return execClass((Class) cached,argv,envp);
+            if(cached instanceof String[]) 
+                return execScript(path,(String[]) cached,argv,envp);
+            if(cached instanceof Interpreter.TierState)
+                return execTiered(path,(Interpreter.TierState) cached,argv,envp);
+            throw new Error("should never happen");
         }
-        
+        try {
+            return execFile(path,mtime,size,argv,envp);
+        } finally {
+            // lets anyone waiting on path in claim() go ahead if we didn't cache anything
+            gs.execCache.release(path);
+        }
+    }
+    
+    private int execFile(String path, long mtime, long size, String[] argv, String[] envp) throws ErrnoException {
         FD fd = gs.open(this,path,RD_ONLY,0);
         if(fd == null) throw new ErrnoException(ENOENT);
         Seekable s = fd.seekable();        
@@ -478,6 +551,22 @@ public abstract class UnixRuntime extends Runtime implements Cloneable {
                     if(n < 4) s.tryReadFully(buf,n,4-n);
                     if(buf[1] != 'E' || buf[2] != 'L' || buf[3] != 'F') return -ENOEXEC;
                     s.seek(0);
+                    if(gs.tieredExec && runtimeCompilerCompile != null) {
+                        // Start interpreting right away, the image is compiled in the background once it gets hot
+                        byte[] image = new byte[s.length()];
+                        if(s.tryReadFully(image,0,image.length) != image.length) return -ENOEXEC;
+                        Interpreter ur;
+                        try {
+                            ur = new Interpreter(new Seekable.ByteArray(image,false),true);
+                        } catch (Exception e) {
+                            if (STDERR_DIAG) e.printStackTrace();
+                            throw new ErrnoException(ENOEXEC);
+                        }
+                        Interpreter.TierState tier = ur.enableTiering(new Seekable.ByteArray(image,false),path,mtime,size,gs.tierThreshold);
+                        // other exec()s of path share this compile instead of starting their own
+                        if(tier != null) gs.execCache.handOver(path,mtime,size,tier);
+                        return exec(ur, argv, envp);
+                    }
                     if(STDERR_DIAG) System.err.println("Running RuntimeCompiler for " + path);
                     Class c = runtimeCompile(s,path);
                     if(STDERR_DIAG) System.err.println("RuntimeCompiler finished for " + path);
@@ -491,7 +580,7 @@ public abstract class UnixRuntime extends Runtime implements Cloneable {
                         }
                         return exec(ur, argv, envp);
                     }
-                    gs.execCache.put(path,new GlobalState.CacheEnt(mtime,size,c));
+                    gs.execCache.put(path,mtime,size,c);
                     return execClass(c,argv,envp);
                 case '#':
                     if(n == 1) {
@@ -519,7 +608,7 @@ public abstract class UnixRuntime extends Runtime implements Cloneable {
                         new String(buf,cmdStart,cmdEnd-cmdStart),
                         argStart < p ? new String(buf,argStart,p-argStart) : null
                     };
-                    gs.execCache.put(path,new GlobalState.CacheEnt(mtime,size,command));
+                    gs.execCache.put(path,mtime,size,command);
                     return execScript(path,command,argv,envp);
                 default:
                     return -ENOEXEC;
@@ -531,6 +620,26 @@ public abstract class UnixRuntime extends Runtime implements Cloneable {
         }        
     }
     
+    /** Runs <i>path</i> under an Interpreter that shares <i>tier</i>, the background compile another exec()
+        of the same binary started */
+    private int execTiered(String path, Interpreter.TierState tier, String[] argv, String[] envp) throws ErrnoException {
+        FD fd = gs.open(this,path,RD_ONLY,0);
+        if(fd == null) throw new ErrnoException(ENOENT);
+        Seekable s = fd.seekable();
+        if(s == null) throw new ErrnoException(EACCES);
+        Interpreter ur;
+        try {
+            ur = new Interpreter(new ELF.ElfSeeker(s),true);
+        } catch (Exception e) {
+            if (STDERR_DIAG) e.printStackTrace();
+            throw new ErrnoException(ENOEXEC);
+        } finally {
+            fd.close();
+        }
+        ur.shareTiering(tier);
+        return exec(ur, argv, envp);
+    }
+    
     public int execScript(String path, String[] command, String[] argv, String[] envp) throws ErrnoException {
         String[] newArgv = new String[argv.length-1 + (command[1] != null ? 3 : 2)];
         int p = command[0].lastIndexOf('/');
@@ -557,6 +666,8 @@ public abstract class UnixRuntime extends Runtime implements Cloneable {
     
     private int exec(UnixRuntime r, String[] argv, String[] envp) {     
         //System.err.println("Execing " + r);
+        // the old image is thrown away, changes to shared mappings have to make it to their files first
+        syncMappings();
         for(int i=0;i<OPEN_MAX;i++) if(closeOnExec[i]) closeFD(i);
         r.fds = fds;
         r.closeOnExec = closeOnExec;
@@ -570,6 +681,7 @@ public abstract class UnixRuntime extends Runtime implements Cloneable {
         r.pid = pid;
         r.parent = parent;
         r.start(argv,envp);
+        releaseOffHeapPages();
                 
         state = EXECED;
         execedRuntime = r;
@@ -577,57 +689,231 @@ public abstract class UnixRuntime extends Runtime implements Cloneable {
         return 0;   
     }
     
+    /** Called by a tiered Interpreter when the background compile of <i>path</i> finishes, <i>c</i> is null if
+        it failed. Ends the claim <i>tier</i> has on <i>path</i> in the exec cache. */
+    void tieredCompileFinished(String path, long mtime, long size, Class c, Object tier) {
+        if(c != null) gs.execCache.put(path,mtime,size,c);
+        gs.execCache.release(path,tier);
+    }
+    
+    /** Hands this (running) process over to <i>r</i>, which must be a Runtime for the same binary.
+        The process continues in <i>r</i> with the cpu state <i>cpuState</i>. Like exec() this leaves 
+        us in the EXECED state so executeAndExec() continues with <i>r</i>. */
+    void handOff(UnixRuntime r, CPUState cpuState) {
+        r.takeOverMemory(this);
+        r.fds = fds;
+        r.closeOnExec = closeOnExec;
+        fds = null;
+        closeOnExec = null;
+        
+        r.gs = gs;
+        r.cwd = cwd;
+        r.pid = pid;
+        r.parent = parent;
+        if(children != null) {
+            Platform.Lock lock = children;
+            lock.lock();
+            try {
+                r.children = children;
+                r.activeChildren = activeChildren;
+                r.exitedChildren = exitedChildren;
+                for(Enumeration e = activeChildren.elements(); e.hasMoreElements(); )
+                    ((UnixRuntime) e.nextElement()).parent = r;
+                for(Enumeration e = exitedChildren.elements(); e.hasMoreElements(); )
+                    ((UnixRuntime) e.nextElement()).parent = r;
+                children = null;
+                activeChildren = exitedChildren = null;
+            } finally {
+                lock.unlock();
+            }
+        }
+        r.setCPUState(cpuState);
+        r.state = PAUSED;
+        r._started();
+        
+        state = EXECED;
+        execedRuntime = r;
+    }
+    
+    /** Size of the buffer behind each pipe() in bytes (nestedvm.pipebuf system property, 64k by default).
+        Rounded up to a power of two, never less than PIPE_BUF. */
+    static final int PIPE_CAPACITY;
+    static {
+        int n = 64*1024;
+        String prop = Platform.getProperty("nestedvm.pipebuf");
+        if(prop != null) try { n = Integer.parseInt(prop); } catch(NumberFormatException e) { }
+        int size = PIPE_BUF;
+        while(size < n && size < (1<<30)) size <<= 1;
+        PIPE_CAPACITY = size;
+    }
+    
+    /** A circular buffer with a single producer and a single consumer. Each end only advances its own counter,
+        so data moves through without locking. A thread only waits on <i>lock</i> when the buffer is empty
+        (reader) or full (writer) and the other end only signals it after it has said it is waiting.
+        Processes sharing an end after fork() or dup() take turns through readLock/writeLock, that way the buffer
+        still sees one reader and one writer and writes of up to PIPE_BUF bytes are never interleaved.
+        These are Platform.Locks rather than monitors so a process on a virtual thread gives up its carrier
+        while it waits. */
     static class Pipe {
-        private final byte[] pipebuf = new byte[PIPE_BUF*4];
-        private int readPos;
-        private int writePos;
+        private final byte[] pipebuf;
+        private final int mask;
+        // total bytes read and written so far, they wrap around, only the difference matters
+        private volatile int readCount;
+        private volatile int writeCount;
+        private volatile boolean readerClosed;
+        private volatile boolean writerClosed;
+        // set by an end before it waits on lock
+        private volatile boolean readerWaiting;
+        private volatile boolean writerWaiting;
+        private final Platform.Lock lock = Platform.newLock();
+        private final Platform.Lock readLock = Platform.newLock();
+        private final Platform.Lock writeLock = Platform.newLock();
+        // Selectors of select() and poll() calls waiting on either end
+        private final Vector waiters = new Vector();
         
         public final FD reader = new Reader();
         public final FD writer = new Writer();
         
+        Pipe() { this(PIPE_CAPACITY); }
+        /** <i>capacity</i> has to be a power of two and at least PIPE_BUF */
+        Pipe(int capacity) {
+            if(capacity < PIPE_BUF || (capacity & (capacity-1)) != 0) throw new IllegalArgumentException("bad pipe capacity");
+            pipebuf = new byte[capacity];
+            mask = capacity - 1;
+        }
+        
+        private void wake() {
+            lock.lock();
+            try {
+                lock.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+        
+        private void wakeWaiters() {
+            if(waiters.size() == 0) return;
+            synchronized(waiters) {
+                for(int i=0;i<waiters.size();i++) ((Selector) waiters.elementAt(i)).wakeup();
+            }
+        }
+        
         public class Reader extends FD {
+            private boolean nonBlocking;
             protected FStat _fstat() { return new SocketFStat(); }
             public int read(byte[] buf, int off, int len) throws ErrnoException {
                 if(len == 0) return 0;
-                synchronized(Pipe.this) {
-                    while(writePos != -1 && readPos == writePos) {
-                        try { Pipe.this.wait(); } catch(InterruptedException e) { /* ignore */ }
+                readLock.lock();
+                try {
+                    int r = readCount;
+                    int avail = writeCount - r;
+                    if(avail == 0 && (avail = awaitData()) == 0) return 0; // eof
+                    len = Math.min(len,avail);
+                    int pos = r & mask;
+                    int n = Math.min(len,pipebuf.length - pos);
+                    System.arraycopy(pipebuf,pos,buf,off,n);
+                    if(n < len) System.arraycopy(pipebuf,0,buf,off+n,len-n);
+                    readCount = r + len;
+                    if(writerWaiting) wake();
+                } finally {
+                    readLock.unlock();
+                }
+                wakeWaiters();
+                return len;
+            }
+            /** Waits until there is something to read, returns how much or 0 at eof */
+            private int awaitData() throws ErrnoException {
+                lock.lock();
+                try {
+                    for(;;) {
+                        readerWaiting = true;
+                        // check for eof first, the writer might write something just before closing
+                        boolean eof = writerClosed;
+                        int avail = writeCount - readCount;
+                        if(avail != 0 || eof) return avail;
+                        if(nonBlocking) throw new ErrnoException(EAGAIN);
+                        lock.await();
                     }
-                    if(writePos == -1) return 0; // eof
-                    len = Math.min(len,writePos-readPos);
-                    System.arraycopy(pipebuf,readPos,buf,off,len);
-                    readPos += len;
-                    if(readPos == writePos) Pipe.this.notify();
-                    return len;
+                } finally {
+                    readerWaiting = false;
+                    lock.unlock();
                 }
             }
-            public int flags() { return O_RDONLY; }
-            public void _close() { synchronized(Pipe.this) { readPos = -1; Pipe.this.notify(); } }
+            public int poll(int events) {
+                if(writerClosed) return (events & POLLIN) | POLLHUP;
+                return writeCount != readCount ? events & POLLIN : 0;
+            }
+            boolean addWaiter(Selector sel) { waiters.addElement(sel); return true; }
+            void removeWaiter(Selector sel) { waiters.removeElement(sel); }
+            boolean setFlags(int flags) { nonBlocking = (flags & O_NONBLOCK) != 0; return true; }
+            public int flags() { return O_RDONLY | (nonBlocking ? O_NONBLOCK : 0); }
+            public void _close() { readerClosed = true; wake(); wakeWaiters(); }
         }
         
         public class Writer extends FD {   
+            private boolean nonBlocking;
             protected FStat _fstat() { return new SocketFStat(); }
             public int write(byte[] buf, int off, int len) throws ErrnoException {
                 if(len == 0) return 0;
-                synchronized(Pipe.this) {
-                    if(readPos == -1) throw new ErrnoException(EPIPE);
-                    if(pipebuf.length - writePos < Math.min(len,PIPE_BUF)) {
-                        // not enough space to atomicly write the data
-                        while(readPos != -1 && readPos != writePos) {
-                            try { Pipe.this.wait(); } catch(InterruptedException e) { /* ignore */ }
+                // writes of up to PIPE_BUF bytes go in all at once, larger ones in whatever pieces fit
+                int atomic = len <= PIPE_BUF ? len : 1;
+                int done = 0;
+                writeLock.lock();
+                try {
+                    while(done < len) {
+                        if(readerClosed) {
+                            if(done == 0) throw new ErrnoException(EPIPE);
+                            break;
+                        }
+                        int w = writeCount;
+                        int room = pipebuf.length - (w - readCount);
+                        if(room < atomic) {
+                            // non-blocking writes return as soon as the buffer is full
+                            if(nonBlocking) {
+                                if(done == 0) throw new ErrnoException(EAGAIN);
+                                break;
+                            }
+                            awaitRoom(atomic);
+                            continue;
                         }
-                        if(readPos == -1) throw new ErrnoException(EPIPE);
-                        readPos = writePos = 0;
+                        int count = Math.min(len - done,room);
+                        int pos = w & mask;
+                        int n = Math.min(count,pipebuf.length - pos);
+                        System.arraycopy(buf,off+done,pipebuf,pos,n);
+                        if(n < count) System.arraycopy(buf,off+done+n,pipebuf,0,count-n);
+                        writeCount = w + count;
+                        done += count;
+                        if(readerWaiting) wake();
+                        wakeWaiters();
+                    }
+                } finally {
+                    writeLock.unlock();
+                }
+                return done;
+            }
+            /** Waits until there are at least <i>need</i> free bytes or the read end is closed */
+            private void awaitRoom(int need) {
+                lock.lock();
+                try {
+                    for(;;) {
+                        writerWaiting = true;
+                        if(readerClosed || pipebuf.length - (writeCount - readCount) >= need) break;
+                        lock.await();
                     }
-                    len = Math.min(len,pipebuf.length - writePos);
-                    System.arraycopy(buf,off,pipebuf,writePos,len);
-                    if(readPos == writePos) Pipe.this.notify();
-                    writePos += len;
-                    return len;
+                } finally {
+                    writerWaiting = false;
+                    lock.unlock();
                 }
             }
-            public int flags() { return O_WRONLY; }
-            public void _close() { synchronized(Pipe.this) { writePos = -1; Pipe.this.notify(); } }
+            public int poll(int events) {
+                if(readerClosed) return POLLERR;
+                return pipebuf.length - (writeCount - readCount) >= PIPE_BUF ? events & POLLOUT : 0;
+            }
+            boolean addWaiter(Selector sel) { waiters.addElement(sel); return true; }
+            void removeWaiter(Selector sel) { waiters.removeElement(sel); }
+            boolean setFlags(int flags) { nonBlocking = (flags & O_NONBLOCK) != 0; return true; }
+            public int flags() { return O_WRONLY | (nonBlocking ? O_NONBLOCK : 0); }
+            public void _close() { writerClosed = true; wake(); wakeWaiters(); }
         }
     }
     
@@ -729,31 +1015,106 @@ public abstract class UnixRuntime extends Runtime implements Cloneable {
         
         int flags;
         int options;
+        /** O_NONBLOCK was set with fcntl(), operations that would block fail with EAGAIN */
+        boolean nonBlocking;
         
-        Socket s;
-        ServerSocket ss;
-        DatagramSocket ds;
+        // The channels are always in non-blocking mode. Blocking calls wait for them with readSelector or writeSelector.
+        SocketChannel sc;
+        ServerSocketChannel ssc;
+        DatagramChannel dc;
+        
+        private final Platform.Lock readLock = Platform.newLock();
+        private final Platform.Lock writeLock = Platform.newLock();
+        private Selector readSelector;
+        private Selector writeSelector;
         
         InetAddress bindAddr;
         int bindPort = -1;
         InetAddress connectAddr;
         int connectPort = -1;
         
-        DatagramPacket dp;
-        InputStream is;
-        OutputStream os; 
-        
-        private static final byte[] EMPTY = new byte[0];
         public SocketFD(int type) {
         	flags = type;
-        	if(type == TYPE_DGRAM)
-        		dp = new DatagramPacket(EMPTY,0);
+        }
+        
+        static SocketChannel newSocketChannel() throws IOException {
+            SocketChannel ch = SocketChannel.open();
+            ch.configureBlocking(false);
+            return ch;
+        }
+        
+        static ServerSocketChannel newServerSocketChannel() throws IOException {
+            ServerSocketChannel ch = ServerSocketChannel.open();
+            ch.configureBlocking(false);
+            return ch;
+        }
+        
+        static DatagramChannel newDatagramChannel() throws IOException {
+            DatagramChannel ch = DatagramChannel.open();
+            ch.configureBlocking(false);
+            return ch;
+        }
+        
+        /** Waits until <i>ch</i> might be ready for <i>op</i>, or throws EAGAIN if the socket is non-blocking.
+            The caller has to retry the operation, it may still not be possible. */
+        void await(SelectableChannel ch, int op) throws ErrnoException {
+            if(nonBlocking) throw new ErrnoException(EAGAIN);
+            boolean read = (op & (SelectionKey.OP_READ|SelectionKey.OP_ACCEPT)) != 0;
+            Platform.Lock lock = read ? readLock : writeLock;
+            lock.lock();
+            try {
+                Selector sel = read ? readSelector : writeSelector;
+                if(sel == null) {
+                    sel = Selector.open();
+                    if(read) readSelector = sel;
+                    else writeSelector = sel;
+                }
+                SelectionKey key = ch.keyFor(sel);
+                if(key == null) ch.register(sel,op);
+                else key.interestOps(op);
+                sel.select();
+                sel.selectedKeys().clear();
+            } catch(ClosedSelectorException e) {
+                throw new ErrnoException(EBADFD);
+            } catch(IOException e) {
+                if(STDERR_DIAG) e.printStackTrace();
+                throw new ErrnoException(EIO);
+            } finally {
+                lock.unlock();
+            }
+        }
+        
+        /** Completes a pending non-blocking connect(). Returns false if it isn't done yet. */
+        boolean finishConnect() throws ErrnoException {
+            try {
+                return sc.finishConnect();
+            } catch(IOException e) {
+                SocketChannel ch = sc;
+                sc = null;
+                try { ch.close(); } catch(IOException e2) { /* ignore */ }
+                throw new ErrnoException(connectErrno(e));
+            }
+        }
+        
+        /** Maps a failed connect to the errno the guest expects */
+        static int connectErrno(IOException e) {
+            if(e instanceof ConnectException) return ECONNREFUSED;
+            if(e instanceof NoRouteToHostException) return EHOSTUNREACH;
+            if(STDERR_DIAG) e.printStackTrace();
+            return EIO;
+        }
+        
+        /** Returns the connected stream channel, waiting for a pending connect() to complete if the socket is blocking */
+        private SocketChannel connected() throws ErrnoException {
+            if(sc == null) throw new ErrnoException(EPIPE);
+            while(sc.isConnectionPending() && !finishConnect()) await(sc,SelectionKey.OP_CONNECT);
+            return sc;
         }
         
         public void setOptions() {
             try {
-                if(s != null && type() == TYPE_STREAM && !listen()) {
-                    Platform.socketSetKeepAlive(s,(options & SO_KEEPALIVE) != 0);
+                if(sc != null && type() == TYPE_STREAM && !listen()) {
+                    Platform.socketSetKeepAlive(sc.socket(),(options & SO_KEEPALIVE) != 0);
                 }
             } catch(SocketException e) {
                 if(STDERR_DIAG) e.printStackTrace();
@@ -762,9 +1123,15 @@ public abstract class UnixRuntime extends Runtime implements Cloneable {
         
         public void _close() {
             try {
-               if(s != null) s.close();
-               if(ss != null) ss.close();
-               if(ds != null) ds.close();
+               if(sc != null) sc.close();
+               if(ssc != null) ssc.close();
+               if(dc != null) dc.close();
+            } catch(IOException e) {
+                /* ignore */
+            }
+            try {
+                if(readSelector != null) readSelector.close();
+                if(writeSelector != null) writeSelector.close();
             } catch(IOException e) {
                 /* ignore */
             }
@@ -772,10 +1139,15 @@ public abstract class UnixRuntime extends Runtime implements Cloneable {
         
         public int read(byte[] a, int off, int length) throws ErrnoException {
             if(type() == TYPE_DGRAM) return recvfrom(a,off,length,null,null);
-            if(is == null) throw new ErrnoException(EPIPE);
+            SocketChannel ch = connected();
+            java.nio.ByteBuffer b = java.nio.ByteBuffer.wrap(a,off,length);
             try {
-                int n = is.read(a,off,length);
-                return n < 0 ? 0 : n;
+                for(;;) {
+                    int n = ch.read(b);
+                    if(n < 0) return 0;
+                    if(n > 0 || length == 0) return n;
+                    await(ch,SelectionKey.OP_READ);
+                }
             } catch(IOException e) {
                 throw new ErrnoException(EIO);
             }
@@ -784,37 +1156,41 @@ public abstract class UnixRuntime extends Runtime implements Cloneable {
         public int recvfrom(byte[] a, int off, int length, InetAddress[] sockAddr, int[] port) throws ErrnoException {
         	if(type() == TYPE_STREAM) return read(a,off,length);
         	
-        	if(off != 0) throw new IllegalArgumentException("off must be 0");
-        	dp.setData(a);
-        	dp.setLength(length);
+        	java.nio.ByteBuffer b = java.nio.ByteBuffer.wrap(a,off,length);
+        	SocketAddress from;
         	try {
-        		if(ds == null) ds = new DatagramSocket();
-        		ds.receive(dp);
+        		if(dc == null) dc = newDatagramChannel();
+        		while((from = dc.receive(b)) == null) await(dc,SelectionKey.OP_READ);
         	} catch(IOException e) {
         		if(STDERR_DIAG) e.printStackTrace();
         		throw new ErrnoException(EIO);
         	}
         	if(sockAddr != null) {
-        		sockAddr[0] = dp.getAddress();
-        		port[0] = dp.getPort();
+        		sockAddr[0] = ((InetSocketAddress) from).getAddress();
+        		port[0] = ((InetSocketAddress) from).getPort();
         	}
-        	return dp.getLength();
+        	return b.position() - off;
         }
         
         public int write(byte[] a, int off, int length) throws ErrnoException {
             if(type() == TYPE_DGRAM) return  sendto(a,off,length,null,-1);
 
-            if(os == null) throw new ErrnoException(EPIPE);
+            SocketChannel ch = connected();
+            java.nio.ByteBuffer b = java.nio.ByteBuffer.wrap(a,off,length);
             try {
-                os.write(a,off,length);
-                return length;
+                // blocking sockets write everything, non-blocking ones as much as fits
+                while(b.hasRemaining()) {
+                    if(ch.write(b) != 0) continue;
+                    if(nonBlocking && b.position() != off) break;
+                    await(ch,SelectionKey.OP_WRITE);
+                }
+                return b.position() - off;
             } catch(IOException e) {
                 throw new ErrnoException(EIO);
             }
         }
         
         public int sendto(byte[] a, int off, int length, InetAddress destAddr, int destPort) throws ErrnoException {
-        	if(off != 0) throw new IllegalArgumentException("off must be 0");
         	if(type() == TYPE_STREAM) return write(a,off,length);
         	
         	if(destAddr == null) {
@@ -824,23 +1200,38 @@ public abstract class UnixRuntime extends Runtime implements Cloneable {
         		if(destAddr == null) throw new ErrnoException(ENOTCONN);
         	}
         	
-        	dp.setAddress(destAddr);
-        	dp.setPort(destPort);
-        	dp.setData(a);
-        	dp.setLength(length);
-        	
+        	java.nio.ByteBuffer b = java.nio.ByteBuffer.wrap(a,off,length);
+        	SocketAddress to = new InetSocketAddress(destAddr,destPort);
         	try {
-        		if(ds == null) ds = new DatagramSocket();
-        		ds.send(dp);
+        		if(dc == null) dc = newDatagramChannel();
+        		// send() is all or nothing
+        		while(dc.send(b,to) == 0 && length != 0) await(dc,SelectionKey.OP_WRITE);
         	} catch(IOException e) {
         		if(STDERR_DIAG) e.printStackTrace();
         		if("Network is unreachable".equals(e.getMessage())) throw new ErrnoException(EHOSTUNREACH);
         		throw new ErrnoException(EIO);
         	}
-        	return dp.getLength();
+        	return length;
         }
-
-        public int flags() { return O_RDWR; }
+        
+        SelectableChannel channel() {
+            if(sc != null) return sc;
+            if(ssc != null) return ssc;
+            return dc;
+        }
+        
+        // only called if there is no channel, or it has been closed
+        public int poll(int events) {
+            if(type() == TYPE_DGRAM && dc == null) return events & POLLOUT;
+            return (events & (POLLIN|POLLOUT)) | POLLHUP;
+        }
+        
+        boolean setFlags(int flags) {
+            nonBlocking = (flags & O_NONBLOCK) != 0;
+            return true;
+        }
+        
+        public int flags() { return O_RDWR | (nonBlocking ? O_NONBLOCK : 0); }
         public FStat _fstat() { return new SocketFStat(); }
     }
     
@@ -860,7 +1251,8 @@ public abstract class UnixRuntime extends Runtime implements Cloneable {
     private int sys_connect(int fdn, int addr, int namelen) throws ErrnoException, FaultException {
         SocketFD fd = getSocketFD(fdn);
         
-        if(fd.type() == SocketFD.TYPE_STREAM && (fd.s != null || fd.ss != null)) return -EISCONN;
+        if(fd.type() == SocketFD.TYPE_STREAM && fd.sc != null && fd.sc.isConnectionPending()) return -EALREADY;
+        if(fd.type() == SocketFD.TYPE_STREAM && (fd.sc != null || fd.ssc != null)) return -EISCONN;
         int word1 = memRead(addr);
         if( ((word1 >>> 16)&0xff) != AF_INET) return -EAFNOSUPPORT;
         int port = word1 & 0xffff;
@@ -880,11 +1272,27 @@ public abstract class UnixRuntime extends Runtime implements Cloneable {
         try {
             switch(fd.type()) {
                 case SocketFD.TYPE_STREAM: {
-                    Socket s = new Socket(inetAddr,port);
-                    fd.s = s;
+                    SocketChannel ch = SocketFD.newSocketChannel();
+                    try {
+                        if(!ch.connect(new InetSocketAddress(inetAddr,port))) {
+                            fd.sc = ch;
+                            fd.setOptions();
+                            // the guest finds out how it went with poll() and getsockopt(SO_ERROR)
+                            if(fd.nonBlocking) return -EINPROGRESS;
+                            while(!fd.finishConnect()) fd.await(ch,SelectionKey.OP_CONNECT);
+                            return 0;
+                        }
+                    } catch(IOException e) {
+                        fd.sc = null;
+                        ch.close();
+                        throw e;
+                    } catch(ErrnoException e) {
+                        fd.sc = null;
+                        ch.close();
+                        throw e;
+                    }
+                    fd.sc = ch;
                     fd.setOptions();
-                    fd.is = s.getInputStream();
-                    fd.os = s.getOutputStream();
                     break;
                 }
                 case SocketFD.TYPE_DGRAM:
@@ -893,7 +1301,7 @@ public abstract class UnixRuntime extends Runtime implements Cloneable {
                     throw new Error("should never happen");
             }
         } catch(IOException e) {
-            return -ECONNREFUSED;
+            return -SocketFD.connectErrno(e);
         }
         
         return 0;
@@ -955,6 +1363,22 @@ public abstract class UnixRuntime extends Runtime implements Cloneable {
                         memWrite(lenaddr,4);
                         return 0;
                     }
+                    case SO_ERROR: {
+                        int len = memRead(lenaddr);
+                        if(len < 4) return -EINVAL;
+                        // the result of a non-blocking connect()
+                        int val = 0;
+                        if(fd.sc != null && fd.sc.isConnectionPending()) {
+                            try {
+                                fd.finishConnect();
+                            } catch(ErrnoException e) {
+                                val = e.errno;
+                            }
+                        }
+                        memWrite(valaddr,val);
+                        memWrite(lenaddr,4);
+                        return 0;
+                    }
                     default:
                         if(STDERR_DIAG) System.err.println("Unknown setsockopt name passed: " + name);
                         return -ENOPROTOOPT;
@@ -968,7 +1392,7 @@ public abstract class UnixRuntime extends Runtime implements Cloneable {
     private int sys_bind(int fdn, int addr, int namelen) throws FaultException, ErrnoException {
         SocketFD fd = getSocketFD(fdn);
         
-        if(fd.type() == SocketFD.TYPE_STREAM && (fd.s != null || fd.ss != null)) return -EISCONN;
+        if(fd.type() == SocketFD.TYPE_STREAM && (fd.sc != null || fd.ssc != null)) return -EISCONN;
         int word1 = memRead(addr);
         if( ((word1 >>> 16)&0xff) != AF_INET) return -EAFNOSUPPORT;
         int port = word1 & 0xffff;
@@ -991,12 +1415,21 @@ public abstract class UnixRuntime extends Runtime implements Cloneable {
                 return 0;
             }
             case SocketFD.TYPE_DGRAM: {
-                if(fd.ds != null) fd.ds.close();
                 try {
-                    fd.ds = inetAddr != null ? new DatagramSocket(port,inetAddr) : new DatagramSocket(port);
+                    if(fd.dc != null) fd.dc.close();
+                } catch(IOException e) {
+                    /* ignore */
+                }
+                fd.dc = null;
+                DatagramChannel ch = null;
+                try {
+                    ch = SocketFD.newDatagramChannel();
+                    ch.socket().bind(inetAddr != null ? new InetSocketAddress(inetAddr,port) : new InetSocketAddress(port));
                 } catch(IOException e) {
+                    if(ch != null) try { ch.close(); } catch(IOException e2) { /* ignore */ }
                     return -EADDRINUSE;
                 }
+                fd.dc = ch;
                 return 0;
             }
             default:
@@ -1007,14 +1440,18 @@ public abstract class UnixRuntime extends Runtime implements Cloneable {
     private int sys_listen(int fdn, int backlog) throws ErrnoException {
         SocketFD fd = getSocketFD(fdn);
         if(fd.type() != SocketFD.TYPE_STREAM) return -EOPNOTSUPP;
-        if(fd.ss != null || fd.s != null) return -EISCONN;
+        if(fd.ssc != null || fd.sc != null) return -EISCONN;
         if(fd.bindPort < 0) return -EOPNOTSUPP;
         
+        ServerSocketChannel ch = null;
         try {
-            fd.ss = new ServerSocket(fd.bindPort,backlog,fd.bindAddr);
+            ch = SocketFD.newServerSocketChannel();
+            ch.socket().bind(new InetSocketAddress(fd.bindAddr,fd.bindPort),backlog);
+            fd.ssc = ch;
             fd.flags |= SocketFD.LISTEN;
             return 0;
         } catch(IOException e) {
+            if(ch != null) try { ch.close(); } catch(IOException e2) { /* ignore */ }
             return -EADDRINUSE;
         }
         
@@ -1027,29 +1464,25 @@ public abstract class UnixRuntime extends Runtime implements Cloneable {
 
         int size = memRead(lenaddr);
         
-        ServerSocket s = fd.ss;
-        Socket client;
+        SocketChannel client;
         try {
-            client = s.accept();
+            while((client = fd.ssc.accept()) == null) fd.await(fd.ssc,SelectionKey.OP_ACCEPT);
+            client.configureBlocking(false);
         } catch(IOException e) {
             return -EIO;
         }
         
+        Socket s = client.socket();
         if(size >= 8) {
-            memWrite(addr,(6 << 24) | (AF_INET << 16) | client.getPort());
-            byte[] b = client.getInetAddress().getAddress();
+            memWrite(addr,(6 << 24) | (AF_INET << 16) | s.getPort());
+            byte[] b = s.getInetAddress().getAddress();
             copyout(b,addr+4,4);
             memWrite(lenaddr,8);
         }
         
+        // O_NONBLOCK isn't inherited
         SocketFD clientFD = new SocketFD(SocketFD.TYPE_STREAM);
-        clientFD.s = client;
-        try {
-            clientFD.is = client.getInputStream();
-            clientFD.os = client.getOutputStream();
-        } catch(IOException e) {
-            return -EIO;
-        }
+        clientFD.sc = client;
         int n = addFD(clientFD);
         if(n == -1) { clientFD.close(); return -ENFILE; }
         return n;
@@ -1058,9 +1491,9 @@ public abstract class UnixRuntime extends Runtime implements Cloneable {
     private int sys_shutdown(int fdn, int how) throws ErrnoException {
         SocketFD fd = getSocketFD(fdn);
         if(fd.type() != SocketFD.TYPE_STREAM || fd.listen()) return -EOPNOTSUPP;
-        if(fd.s == null) return -ENOTCONN;
+        if(fd.sc == null || !fd.sc.isConnected()) return -ENOTCONN;
         
-        Socket s = fd.s;
+        Socket s = fd.sc.socket();
         
         try {
             if(how == SHUT_RD || how == SHUT_RDWR) Platform.socketHalfClose(s,false);
@@ -1120,8 +1553,188 @@ public abstract class UnixRuntime extends Runtime implements Cloneable {
     	return n;
     }
     
-    private int sys_select(int n, int readFDs, int writeFDs, int exceptFDs, int timevalAddr) throws ReadFaultException, ErrnoException {
-    	return -ENOSYS;
+    /** How often select() and poll() check fds that can't wake them up (in milliseconds) */
+    private static final int POLL_INTERVAL = 10;
+    
+    /** Waits until one of <i>fds</i> is ready for one of its <i>events</i> or <i>timeout</i> milliseconds pass
+        (forever if it is negative). Fills in <i>revents</i> and returns the number of fds that are ready.
+        Null entries are skipped. Fds with a channel are waited on with a Selector (channels that are in blocking
+        mode are switched to non-blocking mode while this runs). Pipes wake the Selector up when something
+        changes, anything else is checked every POLL_INTERVAL milliseconds. */
+    private static int poll(FD[] fds, int[] events, int[] revents, int timeout) throws ErrnoException {
+        int n = fds.length;
+        SelectionKey[] keys = new SelectionKey[n];
+        boolean[] wasBlocking = new boolean[n];
+        boolean[] waiting = new boolean[n];
+        boolean polling = false;
+        long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : 0;
+        Selector sel = null;
+        try {
+            sel = Selector.open();
+            for(int i=0;i<n;i++) {
+                revents[i] = 0;
+                if(fds[i] == null) continue;
+                SelectableChannel ch = fds[i].channel();
+                if(ch != null) {
+                    int ops = interestOps(ch,events[i]);
+                    try {
+                        synchronized(ch.blockingLock()) {
+                            SelectionKey key = ch.keyFor(sel);
+                            if(key != null) {
+                                // the same fd more than once
+                                key.interestOps(key.interestOps() | ops);
+                            } else {
+                                wasBlocking[i] = ch.isBlocking();
+                                if(wasBlocking[i]) ch.configureBlocking(false);
+                                key = ch.register(sel,ops);
+                            }
+                            keys[i] = key;
+                        }
+                        continue;
+                    } catch(ClosedChannelException e) {
+                        // SocketFD.poll() takes care of it
+                    }
+                }
+                if(fds[i].addWaiter(sel)) waiting[i] = true;
+                else polling = true;
+            }
+            
+            for(;;) {
+                // selectNow() forgets about earlier wakeup()s, so it has to come before checking the pipes
+                sel.selectedKeys().clear();
+                sel.selectNow();
+                int ready = 0;
+                for(int i=0;i<n;i++) {
+                    if(fds[i] == null) continue;
+                    if(keys[i] != null)
+                        revents[i] = keys[i].isValid() && sel.selectedKeys().contains(keys[i]) ? readyEvents(keys[i].readyOps()) & events[i] : 0;
+                    else
+                        revents[i] = fds[i].poll(events[i]);
+                    if(revents[i] != 0) ready++;
+                }
+                if(ready != 0 || timeout == 0) return ready;
+                long wait = 0;
+                if(timeout > 0) {
+                    wait = deadline - System.currentTimeMillis();
+                    if(wait <= 0) return 0;
+                }
+                if(polling && (wait == 0 || wait > POLL_INTERVAL)) wait = POLL_INTERVAL;
+                sel.select(wait);
+            }
+        } catch(IOException e) {
+            if(STDERR_DIAG) e.printStackTrace();
+            throw new ErrnoException(EIO);
+        } finally {
+            for(int i=0;i<n;i++) if(waiting[i]) fds[i].removeWaiter(sel);
+            // closing the selector deregisters the channels, after that they can go back to blocking mode
+            if(sel != null) try { sel.close(); } catch(IOException e) { /* ignore */ }
+            for(int i=0;i<n;i++) {
+                if(!wasBlocking[i]) continue;
+                SelectableChannel ch = keys[i].channel();
+                synchronized(ch.blockingLock()) {
+                    try {
+                        if(ch.isOpen() && !ch.isRegistered()) ch.configureBlocking(true);
+                    } catch(IOException e) {
+                        /* ignore */
+                    }
+                }
+            }
+        }
+    }
+    
+    private static int interestOps(SelectableChannel ch, int events) {
+        int ops = 0;
+        if((events & POLLIN) != 0) ops |= SelectionKey.OP_READ | SelectionKey.OP_ACCEPT;
+        if((events & POLLOUT) != 0)
+            ops |= ch instanceof SocketChannel && ((SocketChannel) ch).isConnectionPending() ? SelectionKey.OP_CONNECT : SelectionKey.OP_WRITE;
+        return ops & ch.validOps();
+    }
+    
+    private static int readyEvents(int ops) {
+        int events = 0;
+        if((ops & (SelectionKey.OP_READ | SelectionKey.OP_ACCEPT)) != 0) events |= POLLIN;
+        if((ops & (SelectionKey.OP_WRITE | SelectionKey.OP_CONNECT)) != 0) events |= POLLOUT;
+        return events;
+    }
+    
+    private int sys_select(int n, int readFDs, int writeFDs, int exceptFDs, int timevalAddr) throws FaultException, ErrnoException {
+        if(n < 0) return -EINVAL;
+        n = min(n,OPEN_MAX);
+        int words = (n+31)>>>5;
+        int[] rset = new int[words];
+        int[] wset = new int[words];
+        for(int i=0;i<words;i++) {
+            if(readFDs != 0) rset[i] = memRead(readFDs+i*4);
+            if(writeFDs != 0) wset[i] = memRead(writeFDs+i*4);
+        }
+        
+        int count = 0;
+        for(int fdn=0;fdn<n;fdn++)
+            if(((rset[fdn>>>5] | wset[fdn>>>5]) & (1<<(fdn&31))) != 0) count++;
+        FD[] pfds = new FD[count];
+        int[] fdns = new int[count];
+        int[] events = new int[count];
+        int[] revents = new int[count];
+        for(int fdn=0,i=0;fdn<n;fdn++) {
+            int bit = 1<<(fdn&31);
+            int ev = ((rset[fdn>>>5] & bit) != 0 ? POLLIN : 0) | ((wset[fdn>>>5] & bit) != 0 ? POLLOUT : 0);
+            if(ev == 0) continue;
+            if(fds[fdn] == null) return -EBADF;
+            pfds[i] = fds[fdn];
+            fdns[i] = fdn;
+            events[i++] = ev;
+        }
+        
+        int timeout = -1;
+        if(timevalAddr != 0) {
+            int sec = memRead(timevalAddr);
+            int usec = memRead(timevalAddr+4);
+            if(sec < 0 || usec < 0) return -EINVAL;
+            long ms = sec*1000L + (usec+999)/1000;
+            timeout = ms > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) ms;
+        }
+        
+        poll(pfds,events,revents,timeout);
+        
+        int ready = 0;
+        for(int i=0;i<words;i++) rset[i] = wset[i] = 0;
+        for(int i=0;i<count;i++) {
+            int bit = 1<<(fdns[i]&31);
+            if((events[i] & POLLIN) != 0 && (revents[i] & (POLLIN|POLLHUP|POLLERR)) != 0) { rset[fdns[i]>>>5] |= bit; ready++; }
+            if((events[i] & POLLOUT) != 0 && (revents[i] & (POLLOUT|POLLERR)) != 0) { wset[fdns[i]>>>5] |= bit; ready++; }
+        }
+        for(int i=0;i<words;i++) {
+            if(readFDs != 0) memWrite(readFDs+i*4,rset[i]);
+            if(writeFDs != 0) memWrite(writeFDs+i*4,wset[i]);
+            // nothing ever has an exceptional condition
+            if(exceptFDs != 0) memWrite(exceptFDs+i*4,0);
+        }
+        return ready;
+    }
+    
+    private int sys_poll(int addr, int nfds, int timeout) throws FaultException, ErrnoException {
+        if(nfds < 0 || nfds > OPEN_MAX) return -EINVAL;
+        FD[] pfds = new FD[nfds];
+        int[] fdns = new int[nfds];
+        int[] events = new int[nfds];
+        int[] revents = new int[nfds];
+        boolean invalid = false;
+        for(int i=0;i<nfds;i++) {
+            int fdn = memRead(addr+i*8);
+            fdns[i] = fdn;
+            events[i] = memRead(addr+i*8+4) >>> 16;
+            if(fdn < 0) continue;
+            if(fdn >= OPEN_MAX || fds[fdn] == null) invalid = true;
+            else pfds[i] = fds[fdn];
+        }
+        
+        int ready = poll(pfds,events,revents,invalid ? 0 : timeout);
+        
+        for(int i=0;i<nfds;i++) {
+            if(fdns[i] >= 0 && pfds[i] == null) { revents[i] = POLLNVAL; ready++; }
+            memWrite(addr+i*8+4,(events[i]<<16) | (revents[i]&0xffff));
+        }
+        return ready;
     }
     
     private static String hostName() {
@@ -1173,7 +1786,54 @@ public abstract class UnixRuntime extends Runtime implements Cloneable {
     }
     
     public static final class GlobalState {
-        Hashtable execCache = new Hashtable();
+        final ExecCache execCache = new ExecCache(ExecCache.defaultSize());
+        
+        /** The cache of binaries and scripts exec() has seen, with hit and compile statistics */
+        public ExecCache getExecCache() { return execCache; }
+        
+        /** True to interpret newly exec()ed binaries while they are compiled in the background */
+        boolean tieredExec;
+        /** Number of calls/backward branches into a function before a tiered binary is compiled */
+        int tierThreshold = 10000;
+        
+        /** Enables or disables tiered execution. When enabled exec() starts binaries that aren't
+            already compiled in the Interpreter and only compiles them (in the background) once
+            they've run long enough for it to pay off. */
+        public void setTieredExec(boolean tieredExec) { this.tieredExec = tieredExec; }
+        public void setTieredExec(boolean tieredExec, int threshold) {
+            if(threshold <= 0) throw new IllegalArgumentException("threshold <= 0");
+            this.tieredExec = tieredExec;
+            this.tierThreshold = threshold;
+        }
+        
+        /** Compiled classes that outlive the JVM, null if there is no such cache */
+        CompileCache compileCache;
+        
+        /** Sets the on-disk cache exec() looks in before running the RuntimeCompiler (null for none) */
+        public void setCompileCache(CompileCache compileCache) { this.compileCache = compileCache; }
+        public CompileCache getCompileCache() { return compileCache; }
+        
+        /** Runs forked processes, null starts a ForkedProcess thread for each */
+        ProcessExecutor executor;
+        
+        /** Sets what runs the processes fork() creates. null (the default) starts a new thread for each one. */
+        public void setExecutor(ProcessExecutor executor) { this.executor = executor; }
+        public ProcessExecutor getExecutor() { return executor; }
+        
+        /** Runs forked processes on virtual threads, which are much cheaper to start than platform threads.
+            Virtual threads need JDK 21 or later, if they aren't available nothing changes and false is
+            returned. Passing false goes back to a platform thread per process. Can also be turned on for the
+            default GlobalState with the nestedvm.virtualthreads system property. Processes blocked in
+            waitpid() or on a pipe or socket wait on Platform.Locks and don't tie up a carrier thread. */
+        public boolean setVirtualThreads(boolean on) {
+            if(!on) {
+                if(executor == VIRTUAL_THREADS) executor = null;
+                return true;
+            }
+            if(!Platform.supportsVirtualThreads()) return false;
+            executor = VIRTUAL_THREADS;
+            return true;
+        }
         
         final UnixRuntime[] tasks;
         int nextPID = 1;
@@ -1329,13 +1989,6 @@ public abstract class UnixRuntime extends Runtime implements Cloneable {
         public final void mkdir(UnixRuntime r, String path, int mode) throws ErrnoException { fsop(FS.MKDIR,r,path,mode,0); }
         public final void unlink(UnixRuntime r, String path) throws ErrnoException { fsop(FS.UNLINK,r,path,0,0); }
         public final void chmod(UnixRuntime r, String path, int mode) throws ErrnoException { fsop(FS.CHMOD,r,path,mode,0); }
-        
-        private static class CacheEnt {
-            public final long time;
-            public final long size;
-            public final Object o;
-            public CacheEnt(long time, long size, Object o) { this.time = time; this.size = size; this.o = o; }
-        }
     }
     
     public abstract static class FS {
@@ -90,6 +90,10 @@ public interface UsermodeConstants {
     public static final int SYS_setgroups = 88;
     public static final int SYS_resolve_ip = 89;
     public static final int SYS_setsid = 90;
+    public static final int SYS_mmap = 91;
+    public static final int SYS_munmap = 92;
+    public static final int SYS_madvise = 93;
+    public static final int SYS_poll = 94;
     public static final int AF_UNIX = 1;
     public static final int AF_INET = 2;
     public static final int SOCK_STREAM = 1;
@@ -103,6 +107,7 @@ public interface UsermodeConstants {
     public static final int SO_KEEPALIVE = 0x0008; 
     public static final int SO_BROADCAST = 0x0020;
     public static final int SO_TYPE = 0x1008;
+    public static final int SO_ERROR = 0x1007;
     public static final int SHUT_RD = 0;
     public static final int SHUT_WR = 1;
     public static final int SHUT_RDWR = 2;
@@ -455,6 +460,25 @@ public interface UsermodeConstants {
     public static final int CTL_P1003_1B_SIGQUEUE_MAX = 24; /* int */
     public static final int CTL_P1003_1B_TIMER_MAX = 25; /* int */
     public static final int CTL_P1003_1B_MAXID = 26;
+    public static final int PROT_NONE = 0x0;
+    public static final int PROT_READ = 0x1;
+    public static final int PROT_WRITE = 0x2;
+    public static final int PROT_EXEC = 0x4;
+    public static final int MAP_SHARED = 0x1;
+    public static final int MAP_PRIVATE = 0x2;
+    public static final int MAP_FIXED = 0x10;
+    public static final int MAP_ANONYMOUS = 0x20;
+    public static final int MADV_NORMAL = 0x0;
+    public static final int MADV_RANDOM = 0x1;
+    public static final int MADV_SEQUENTIAL = 0x2;
+    public static final int MADV_WILLNEED = 0x3;
+    public static final int MADV_DONTNEED = 0x4;
+    public static final int POLLIN = 0x1;
+    public static final int POLLPRI = 0x2;
+    public static final int POLLOUT = 0x4;
+    public static final int POLLERR = 0x8;
+    public static final int POLLHUP = 0x10;
+    public static final int POLLNVAL = 0x20;
     public static final int F_UNLKSYS = 4;
     public static final int F_CNVT = 12;
     public static final int F_SETFD = 2;
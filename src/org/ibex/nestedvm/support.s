@@ -195,3 +195,7 @@ SYSCALL(alarm)
 SYSCALL_R(getgroups)
 SYSCALL_R(setsid)
 SYSCALL_R2(__resolve_ip_r,SYS_resolve_ip)
+SYSCALL_R_LONG(mmap)
+SYSCALL_R(munmap)
+SYSCALL_R(madvise)
+SYSCALL_R(poll)
@@ -10,6 +10,7 @@
 #include <stdio.h>
 #include <signal.h>
 #include <sys/sysctl.h>
+#include <sys/poll.h>
 #include <sys/utsname.h>
 #include <paths.h>
 #include <ctype.h>
@@ -117,6 +118,10 @@ REENT_WRAPPER1(setgid,gid_t)
 REENT_WRAPPER1(setegid,gid_t)
 REENT_WRAPPER2(setgroups,int,const gid_t *)
 REENT_WRAPPER0R(setsid,pid_t)
+REENT_WRAPPER6R(mmap,void *,void *,size_t,int,int,int,off_t)
+REENT_WRAPPER2(munmap,void *,size_t)
+REENT_WRAPPER3(madvise,void *,size_t,int)
+REENT_WRAPPER3(poll,struct pollfd *,nfds_t,int)
 
 extern int __execve_r(struct _reent *ptr, const char *path, char *const argv[], char *const envp[]);
 int _execve(const char *path, char *const argv[], char *const envp[]) {
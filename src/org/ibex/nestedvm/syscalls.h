@@ -85,3 +85,7 @@
 #define SYS_setgroups 88
 #define SYS_resolve_ip 89
 #define SYS_setsid 90
+#define SYS_mmap 91
+#define SYS_munmap 92
+#define SYS_madvise 93
+#define SYS_poll 94
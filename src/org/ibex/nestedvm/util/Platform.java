@@ -15,6 +15,7 @@ import java.text.DateFormatSymbols;
  GCCLASS_HINT: org.ibex.nestedvm.util.Platform.<clinit> org.ibex.nestedvm.util.Platform$Jdk12.<init>
  GCCLASS_HINT: org.ibex.nestedvm.util.Platform.<clinit> org.ibex.nestedvm.util.Platform$Jdk13.<init>
  GCCLASS_HINT: org.ibex.nestedvm.util.Platform.<clinit> org.ibex.nestedvm.util.Platform$Jdk14.<init>
+ GCCLASS_HINT: org.ibex.nestedvm.util.Platform.<clinit> org.ibex.nestedvm.util.Platform$Jdk21.<init>
 */
 
 public abstract class Platform {
@@ -33,7 +34,8 @@ public abstract class Platform {
             version = 1.1f;
         }
         String platformClass;
-        if(version >= 1.4f) platformClass = "Jdk14";
+        if(version >= 21f) platformClass = "Jdk21";
+        else if(version >= 1.4f) platformClass = "Jdk14";
         else if(version >= 1.3f) platformClass = "Jdk13";
         else if(version >= 1.2f) platformClass = "Jdk12";
         else if(version >= 1.1f) platformClass = "Jdk11";
@@ -81,6 +83,52 @@ public abstract class Platform {
     abstract File _getRoot(File f);
     public static File getRoot(File f) { return p._getRoot(f); }
     
+    abstract boolean _startVirtualThread(Runnable r);
+    /** Runs <i>r</i> on a new virtual thread. Returns false if the JVM doesn't have them (before JDK 21). */
+    public static boolean startVirtualThread(Runnable r) { return p._startVirtualThread(r); }
+    public static boolean supportsVirtualThreads() { return p instanceof Jdk21; }
+    
+    /** A lock with a single condition to wait on. Where there are virtual threads it is a ReentrantLock, a
+        virtual thread waiting in synchronized or Object.wait() can't give up its carrier thread. */
+    public static abstract class Lock {
+        public abstract void lock();
+        public abstract void unlock();
+        /** Gives up the lock (the caller has to hold it) until signalAll() is called, or spuriously */
+        public abstract void await();
+        public abstract void signalAll();
+    }
+    
+    abstract Lock _newLock();
+    public static Lock newLock() { return p._newLock(); }
+    
+    static class MonitorLock extends Lock {
+        private Thread owner;
+        private int holds;
+        public synchronized void lock() {
+            Thread t = Thread.currentThread();
+            if(owner == t) { holds++; return; }
+            while(owner != null) try { wait(); } catch(InterruptedException e) { /* ignore */ }
+            owner = t;
+            holds = 1;
+        }
+        public synchronized void unlock() {
+            if(owner != Thread.currentThread()) throw new IllegalMonitorStateException();
+            if(--holds == 0) { owner = null; notifyAll(); }
+        }
+        public synchronized void await() {
+            Thread t = owner;
+            int h = holds;
+            if(t != Thread.currentThread()) throw new IllegalMonitorStateException();
+            owner = null;
+            notifyAll();
+            try { wait(); } catch(InterruptedException e) { /* ignore */ }
+            while(owner != null) try { wait(); } catch(InterruptedException e) { /* ignore */ }
+            owner = t;
+            holds = h;
+        }
+        public synchronized void signalAll() { notifyAll(); }
+    }
+    
     static class Jdk11 extends Platform {
         boolean _atomicCreateFile(File f) throws IOException {
             // This is not atomic, but its the best we can do on jdk 1.1
@@ -152,6 +200,9 @@ public abstract class Platform {
             if(f.getPath().length() == 0) f = new File("/"); // work around a classpath bug
             return f;
         }
+        
+        boolean _startVirtualThread(Runnable r) { return false; }
+        Lock _newLock() { return new MonitorLock(); }
     }
     
     static class Jdk12 extends Jdk11 {
@@ -186,4 +237,38 @@ public abstract class Platform {
     static class Jdk14 extends Jdk13 {
         InetAddress _inetAddressFromBytes(byte[] a) throws UnknownHostException { return InetAddress.getByAddress(a); } 
     }
+    
+    static class Jdk21 extends Jdk14 {
+        // looked up reflectively so this still compiles with older JDKs
+        private final java.lang.reflect.Method startVirtualThread;
+        Jdk21() throws NoSuchMethodException {
+            startVirtualThread = Thread.class.getMethod("startVirtualThread",new Class[]{Runnable.class});
+        }
+        
+        boolean _startVirtualThread(Runnable r) {
+            try {
+                startVirtualThread.invoke(null,new Object[]{r});
+                return true;
+            } catch(java.lang.reflect.InvocationTargetException e) {
+                Throwable t = e.getTargetException();
+                if(t instanceof RuntimeException) throw (RuntimeException) t;
+                if(t instanceof Error) throw (Error) t;
+                throw new Error(t.toString());
+            } catch(IllegalAccessException e) {
+                throw new Error(e.toString());
+            }
+        }
+        
+        Lock _newLock() { return new ConcurrentLock(); }
+    }
+    
+    // only loaded on JDK 21 and later
+    static class ConcurrentLock extends Lock {
+        private final java.util.concurrent.locks.ReentrantLock lock = new java.util.concurrent.locks.ReentrantLock();
+        private final java.util.concurrent.locks.Condition cond = lock.newCondition();
+        public void lock() { lock.lock(); }
+        public void unlock() { lock.unlock(); }
+        public void await() { cond.awaitUninterruptibly(); }
+        public void signalAll() { cond.signalAll(); }
+    }
 }
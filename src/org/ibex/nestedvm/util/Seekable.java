@@ -18,6 +18,12 @@ public abstract class Seekable {
         throw new IOException("resize not implemented for " + getClass());
     }
     
+    /** Maps <i>length</i> bytes starting at <i>offset</i> into memory (JDK 1.4+). Changes to a writable
+        mapping go straight to the underlying file. */
+    public java.nio.ByteBuffer map(int offset, int length, boolean writable) throws IOException {
+        throw new IOException("map not implemented for " + getClass());
+    }
+    
     public int read() throws IOException {
         byte[] buf = new byte[1];
         int n = read(buf,0,1);
@@ -88,6 +94,13 @@ public abstract class Seekable {
         public int length() throws IOException { return (int)raf.length(); }
         public void close() throws IOException { raf.close(); }
         public void resize(long length) throws IOException { raf.setLength(length); }
+        public java.nio.ByteBuffer map(int offset, int length, boolean writable) throws IOException {
+            try {
+                return raf.getChannel().map(writable ? java.nio.channels.FileChannel.MapMode.READ_WRITE : java.nio.channels.FileChannel.MapMode.READ_ONLY,offset,length);
+            } catch(java.nio.channels.NonWritableChannelException e) {
+                throw new IOException("file not opened for writing");
+            }
+        }
     }
     
     public static class InputStream extends Seekable {
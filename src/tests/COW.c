@@ -0,0 +1,97 @@
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <unistd.h>
+#include <sys/types.h>
+#include <sys/wait.h>
+
+/* fork() shares pages copy-on-write, a write on either side must only be seen on that side */
+
+#define HEAP_SIZE (64*1024)
+
+static int failures;
+static int data_var = 1;
+static int bss_var;
+
+static void check(int cond, const char *what) {
+    fprintf(stderr,"%s: %s\n",cond ? "ok" : "FAILED",what);
+    if(!cond) failures++;
+}
+
+static void fill(char *buf, int c) {
+    int i;
+    for(i=0;i<HEAP_SIZE;i+=1024) buf[i] = c;
+}
+
+static int filled(const char *buf, int c) {
+    int i;
+    for(i=0;i<HEAP_SIZE;i+=1024) if(buf[i] != c) return 0;
+    return 1;
+}
+
+static void wait_for(int fd) {
+    char c;
+    if(read(fd,&c,1) != 1) { perror("read"); _exit(2); }
+}
+
+static void signal_other(int fd) {
+    if(write(fd,"x",1) != 1) { perror("write"); _exit(2); }
+}
+
+int main() {
+    int to_child[2], to_parent[2];
+    int stack_var = 1;
+    char *heap = malloc(HEAP_SIZE);
+    pid_t pid;
+    int status;
+
+    if(heap == NULL) { perror("malloc"); return 1; }
+    if(pipe(to_child) < 0 || pipe(to_parent) < 0) { perror("pipe"); return 1; }
+    bss_var = 1;
+    fill(heap,'a');
+
+    pid = fork();
+    if(pid < 0) { perror("fork"); return 1; }
+    if(pid == 0) {
+        /* the parent writes first, we must not see it */
+        wait_for(to_child[0]);
+        check(data_var == 1,"child: .data is unchanged after the parent writes it");
+        check(bss_var == 1,"child: .bss is unchanged after the parent writes it");
+        check(stack_var == 1,"child: the stack is unchanged after the parent writes it");
+        check(filled(heap,'a'),"child: the heap is unchanged after the parent writes it");
+
+        /* now we write, the parent must not see it */
+        data_var = 3;
+        bss_var = 3;
+        stack_var = 3;
+        fill(heap,'c');
+        check(data_var == 3 && bss_var == 3 && stack_var == 3 && filled(heap,'c'),"child: sees its own writes");
+        signal_other(to_parent[1]);
+        _exit(failures ? 1 : 0);
+    }
+
+    data_var = 2;
+    bss_var = 2;
+    stack_var = 2;
+    fill(heap,'b');
+    check(data_var == 2 && bss_var == 2 && stack_var == 2 && filled(heap,'b'),"parent: sees its own writes");
+    signal_other(to_child[1]);
+
+    wait_for(to_parent[0]);
+    check(data_var == 2,"parent: .data is unchanged after the child writes it");
+    check(bss_var == 2,"parent: .bss is unchanged after the child writes it");
+    check(stack_var == 2,"parent: the stack is unchanged after the child writes it");
+    check(filled(heap,'b'),"parent: the heap is unchanged after the child writes it");
+
+    if(waitpid(pid,&status,0) < 0) { perror("waitpid"); return 1; }
+    check(WIFEXITED(status) && WEXITSTATUS(status) == 0,"child: all checks passed");
+
+    /* pages the child shared are ours alone now */
+    data_var = 4;
+    fill(heap,'d');
+    check(data_var == 4 && filled(heap,'d'),"parent: writes after the child exited");
+
+    if(failures) fprintf(stderr,"%d checks failed\n",failures);
+    else fprintf(stderr,"All copy-on-write checks passed\n");
+    return failures ? 1 : 0;
+}
@@ -50,6 +50,22 @@ public class CallTest {
         int ret = rt.call("callme",new int[]{a1,a2,a3,a4,a5,a6});
         System.out.println("callme returned: " + ret);
         
+        // a handle resolves callme once, every call through it has to behave like call(String,...)
+        Runtime.CallHandle callme = rt.callHandle("callme");
+        int[] args2 = new int[6];
+        boolean same = true;
+        for(int i=0;i<10;i++) {
+            args2[0] = a1+i; args2[1] = a2; args2[2] = a3-i; args2[3] = a4; args2[4] = a5*i; args2[5] = a6;
+            int expected = args2[0]+args2[1]+args2[2]+args2[3]+args2[4]+args2[5];
+            int viaHandle = callme.call(args2,6);
+            int viaName = rt.call("callme",args2);
+            if(viaHandle != viaName || viaHandle != expected) {
+                System.out.println("call " + i + ": CallHandle returned " + viaHandle + ", call() " + viaName + ", expected " + expected);
+                same = false;
+            }
+        }
+        System.out.println("CallHandle " + (same ? "matches" : "DOESN'T match") + " call()");
+        
         int addr = rt.strdup("Hello, World from java");
         rt.call("echo",addr,4);
         rt.free(addr);
@@ -57,7 +73,7 @@ public class CallTest {
         System.out.println("== End of CallTest ==");
         
         rt.execute();
-        System.exit(rt.exitStatus());
+        System.exit(same ? rt.exitStatus() : 1);
     }
     
     private static class CustomOS extends OutputStream {
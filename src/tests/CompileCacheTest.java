@@ -0,0 +1,92 @@
+// Copyright 2000-2005 the Contributors, as shown in the revision logs.
+// Licensed under the Apache Public Source License 2.0 ("the License").
+// You may not use this file except in compliance with the License.
+
+package tests;
+
+import org.ibex.nestedvm.CompileCache;
+import java.io.*;
+
+/** Checks that a CompileCache that grows past its size limit drops the entries used least recently and
+    that broken entries are dropped instead of being returned. Doesn't need any MIPS binaries. */
+class CompileCacheTest {
+    private static final int ENTRY = 1000;
+
+    private static int failures;
+
+    private static void check(boolean cond, String what) {
+        System.err.println((cond ? "ok" : "FAILED") + ": " + what);
+        if(!cond) failures++;
+    }
+
+    private static byte[] entry(int n) {
+        byte[] b = new byte[ENTRY];
+        for(int i=0;i<b.length;i++) b[i] = (byte)(n + i);
+        return b;
+    }
+
+    private static boolean same(byte[] a, byte[] b) {
+        if(a == null || b == null || a.length != b.length) return false;
+        for(int i=0;i<a.length;i++) if(a[i] != b[i]) return false;
+        return true;
+    }
+
+    /** Returns the file <i>cache</i> keeps the entry <i>key</i> in, null if there is none */
+    private static File file(CompileCache cache, String key) {
+        File[] files = cache.getDirectory().listFiles();
+        for(int i=0;i<files.length;i++) if(files[i].getName().startsWith(key + ".")) return files[i];
+        return null;
+    }
+
+    public static void main(String[] args) throws Exception {
+        File dir = File.createTempFile("compilecache","");
+        dir.delete();
+        // room for three entries, not four
+        CompileCache cache = new CompileCache(dir,3*ENTRY + ENTRY/2);
+        String[] keys = new String[5];
+        for(int i=0;i<keys.length;i++) keys[i] = CompileCache.key(entry(i),"test","CompileCacheTest");
+
+        try {
+            check(cache.get(keys[0]) == null,"get() of a missing entry returns null");
+            for(int i=0;i<3;i++) cache.put(keys[i],entry(i));
+            check(same(cache.get(keys[0]),entry(0)),"get() returns what put() stored");
+
+            // modification times are the only record of use, give every entry its own
+            long now = System.currentTimeMillis();
+            for(int i=0;i<3;i++) file(cache,keys[i]).setLastModified(now - (3-i)*60000L);
+            check(same(cache.get(keys[0]),entry(0)),"get() of the oldest entry");
+            cache.put(keys[3],entry(3));
+            check(cache.evictions() == 1,"putting a fourth entry evicts one");
+            check(file(cache,keys[1]) == null && cache.get(keys[1]) == null,"... the one used least recently");
+            check(same(cache.get(keys[0]),entry(0)),"... not the oldest one, get() used it last");
+            check(same(cache.get(keys[2]),entry(2)) && same(cache.get(keys[3]),entry(3)),"... and not the newer ones");
+
+            RandomAccessFile raf = new RandomAccessFile(file(cache,keys[2]),"rw");
+            raf.seek(raf.length() - ENTRY/2);
+            int b = raf.read();
+            raf.seek(raf.length() - ENTRY/2);
+            raf.write(b ^ 0xff);
+            raf.close();
+            check(cache.get(keys[2]) == null,"get() of a corrupted entry returns null");
+            check(file(cache,keys[2]) == null,"... and deletes it");
+
+            raf = new RandomAccessFile(file(cache,keys[3]),"rw");
+            raf.setLength(ENTRY/2);
+            raf.close();
+            check(cache.get(keys[3]) == null,"get() of a truncated entry returns null");
+            check(file(cache,keys[3]) == null,"... and deletes it");
+
+            cache.put(keys[4],entry(4));
+            check(same(cache.get(keys[4]),entry(4)),"put() works after broken entries were dropped");
+            System.err.println(cache);
+        } finally {
+            File[] files = dir.listFiles();
+            for(int i=0;i<files.length;i++) files[i].delete();
+            dir.delete();
+        }
+
+        if(failures != 0) System.err.println(failures + " checks failed");
+        else System.err.println("All compile cache checks passed");
+        System.exit(failures != 0 ? 1 : 0);
+    }
+}
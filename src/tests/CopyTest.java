@@ -0,0 +1,126 @@
+// Copyright 2000-2005 the Contributors, as shown in the revision logs.
+// Licensed under the Apache Public Source License 2.0 ("the License").
+// You may not use this file except in compliance with the License.
+
+package tests;
+
+import org.ibex.nestedvm.Runtime;
+import org.ibex.nestedvm.Interpreter;
+import org.ibex.nestedvm.OffHeapMemory;
+import java.nio.*;
+
+/** Round trips data through copyinWords(), copyoutWords(), the ByteBuffer copyin() and copyout() and
+    intBuffer() across a page boundary and checks that running into an unmapped page faults. Uses tests.Test
+    paused in its call test, or any binary that pauses under the Interpreter (on and off the heap) if one
+    is given. */
+class CopyTest {
+    private static int failures;
+
+    private static void check(boolean cond, String what) {
+        System.err.println((cond ? "ok" : "FAILED") + ": " + what);
+        if(!cond) failures++;
+    }
+
+    private static interface Access { void run() throws Exception; }
+
+    private static void faults(Class exn, String what, Access a) {
+        try {
+            a.run();
+            check(false,what);
+        } catch(Exception e) {
+            check(exn.isInstance(e),what + (exn.isInstance(e) ? "" : " (got " + e + ")"));
+        }
+    }
+
+    private static void test(final Runtime rt, String name) throws Exception {
+        System.err.println("== " + name + " ==");
+        rt.start(new String[]{"Test","calltest"});
+        if(rt.execute()) throw new Exception("binary exited instead of pausing");
+
+        final int page = rt.getPageSize();
+        int addr = rt.sbrk(3*page);
+        // the last 8 bytes of one page and the start of the next
+        final int boundary = ((addr + page - 1) & ~(page-1)) + page;
+        // the heap ends before this, nothing is mapped here
+        final int unmapped = (rt.sbrk(0) + page - 1) & ~(page-1);
+        faults(Runtime.ReadFaultException.class,"the page after the heap is unmapped",new Access() {
+            public void run() throws Exception { rt.memRead(unmapped); }
+        });
+
+        int[] src = new int[8];
+        for(int i=0;i<src.length;i++) src[i] = 0x01020304 * (i+1);
+        rt.copyoutWords(src,0,boundary-12,8);
+        int[] dst = new int[10];
+        rt.copyinWords(boundary-12,dst,1,8);
+        boolean ok = true;
+        for(int i=0;i<8;i++) if(dst[i+1] != src[i] || rt.memRead(boundary-12+i*4) != src[i]) ok = false;
+        check(ok && dst[0] == 0 && dst[9] == 0,"copyoutWords() and copyinWords() round trip across a page boundary");
+
+        rt.memset(boundary-16,0xee,32);
+        byte[] bytes = new byte[19];
+        for(int i=0;i<bytes.length;i++) bytes[i] = (byte)(0x41 + i);
+        ByteBuffer out = ByteBuffer.allocate(bytes.length + 2);
+        out.order(ByteOrder.LITTLE_ENDIAN);
+        out.position(2);
+        out.put(bytes);
+        out.position(2);
+        rt.copyout(out,boundary-7,bytes.length);
+        check(out.position() == 2 + bytes.length && out.order() == ByteOrder.LITTLE_ENDIAN,"copyout(ByteBuffer) advances the buffer and keeps its byte order");
+        ByteBuffer in = ByteBuffer.allocateDirect(bytes.length + 1);
+        in.order(ByteOrder.LITTLE_ENDIAN);
+        in.put((byte) 0x55);
+        rt.copyin(boundary-7,in,bytes.length);
+        check(in.position() == 1 + bytes.length && in.order() == ByteOrder.LITTLE_ENDIAN,"copyin(ByteBuffer) advances the buffer and keeps its byte order");
+        byte[] back = new byte[bytes.length + 2];
+        rt.copyin(boundary-8,back,back.length);
+        ok = back[0] == (byte) 0xee && back[back.length-1] == (byte) 0xee && in.get(0) == 0x55;
+        for(int i=0;i<bytes.length;i++) if(back[i+1] != bytes[i] || in.get(i+1) != bytes[i]) ok = false;
+        check(ok,"copyout(ByteBuffer) and copyin(ByteBuffer) round trip unaligned bytes across a page boundary");
+
+        IntBuffer w = rt.intBuffer(boundary-8,2,true);
+        w.put(0,0x12345678);
+        check(rt.memRead(boundary-8) == 0x12345678,"writes through a writable intBuffer() reach memory");
+        rt.memWrite(boundary-4,0x0badcafe);
+        IntBuffer r = rt.intBuffer(boundary-8,2,false);
+        check(r.get(1) == 0x0badcafe && r.isReadOnly(),"a read-only intBuffer() sees writes to memory");
+        faults(IllegalArgumentException.class,"intBuffer() refuses a range across a page boundary",new Access() {
+            public void run() throws Exception { rt.intBuffer(boundary-8,3,false); }
+        });
+
+        faults(Runtime.ReadFaultException.class,"copyinWords() into an unmapped page faults",new Access() {
+            public void run() throws Exception { rt.copyinWords(unmapped-8,new int[4],0,4); }
+        });
+        faults(Runtime.WriteFaultException.class,"copyoutWords() into an unmapped page faults",new Access() {
+            public void run() throws Exception { rt.copyoutWords(new int[4],0,unmapped-8,4); }
+        });
+        faults(Runtime.ReadFaultException.class,"copyin(ByteBuffer) from an unmapped page faults",new Access() {
+            public void run() throws Exception { rt.copyin(unmapped-7,ByteBuffer.allocate(16),16); }
+        });
+        faults(Runtime.WriteFaultException.class,"copyout(ByteBuffer) into an unmapped page faults",new Access() {
+            public void run() throws Exception { rt.copyout(ByteBuffer.allocate(16),unmapped-7,16); }
+        });
+        faults(Runtime.ReadFaultException.class,"a read-only intBuffer() of an unmapped page faults",new Access() {
+            public void run() throws Exception { rt.intBuffer(unmapped,4,false); }
+        });
+        faults(Runtime.WriteFaultException.class,"a writable intBuffer() of an unmapped page faults",new Access() {
+            public void run() throws Exception { rt.intBuffer(unmapped,4,true); }
+        });
+        faults(Runtime.ReadFaultException.class,"copyinWords() from a misaligned address faults",new Access() {
+            public void run() throws Exception { rt.copyinWords(boundary-6,new int[1],0,1); }
+        });
+        rt.stop();
+    }
+
+    public static void main(String[] args) throws Exception {
+        if(args.length > 0) {
+            test(new Interpreter(args[0]),"Interpreter");
+            test(new Interpreter(args[0],new OffHeapMemory()),"Interpreter off the heap");
+        } else {
+            test((Runtime) Class.forName("tests.Test").newInstance(),"tests.Test");
+        }
+
+        if(failures != 0) System.err.println(failures + " checks failed");
+        else System.err.println("All copy checks passed");
+        System.exit(failures != 0 ? 1 : 0);
+    }
+}
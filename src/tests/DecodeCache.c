@@ -0,0 +1,77 @@
+#include <stdio.h>
+#include <string.h>
+#include <unistd.h>
+#include <fcntl.h>
+#include <sys/mman.h>
+
+/* The Interpreter predecodes instructions on read-only pages. Code that is replaced (here by mapping a
+   different file over it) has to run as the new code, not as what was decoded before. Only the
+   Interpreter can run code it wasn't compiled with, this test is for it alone. */
+
+#define CODE_FILE "decodecache.tmp"
+
+static int failures;
+
+static void check(int cond, const char *what) {
+    fprintf(stderr,"%s: %s\n",cond ? "ok" : "FAILED",what);
+    if(!cond) failures++;
+}
+
+/* li v0,<value>; jr ra; nop */
+static void make_code(unsigned int *code, int value) {
+    code[0] = 0x24020000 | (value & 0xffff);
+    code[1] = 0x03e00008;
+    code[2] = 0;
+}
+
+/* writes a function returning <value> to CODE_FILE and maps it read-only at <addr> (anywhere if NULL) */
+static void *map_code(void *addr, int value) {
+    unsigned int code[3];
+    int fd;
+    void *p;
+    make_code(code,value);
+    fd = open(CODE_FILE,O_RDWR|O_CREAT|O_TRUNC,0644);
+    if(fd < 0) { perror("open"); return MAP_FAILED; }
+    write(fd,code,sizeof(code));
+    p = mmap(addr,sizeof(code),PROT_READ|PROT_EXEC,MAP_PRIVATE|(addr ? MAP_FIXED : 0),fd,0);
+    close(fd);
+    return p;
+}
+
+int main() {
+    int (*f)(void);
+    unsigned int *w;
+    int i, ok;
+    void *p;
+
+    p = map_code(NULL,1);
+    if(p == MAP_FAILED) { perror("mmap"); return 1; }
+    f = (int (*)(void)) p;
+    ok = 1;
+    /* more than once so the page is decoded and then run from the cache */
+    for(i=0;i<3;i++) if(f() != 1) ok = 0;
+    check(ok,"code in a read-only file mapping runs");
+
+    check(map_code(p,2) == p,"mapping other code over it with MAP_FIXED");
+    check(f() == 2,"... runs the new code, not what was decoded before");
+
+    munmap(p,4096);
+    check(map_code(p,3) == p,"mapping code again after munmap()");
+    check(f() == 3,"... runs the new code");
+    munmap(p,4096);
+    unlink(CODE_FILE);
+
+    /* writable pages are never predecoded, changes show up right away */
+    w = mmap(NULL,4096,PROT_READ|PROT_WRITE|PROT_EXEC,MAP_PRIVATE|MAP_ANONYMOUS,-1,0);
+    if(w == MAP_FAILED) { perror("mmap"); return 1; }
+    f = (int (*)(void)) w;
+    make_code(w,4);
+    check(f() == 4 && f() == 4,"code written to a writable mapping runs");
+    make_code(w,5);
+    check(f() == 5,"... and runs as rewritten after it changes");
+    munmap(w,4096);
+
+    if(failures) fprintf(stderr,"%d checks failed\n",failures);
+    else fprintf(stderr,"All decode cache checks passed\n");
+    return failures ? 1 : 0;
+}
@@ -0,0 +1,13 @@
+#include <stdio.h>
+#include <unistd.h>
+
+/* Runs another program with exec(), so it gets the exec() treatment (tiered execution, the exec cache) */
+int main(int argc, char **argv) {
+    if(argc < 2) {
+        fprintf(stderr,"Usage: %s program [args ...]\n",argv[0]);
+        return 1;
+    }
+    execv(argv[1],argv+1);
+    perror(argv[1]);
+    return 1;
+}
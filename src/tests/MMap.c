@@ -0,0 +1,106 @@
+#include <stdio.h>
+#include <string.h>
+#include <unistd.h>
+#include <stdlib.h>
+#include <fcntl.h>
+#include <sys/mman.h>
+#include <sys/wait.h>
+
+static int failures;
+
+static void check(int cond, const char *what) {
+    fprintf(stderr,"%s: %s\n",cond ? "ok" : "FAILED",what);
+    if(!cond) failures++;
+}
+
+static void waitfor(pid_t pid) {
+    int status;
+    if(waitpid(pid,&status,0) < 0) perror("waitpid");
+}
+
+/* pages given back by sbrk() and madvise(MADV_DONTNEED) are zero filled when they come back */
+static void heap_checks(void) {
+    long page = sysconf(_SC_PAGESIZE);
+    char *start, *p, *again, *aligned;
+    int i, shrunk, regrown_zero = 1, dontneed = -1, dontneed_zero = 1;
+
+    /* no stdio in here, it might malloc() and move the break under us */
+    start = sbrk(0);
+    p = sbrk(3*page);
+    for(i=0;i<3*page;i++) p[i] = 'x';
+    sbrk(-3*page);
+    shrunk = sbrk(0) == start;
+    again = sbrk(3*page);
+    for(i=0;i<3*page;i++) if(again[i] != 0) regrown_zero = 0;
+
+    aligned = (char*)(((unsigned long)again + page - 1) & ~(page - 1));
+    memset(aligned,'y',page);
+    dontneed = madvise(aligned,page,MADV_DONTNEED);
+    for(i=0;i<page;i++) if(aligned[i] != 0) dontneed_zero = 0;
+    sbrk(-3*page);
+
+    check(again == start,"sbrk() hands out the same memory again after shrinking the heap");
+    check(shrunk,"sbrk() with a negative increment moves the break back");
+    check(regrown_zero,"... and the memory it gave back is zero when the heap grows again");
+    check(dontneed == 0,"madvise(MADV_DONTNEED) on the heap succeeds");
+    check(dontneed_zero,"... and the page reads back as zeroes");
+}
+
+int main() {
+    int *anon;
+    char *file;
+    char buf[16];
+    int fd;
+    pid_t pid;
+
+    heap_checks();
+
+    anon = mmap(NULL,8192,PROT_READ|PROT_WRITE,MAP_PRIVATE|MAP_ANONYMOUS,-1,0);
+    if(anon == MAP_FAILED) { perror("mmap"); return 1; }
+    anon[0] = anon[1024] = 5;
+    check(madvise(anon,8192,MADV_DONTNEED) == 0 && anon[0] == 0 && anon[1024] == 0,"madvise(MADV_DONTNEED) zeroes a private anonymous mapping");
+    munmap(anon,8192);
+
+    anon = mmap(NULL,8192,PROT_READ|PROT_WRITE,MAP_SHARED|MAP_ANONYMOUS,-1,0);
+    if(anon == MAP_FAILED) { perror("mmap"); return 1; }
+    anon[0] = 5;
+
+    // the second page hasn't been touched before the fork
+    pid = fork();
+    if(pid == 0) {
+        anon[0] = 77;
+        anon[1024] = 78;
+        _exit(0);
+    }
+    waitfor(pid);
+    check(anon[0] == 77,"the parent sees the child's writes to a shared anonymous mapping");
+    check(anon[1024] == 78,"... including pages neither touched before the fork");
+
+    fd = open("mmaptest.tmp",O_RDWR|O_CREAT|O_TRUNC,0644);
+    if(fd < 0) { perror("open"); return 1; }
+    write(fd,"hello, world",12);
+    file = mmap(NULL,12,PROT_READ|PROT_WRITE,MAP_SHARED,fd,0);
+    if(file == MAP_FAILED) { perror("mmap"); return 1; }
+
+    pid = fork();
+    if(pid == 0) {
+        memcpy(file,"HELLO",5);
+        _exit(0);
+    }
+    waitfor(pid);
+    check(memcmp(file,"HELLO, world",12) == 0,"the parent sees the child's writes to a shared file mapping");
+
+    file[7] = 'W';
+    check(madvise(file,12,MADV_DONTNEED) == 0 && memcmp(file,"HELLO, World",12) == 0,"madvise(MADV_DONTNEED) on a shared file mapping keeps the changes");
+    munmap(file,12);
+    lseek(fd,0,SEEK_SET);
+    memset(buf,0,sizeof(buf));
+    read(fd,buf,12);
+    check(strcmp(buf,"HELLO, World") == 0,"munmap() writes the changes back to the file");
+    close(fd);
+    unlink("mmaptest.tmp");
+
+    if(failures) fprintf(stderr,"%d checks failed\n",failures);
+    else fprintf(stderr,"All mmap checks passed\n");
+    return failures ? 1 : 0;
+}
@@ -0,0 +1,108 @@
+// Copyright 2000-2005 the Contributors, as shown in the revision logs.
+// Licensed under the Apache Public Source License 2.0 ("the License").
+// You may not use this file except in compliance with the License.
+
+// TextOptimizer is package private
+package org.ibex.nestedvm;
+
+import java.util.*;
+
+/** Runs the TextOptimizer over small hand assembled blocks and checks the words that come out */
+public class OptimizeTextTest {
+    private static final int BASE = 0x10000;
+    private static final int T0 = 8, T1 = 9, T2 = 10, T3 = 11, V0 = 2, SP = 29, RA = 31;
+    private static final int NOP = 0;
+
+    private static int failures;
+
+    private static int addiu(int rt, int rs, int imm) { return (9 << 26) | (rs << 21) | (rt << 16) | (imm & 0xffff); }
+    private static int addu(int rd, int rs, int rt) { return (rs << 21) | (rt << 16) | (rd << 11) | 33; }
+    private static int mult(int rs, int rt) { return (rs << 21) | (rt << 16) | 24; }
+    private static int lw(int rt, int offset, int rs) { return (35 << 26) | (rs << 21) | (rt << 16) | (offset & 0xffff); }
+    private static int beq(int rs, int rt, int offset) { return (4 << 26) | (rs << 21) | (rt << 16) | (offset & 0xffff); }
+    private static int beql(int rs, int rt, int offset) { return (20 << 26) | (rs << 21) | (rt << 16) | (offset & 0xffff); }
+    private static int jr(int rs) { return (rs << 21) | 8; }
+    private static final int SYSCALL = 12;
+
+    /** Optimizes <i>words</i> with the words at the indexes in <i>jumpable</i> marked jumpable and compares the
+        result to <i>expected</i> */
+    private static void check(String what, int[] words, int[] jumpable, int[] expected) {
+        Hashtable jumps = new Hashtable();
+        for(int i=0;i<jumpable.length;i++) jumps.put(new Integer(BASE + jumpable[i]*4),Boolean.TRUE);
+        new TextOptimizer(BASE,words,jumps).run();
+        boolean ok = true;
+        for(int i=0;i<words.length;i++) {
+            if(words[i] == expected[i]) continue;
+            if(ok) System.err.println("FAILED: " + what);
+            System.err.println("    word " + i + " is " + Integer.toHexString(words[i]) + ", expected " + Integer.toHexString(expected[i]));
+            ok = false;
+        }
+        if(ok) System.err.println("ok: " + what);
+        else failures++;
+    }
+
+    public static void main(String[] args) {
+        int[] none = new int[0];
+
+        check("constants propagate within a block",
+            new int[]{ addiu(T0,0,5), addu(T1,T0,T0), jr(RA), NOP },
+            none,
+            new int[]{ addiu(T0,0,5), addiu(T1,0,10), jr(RA), NOP });
+
+        check("nothing is known at a jumpable address",
+            new int[]{ addiu(T0,0,5), addu(T1,T0,T0), jr(RA), NOP },
+            new int[]{ 1 },
+            new int[]{ addiu(T0,0,5), addu(T1,T0,T0), jr(RA), NOP });
+
+        check("a write that is overwritten before it is read goes away",
+            new int[]{ addiu(T0,0,5), addiu(T0,0,6), jr(RA), NOP },
+            none,
+            new int[]{ NOP, addiu(T0,0,6), jr(RA), NOP });
+
+        check("a write across a jumpable address stays",
+            new int[]{ addiu(T0,0,5), addiu(T0,0,6), jr(RA), NOP },
+            new int[]{ 1 },
+            new int[]{ addiu(T0,0,5), addiu(T0,0,6), jr(RA), NOP });
+
+        check("the delay slot belongs to the branch's block",
+            new int[]{ addiu(T0,0,5), beq(T2,T3,8), addu(T1,T0,T0), addu(T1,T0,T0), jr(RA), NOP },
+            none,
+            new int[]{ addiu(T0,0,5), beq(T2,T3,8), addiu(T1,0,10), addu(T1,T0,T0), jr(RA), NOP });
+
+        check("a write in a delay slot stays even if the fall through path overwrites it",
+            new int[]{ beq(T2,T3,8), addiu(T0,0,5), addiu(T0,0,6), jr(RA), NOP },
+            none,
+            new int[]{ beq(T2,T3,8), addiu(T0,0,5), addiu(T0,0,6), jr(RA), NOP });
+
+        check("likely branches end a block too",
+            new int[]{ beql(T2,T3,8), addiu(T0,0,5), addiu(T0,0,6), jr(RA), NOP },
+            none,
+            new int[]{ beql(T2,T3,8), addiu(T0,0,5), addiu(T0,0,6), jr(RA), NOP });
+
+        check("SYSCALL reads every register and ends the block",
+            new int[]{ addiu(V0,0,1), SYSCALL, addiu(V0,0,2), addu(T1,V0,V0), jr(RA), NOP },
+            none,
+            new int[]{ addiu(V0,0,1), SYSCALL, addiu(V0,0,2), addiu(T1,0,4), jr(RA), NOP });
+
+        check("register plus constant folds into the load offset",
+            new int[]{ addiu(T0,SP,16), lw(T1,4,T0), jr(RA), NOP },
+            none,
+            new int[]{ addiu(T0,SP,16), lw(T1,20,SP), jr(RA), NOP });
+
+        check("copies are propagated",
+            new int[]{ addu(T0,SP,0), lw(T1,0,T0), addu(T2,T0,T1), jr(RA), NOP },
+            none,
+            new int[]{ addiu(T0,SP,0), lw(T1,0,SP), addu(T2,SP,T1), jr(RA), NOP });
+
+        check("MULT never gets $0 for a register known to be zero",
+            new int[]{ addiu(T0,0,0), mult(T0,T1), jr(RA), NOP },
+            none,
+            new int[]{ addiu(T0,0,0), mult(T0,T1), jr(RA), NOP });
+
+        if(failures != 0) {
+            System.err.println(failures + " TextOptimizer checks failed");
+            System.exit(1);
+        }
+        System.err.println("All TextOptimizer checks passed");
+    }
+}
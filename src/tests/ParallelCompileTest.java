@@ -0,0 +1,194 @@
+// Copyright 2000-2005 the Contributors, as shown in the revision logs.
+// Licensed under the Apache Public Source License 2.0 ("the License").
+// You may not use this file except in compliance with the License.
+
+package tests;
+
+import org.ibex.nestedvm.ClassFileCompiler;
+import org.ibex.nestedvm.util.Seekable;
+import java.io.*;
+
+/** Compiles the same binary with the ClassFileCompiler on one thread and on several and checks the class files
+    come out byte for byte the same. The binary is a hand assembled ELF with enough small methods to be split
+    between the threads, any binaries given on the command line are checked too. */
+class ParallelCompileTest {
+    private static final int TEXT = 0x10000;
+    private static final int FUNCS = 64;
+    private static final int FUNC_WORDS = 16;
+    private static final int T0 = 8, T1 = 9, V0 = 2, SP = 29, RA = 31;
+    private static final int NOP = 0;
+    private static final int RUNS = 4;
+
+    private static int failures;
+
+    private static int addiu(int rt, int rs, int imm) { return (9 << 26) | (rs << 21) | (rt << 16) | (imm & 0xffff); }
+    private static int lw(int rt, int offset, int rs) { return (35 << 26) | (rs << 21) | (rt << 16) | (offset & 0xffff); }
+    private static int sw(int rt, int offset, int rs) { return (43 << 26) | (rs << 21) | (rt << 16) | (offset & 0xffff); }
+    private static int bne(int rs, int rt, int offset) { return (5 << 26) | (rs << 21) | (rt << 16) | (offset & 0xffff); }
+    private static int jal(int addr) { return (3 << 26) | ((addr >>> 2) & 0x3ffffff); }
+    private static int mult(int rs, int rt) { return (rs << 21) | (rt << 16) | 24; }
+    private static int mflo(int rd) { return (rd << 11) | 18; }
+    private static int jr(int rs) { return (rs << 21) | 8; }
+
+    /** FUNCS functions that count down a loop, call the next one and load something to multiply with */
+    private static int[] text() {
+        int[] w = new int[FUNCS*FUNC_WORDS];
+        for(int i=0;i<FUNCS;i++) {
+            int n = i*FUNC_WORDS;
+            w[n+0] = addiu(SP,SP,-8);
+            w[n+1] = sw(RA,4,SP);
+            w[n+2] = addiu(T0,0,i+1);
+            w[n+3] = addiu(T0,T0,-1);
+            w[n+4] = bne(T0,0,-2);
+            w[n+5] = NOP;
+            w[n+6] = i == FUNCS-1 ? NOP : jal(TEXT + (i+1)*FUNC_WORDS*4);
+            w[n+7] = NOP;
+            w[n+8] = addiu(T1,SP,16);
+            w[n+9] = lw(T1,4,T1);
+            w[n+10] = mult(T0,T1);
+            w[n+11] = mflo(V0);
+            w[n+12] = lw(RA,4,SP);
+            w[n+13] = jr(RA);
+            w[n+14] = addiu(SP,SP,8);
+            w[n+15] = NOP;
+        }
+        return w;
+    }
+
+    /** Builds a big endian MIPS ELF executable with <i>text</i> as .text and a symbol for each function */
+    private static byte[] elf(int[] text) throws IOException {
+        byte[] shstrtab = "\0.text\0.symtab\0.strtab\0.shstrtab\0".getBytes("US-ASCII");
+        ByteArrayOutputStream strtab = new ByteArrayOutputStream();
+        ByteArrayOutputStream symtab = new ByteArrayOutputStream();
+        DataOutputStream syms = new DataOutputStream(symtab);
+        strtab.write(0);
+        syms.write(new byte[16]);
+        for(int i=0;i<=FUNCS+1;i++) {
+            String name = i == FUNCS ? "_start" : i == FUNCS+1 ? "_gp" : "f" + i;
+            syms.writeInt(strtab.size());
+            strtab.write(name.getBytes("US-ASCII"));
+            strtab.write(0);
+            if(i == FUNCS+1) {
+                syms.writeInt(TEXT + text.length*4 + 0x8000);
+                syms.writeInt(0);
+                syms.writeByte(0x10); // global, no type
+                syms.writeByte(0);
+                syms.writeShort(0xfff1); // absolute
+            } else {
+                syms.writeInt(TEXT + (i == FUNCS ? 0 : i*FUNC_WORDS*4));
+                syms.writeInt(FUNC_WORDS*4);
+                syms.writeByte(0x12); // global function
+                syms.writeByte(0);
+                syms.writeShort(1);
+            }
+        }
+
+        int textOff = 0x1000;
+        int symOff = textOff + text.length*4;
+        int strOff = symOff + symtab.size();
+        int shstrOff = strOff + strtab.size();
+        int shOff = (shstrOff + shstrtab.length + 3) & ~3;
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bos);
+        // ELF header
+        out.write(new byte[]{ 0x7f, 'E', 'L', 'F', 1, 2, 1, 0, 0, 0, 0, 0, 0, 0, 0, 0 });
+        out.writeShort(2); // ET_EXEC
+        out.writeShort(8); // EM_MIPS
+        out.writeInt(1);
+        out.writeInt(TEXT);
+        out.writeInt(52); // program headers
+        out.writeInt(shOff);
+        out.writeInt(0);
+        out.writeShort(52);
+        out.writeShort(32);
+        out.writeShort(1);
+        out.writeShort(40);
+        out.writeShort(5);
+        out.writeShort(4); // .shstrtab
+        // program header
+        out.writeInt(1); // PT_LOAD
+        out.writeInt(textOff);
+        out.writeInt(TEXT);
+        out.writeInt(TEXT);
+        out.writeInt(text.length*4);
+        out.writeInt(text.length*4);
+        out.writeInt(5); // r-x
+        out.writeInt(0x1000);
+        out.write(new byte[textOff - out.size()]);
+        for(int i=0;i<text.length;i++) out.writeInt(text[i]);
+        symtab.writeTo(out);
+        strtab.writeTo(out);
+        out.write(shstrtab);
+        out.write(new byte[shOff - out.size()]);
+        // section headers
+        out.write(new byte[40]);
+        section(out,1,1,6,TEXT,textOff,text.length*4,0,0,4,0);
+        section(out,7,2,0,0,symOff,symtab.size(),3,1,4,16);
+        section(out,15,3,0,0,strOff,strtab.size(),0,0,1,0);
+        section(out,23,3,0,0,shstrOff,shstrtab.length,0,0,1,0);
+        return bos.toByteArray();
+    }
+
+    private static void section(DataOutputStream out, int name, int type, int flags, int addr, int offset, int size,
+                                int link, int info, int align, int entsize) throws IOException {
+        out.writeInt(name); out.writeInt(type); out.writeInt(flags); out.writeInt(addr); out.writeInt(offset);
+        out.writeInt(size); out.writeInt(link); out.writeInt(info); out.writeInt(align); out.writeInt(entsize);
+    }
+
+    private static byte[] compile(byte[] binary, String options) throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ClassFileCompiler c = new ClassFileCompiler(new Seekable.ByteArray(binary,false),"tests.ParallelCompiled",bos);
+        c.parseOptions(options);
+        c.go();
+        return bos.toByteArray();
+    }
+
+    private static void check(String what, byte[] binary, String options) throws Exception {
+        byte[] serial = compile(binary,options + ",threads=1");
+        boolean ok = true;
+        for(int run=0;run<RUNS && ok;run++) {
+            byte[] parallel = compile(binary,options + ",threads=4");
+            if(parallel.length != serial.length) {
+                System.err.println("FAILED: " + what);
+                System.err.println("    run " + run + " is " + parallel.length + " bytes, expected " + serial.length);
+                ok = false;
+                break;
+            }
+            for(int i=0;i<serial.length;i++) {
+                if(parallel[i] == serial[i]) continue;
+                System.err.println("FAILED: " + what);
+                System.err.println("    run " + run + " differs at byte " + i);
+                ok = false;
+                break;
+            }
+        }
+        if(ok) System.err.println("ok: " + what + " (" + serial.length + " bytes)");
+        else failures++;
+    }
+
+    private static byte[] readFile(String path) throws IOException {
+        File f = new File(path);
+        byte[] b = new byte[(int) f.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(f));
+        try {
+            in.readFully(b);
+        } finally {
+            in.close();
+        }
+        return b;
+    }
+
+    public static void main(String[] args) throws Exception {
+        byte[] binary = elf(text());
+        check("several threads emit the same class as one",binary,"maxinsnpermethod=16");
+        check("... with the optimizer on",binary,"maxinsnpermethod=16,optimizetext");
+        for(int i=0;i<args.length;i++) check(args[i],readFile(args[i]),"unixruntime");
+
+        if(failures != 0) {
+            System.err.println(failures + " parallel compile checks failed");
+            System.exit(1);
+        }
+        System.err.println("All parallel compile checks passed");
+    }
+}
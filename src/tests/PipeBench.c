@@ -0,0 +1,42 @@
+/* Pushes data through a pipe from a forked child to its parent.
+   Usage: PipeBench [megabytes] [write size] [read size] */
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <unistd.h>
+#include <sys/wait.h>
+
+int main(int argc, char **argv) {
+    long total = (argc > 1 ? atol(argv[1]) : 64) * 1024 * 1024;
+    int wsize = argc > 2 ? atoi(argv[2]) : 4096;
+    int rsize = argc > 3 ? atoi(argv[3]) : wsize;
+    int fds[2];
+    pid_t pid;
+    char *buf;
+    long left, got = 0;
+    int n, status;
+    
+    buf = malloc(wsize > rsize ? wsize : rsize);
+    if(!buf) { perror("malloc"); return 1; }
+    memset(buf,'x',wsize);
+    if(pipe(fds) < 0) { perror("pipe"); return 1; }
+    
+    pid = fork();
+    if(pid < 0) { perror("fork"); return 1; }
+    if(pid == 0) {
+        close(fds[0]);
+        for(left=total;left > 0;left -= n) {
+            n = write(fds[1],buf,left < wsize ? left : wsize);
+            if(n < 0) { perror("write"); _exit(1); }
+        }
+        _exit(0);
+    }
+    
+    close(fds[1]);
+    while((n = read(fds[0],buf,rsize)) > 0) got += n;
+    if(n < 0) { perror("read"); return 1; }
+    if(waitpid(pid,&status,0) < 0) { perror("waitpid"); return 1; }
+    if(got != total) { fprintf(stderr,"read %ld bytes, expected %ld\n",got,total); return 1; }
+    if(!WIFEXITED(status) || WEXITSTATUS(status) != 0) { fprintf(stderr,"writer failed\n"); return 1; }
+    return 0;
+}
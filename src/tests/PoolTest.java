@@ -0,0 +1,83 @@
+// Copyright 2000-2005 the Contributors, as shown in the revision logs.
+// Licensed under the Apache Public Source License 2.0 ("the License").
+// You may not use this file except in compliance with the License.
+
+package tests;
+
+import org.ibex.nestedvm.Runtime;
+import org.ibex.nestedvm.RuntimePool;
+import java.io.*;
+
+/** Checks that RuntimePool hands the same instance out again after a checkin, that it is back in the
+    baseline state (memory, heap and file descriptors) and that bad checkins are refused. Uses tests.Test
+    paused in its call test, or any binary that pauses under the Interpreter if one is given. */
+class PoolTest {
+    private static int failures;
+
+    private static void check(boolean cond, String what) {
+        System.err.println((cond ? "ok" : "FAILED") + ": " + what);
+        if(!cond) failures++;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Runtime rt;
+        if(args.length > 0)
+            rt = new org.ibex.nestedvm.Interpreter(args[0]);
+        else
+            rt = (Runtime) Class.forName("tests.Test").newInstance();
+        rt.start(new String[]{"Test","calltest"});
+        if(rt.execute()) throw new Exception("binary exited instead of pausing");
+
+        int addr = rt.sbrk(4096);
+        byte[] baseline = "baseline\0".getBytes("US-ASCII");
+        rt.copyout(baseline,addr,baseline.length);
+        int heapEnd = rt.sbrk(0);
+        RuntimePool pool = new RuntimePool(rt.snapshot(),1);
+
+        Runtime vm = pool.checkout();
+        check(vm.cstring(addr).equals("baseline"),"checked out instance starts from the snapshot");
+        byte[] changed = "changed\0".getBytes("US-ASCII");
+        vm.copyout(changed,addr,changed.length);
+        vm.sbrk(64*1024);
+        int fd = vm.addFD(new Runtime.InputOutputStreamFD(new ByteArrayInputStream(new byte[0])));
+        check(pool.checkout(100) == null,"checkout() times out while the only instance is checked out");
+        pool.checkin(vm);
+
+        Runtime again = pool.checkout();
+        check(again == vm,"checkin() makes the instance available again");
+        check(again.cstring(addr).equals("baseline"),"memory is reset on checkin()");
+        check(again.sbrk(0) == heapEnd,"the heap is reset on checkin()");
+        check(!again.closeFD(fd),"file descriptors opened while checked out are closed on checkin()");
+        pool.checkin(again);
+
+        try {
+            pool.checkin(again);
+            check(false,"a second checkin() of the same instance is refused");
+        } catch(IllegalStateException e) {
+            check(true,"a second checkin() of the same instance is refused");
+        }
+        Runtime stranger = rt.snapshot().newInstance();
+        try {
+            pool.checkin(stranger);
+            check(false,"checkin() of an instance from somewhere else is refused");
+        } catch(IllegalArgumentException e) {
+            check(true,"checkin() of an instance from somewhere else is refused");
+        }
+        stranger.stop();
+        check(pool.idle() == 1 && pool.inUse() == 0,"refused checkins leave the pool alone");
+
+        // an instance that exited can't be reused
+        vm = pool.checkout();
+        vm.stop();
+        pool.checkin(vm);
+        check(pool.discarded() == 1 && pool.size() == 0,"exited instances are dropped");
+        vm = pool.checkout();
+        check(vm != again && vm.cstring(addr).equals("baseline"),"a new instance replaces a dropped one");
+        pool.checkin(vm);
+        pool.clear();
+
+        if(failures != 0) System.err.println(failures + " checks failed");
+        else System.err.println("All pool checks passed");
+        System.exit(failures != 0 ? 1 : 0);
+    }
+}
@@ -0,0 +1,91 @@
+// Copyright 2000-2005 the Contributors, as shown in the revision logs.
+// Licensed under the Apache Public Source License 2.0 ("the License").
+// You may not use this file except in compliance with the License.
+
+// restore() and the fd table are package private
+package org.ibex.nestedvm;
+
+import java.io.*;
+
+/** Takes a snapshot, changes memory, heap and file descriptors, restores it and checks the process is back
+    where it was. Then checks release() closes the snapshot's copies of the file descriptors. Uses tests.Test
+    paused in its call test, or any binary that pauses under the Interpreter if one is given. */
+public class SnapshotTest {
+    private static int failures;
+
+    private static void check(boolean cond, String what) {
+        System.err.println((cond ? "ok" : "FAILED") + ": " + what);
+        if(!cond) failures++;
+    }
+
+    private static class Stream extends ByteArrayInputStream {
+        boolean closed;
+        Stream() { super(new byte[0]); }
+        public void close() { closed = true; }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Runtime rt;
+        if(args.length > 0)
+            rt = new Interpreter(args[0]);
+        else
+            rt = (Runtime) Class.forName("tests.Test").newInstance();
+        rt.start(new String[]{"Test","calltest"});
+        if(rt.execute()) throw new Exception("binary exited instead of pausing");
+
+        int page = 1 << rt.pageShift;
+        int addr = rt.sbrk(2*page);
+        byte[] before = "before\0".getBytes("US-ASCII");
+        // straddle a page boundary
+        int str = ((addr + page) & ~(page-1)) - 3;
+        rt.copyout(before,str,before.length);
+        int heapEnd = rt.sbrk(0);
+        Stream kept = new Stream();
+        int fd = rt.addFD(new Runtime.InputOutputStreamFD(kept));
+        Runtime.Snapshot snapshot = rt.snapshot();
+
+        byte[] after = "after!\0".getBytes("US-ASCII");
+        rt.copyout(after,str,after.length);
+        rt.sbrk(64*1024);
+        rt.closeFD(fd);
+        Stream opened = new Stream();
+        int fd2 = rt.addFD(new Runtime.InputOutputStreamFD(opened));
+        check(!kept.closed,"the snapshot keeps a file descriptor open when the process closes it");
+
+        rt.restore(snapshot);
+        check(rt.cstring(str).equals("before"),"memory is back after restore()");
+        check(rt.sbrk(0) == heapEnd,"the heap is back after restore()");
+        check(rt.fds[fd] != null,"a file descriptor closed after the snapshot is back after restore()");
+        check(fd2 == fd || rt.fds[fd2] == null,"a file descriptor opened after the snapshot is gone after restore()");
+        check(opened.closed,"... and closed");
+
+        rt.copyout(after,str,after.length);
+        Runtime copy = snapshot.newInstance();
+        check(copy.cstring(str).equals("before"),"newInstance() doesn't see changes made after restore()");
+        copy.stop();
+
+        rt.closeFD(fd);
+        check(!kept.closed,"the file descriptor stays open while the snapshot has a copy");
+        snapshot.release();
+        check(kept.closed,"release() closes the snapshot's file descriptors");
+        snapshot.release();
+        try {
+            snapshot.newInstance();
+            check(false,"newInstance() fails after release()");
+        } catch(IllegalStateException e) {
+            check(true,"newInstance() fails after release()");
+        }
+        try {
+            rt.restore(snapshot);
+            check(false,"restore() fails after release()");
+        } catch(IllegalStateException e) {
+            check(true,"restore() fails after release()");
+        }
+        check(rt.cstring(str).equals("after!"),"... and leaves the process alone");
+        rt.stop();
+
+        if(failures != 0) System.err.println(failures + " checks failed");
+        else System.err.println("All snapshot checks passed");
+        System.exit(failures != 0 ? 1 : 0);
+    }
+}
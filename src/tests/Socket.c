@@ -0,0 +1,120 @@
+#include <stdio.h>
+#include <string.h>
+#include <unistd.h>
+#include <errno.h>
+#include <fcntl.h>
+#include <sys/types.h>
+#include <sys/time.h>
+#include <sys/poll.h>
+#include <sys/socket.h>
+#include <netinet/in.h>
+#include <arpa/inet.h>
+
+#define PORT 41234
+#define CLOSED_PORT 41235
+
+static int failures;
+
+static void check(int cond, const char *what) {
+    fprintf(stderr,"%s: %s\n",cond ? "ok" : "FAILED",what);
+    if(!cond) failures++;
+}
+
+static void loopback(struct sockaddr_in *sa, int port) {
+    memset(sa,0,sizeof(*sa));
+    sa->sin_family = AF_INET;
+    sa->sin_port = htons(port);
+    sa->sin_addr.s_addr = inet_addr("127.0.0.1");
+}
+
+static int selectfd(int fd, int forwrite) {
+    fd_set set;
+    struct timeval tv;
+    FD_ZERO(&set);
+    FD_SET(fd,&set);
+    tv.tv_sec = 10;
+    tv.tv_usec = 0;
+    return select(fd+1,forwrite ? NULL : &set,forwrite ? &set : NULL,NULL,&tv) == 1 && FD_ISSET(fd,&set);
+}
+
+/* sends msg one way and checks it arrives */
+static void transfer(int from, int to, const char *msg, const char *what) {
+    char buf[64];
+    int n = strlen(msg), got = 0, r;
+    check(write(from,msg,n) == n,what);
+    while(got < n && (r = read(to,buf+got,sizeof(buf)-got)) > 0) got += r;
+    check(got == n && memcmp(buf,msg,n) == 0,"... and the other end reads it back");
+}
+
+int main() {
+    struct sockaddr_in sa, peer;
+    struct pollfd pfd;
+    socklen_t len;
+    int srv, c, s, one = 1, err, r;
+    char buf[16];
+
+    srv = socket(AF_INET,SOCK_STREAM,0);
+    if(srv < 0) { perror("socket"); return 1; }
+    setsockopt(srv,SOL_SOCKET,SO_REUSEADDR,&one,sizeof(one));
+    loopback(&sa,PORT);
+    if(bind(srv,(struct sockaddr*)&sa,sizeof(sa)) < 0) { perror("bind"); return 1; }
+    if(listen(srv,5) < 0) { perror("listen"); return 1; }
+
+    /* blocking connect(), accept(), read() and write() */
+    c = socket(AF_INET,SOCK_STREAM,0);
+    check(connect(c,(struct sockaddr*)&sa,sizeof(sa)) == 0,"blocking connect() to a listening socket");
+    len = sizeof(peer);
+    s = accept(srv,(struct sockaddr*)&peer,&len);
+    check(s >= 0,"accept() returns the connection");
+    transfer(c,s,"ping","write() on the connecting side");
+    transfer(s,c,"pong","write() on the accepting side");
+    close(s);
+    check(read(c,buf,sizeof(buf)) == 0,"read() returns EOF once the peer closes");
+    close(c);
+
+    /* non-blocking connect() finishes through select() and SO_ERROR */
+    c = socket(AF_INET,SOCK_STREAM,0);
+    fcntl(c,F_SETFL,O_NONBLOCK);
+    r = connect(c,(struct sockaddr*)&sa,sizeof(sa));
+    check(r == 0 || errno == EINPROGRESS,"non-blocking connect() returns EINPROGRESS");
+    check(selectfd(c,1),"select() reports the connecting socket writable");
+    len = sizeof(err);
+    check(getsockopt(c,SOL_SOCKET,SO_ERROR,&err,&len) == 0 && err == 0,"SO_ERROR is 0 after the connect completes");
+    check(selectfd(srv,0),"select() reports the listening socket readable");
+    len = sizeof(peer);
+    s = accept(srv,(struct sockaddr*)&peer,&len);
+    check(s >= 0,"accept() after select()");
+    check(read(c,buf,sizeof(buf)) < 0 && errno == EAGAIN,"non-blocking read() with nothing to read fails with EAGAIN");
+    check(write(s,"data",4) == 4 && selectfd(c,0),"select() reports the socket readable once data arrives");
+    check(read(c,buf,sizeof(buf)) == 4 && memcmp(buf,"data",4) == 0,"non-blocking read() returns the data");
+    close(s);
+    close(c);
+    close(srv);
+
+    /* the real cause of a failed connect() reaches the guest */
+    c = socket(AF_INET,SOCK_STREAM,0);
+    loopback(&sa,CLOSED_PORT);
+    check(connect(c,(struct sockaddr*)&sa,sizeof(sa)) < 0 && errno == ECONNREFUSED,"blocking connect() to a closed port fails with ECONNREFUSED");
+    close(c);
+
+    c = socket(AF_INET,SOCK_STREAM,0);
+    fcntl(c,F_SETFL,O_NONBLOCK);
+    if(connect(c,(struct sockaddr*)&sa,sizeof(sa)) < 0 && errno == EINPROGRESS) {
+        check(selectfd(c,1),"select() reports the failed connect");
+        len = sizeof(err);
+        check(getsockopt(c,SOL_SOCKET,SO_ERROR,&err,&len) == 0 && err == ECONNREFUSED,"SO_ERROR is ECONNREFUSED");
+    } else {
+        check(errno == ECONNREFUSED,"non-blocking connect() to a closed port fails with ECONNREFUSED");
+    }
+    close(c);
+
+    /* c is closed now */
+    check(!selectfd(c,0) && errno == EBADF,"select() on a closed descriptor fails with EBADF");
+    pfd.fd = c;
+    pfd.events = POLLIN;
+    check(poll(&pfd,1,0) == 1 && pfd.revents == POLLNVAL,"poll() reports a closed descriptor as POLLNVAL");
+
+    if(failures) fprintf(stderr,"%d checks failed\n",failures);
+    else fprintf(stderr,"All socket checks passed\n");
+    return failures ? 1 : 0;
+}
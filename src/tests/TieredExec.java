@@ -0,0 +1,26 @@
+// Copyright 2000-2005 the Contributors, as shown in the revision logs.
+// Licensed under the Apache Public Source License 2.0 ("the License").
+// You may not use this file except in compliance with the License.
+
+package tests;
+
+import org.ibex.nestedvm.Interpreter;
+import org.ibex.nestedvm.UnixRuntime;
+
+/** Runs a MIPS binary under the Interpreter with tiered execution turned on. Only exec()ed programs are
+    tiered, so the first binary should be Exec.mips, which exec()s the rest of the command line. */
+class TieredExec {
+    public static void main(String[] args) throws Exception {
+        if(args.length < 2) {
+            System.err.println("Usage: TieredExec threshold binary.mips [args ...]");
+            System.exit(1);
+        }
+        UnixRuntime.GlobalState gs = new UnixRuntime.GlobalState();
+        gs.setTieredExec(true,Integer.parseInt(args[0]));
+        Interpreter rt = new Interpreter(args[1]);
+        rt.setGlobalState(gs);
+        String[] appArgs = new String[args.length-2];
+        for(int i=2;i<args.length;i++) appArgs[i-2] = args[i];
+        System.exit(UnixRuntime.runAndExec(rt,args[1],appArgs));
+    }
+}
@@ -0,0 +1,65 @@
+// Copyright 2000-2005 the Contributors, as shown in the revision logs.
+// Licensed under the Apache Public Source License 2.0 ("the License").
+// You may not use this file except in compliance with the License.
+
+package tests;
+
+import org.ibex.nestedvm.ExecCache;
+import org.ibex.nestedvm.Interpreter;
+import org.ibex.nestedvm.UnixRuntime;
+
+/** Runs a binary (through Exec.mips, see TieredExec) several times at once with tiered execution on and one
+    GlobalState. Only one of them may compile it, the others have to share that compile, and an exec()
+    after it is done has to use the cached class. */
+class TieredExecCache {
+    private static final int PROCESSES = 2;
+    
+    public static void main(final String[] args) throws Exception {
+        if(args.length < 2) {
+            System.err.println("Usage: TieredExecCache threshold binary.mips [args ...]");
+            System.exit(1);
+        }
+        final UnixRuntime.GlobalState gs = new UnixRuntime.GlobalState();
+        gs.setTieredExec(true,Integer.parseInt(args[0]));
+        final String[] appArgs = new String[args.length-2];
+        for(int i=2;i<args.length;i++) appArgs[i-2] = args[i];
+        
+        final int[] status = new int[PROCESSES];
+        Thread[] threads = new Thread[PROCESSES];
+        for(int i=0;i<PROCESSES;i++) {
+            final int n = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        status[n] = runOnce(gs,args[1],appArgs);
+                    } catch(Exception e) {
+                        e.printStackTrace();
+                        status[n] = -1;
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for(int i=0;i<PROCESSES;i++) threads[i].join();
+        
+        // the compile runs in the background, the processes might be done before it is
+        ExecCache cache = gs.getExecCache();
+        for(int i=0;i<600 && cache.compiles() == 0;i++) Thread.sleep(100);
+        long hits = cache.hits();
+        int last = runOnce(gs,args[1],appArgs);
+        
+        boolean ok = true;
+        for(int i=0;i<PROCESSES;i++) if(status[i] != last) ok = false;
+        if(cache.compiles() != 1 || cache.compileFailures() != 0) ok = false;
+        if(cache.hits() != hits + 1) ok = false;
+        System.err.println(cache);
+        System.err.println(ok ? "One compile for all exec()s" : "FAILED");
+        System.exit(ok ? 0 : 1);
+    }
+    
+    private static int runOnce(UnixRuntime.GlobalState gs, String binary, String[] args) throws Exception {
+        Interpreter rt = new Interpreter(binary);
+        rt.setGlobalState(gs);
+        return UnixRuntime.runAndExec(rt,binary,args);
+    }
+}
@@ -33,8 +33,9 @@ public abstract class Type implements CGConst {
     /** 
      *  A "descriptor" is the classfile-mangled text representation of a type (see JLS section 4.3)
      *  guarantee: there will only be one instance of Type for a given descriptor ==> equals() and == are interchangeable
+     *  (this holds with several threads too, which is why this is synchronized)
      */
-    public static Type fromDescriptor(String d) {
+    public static synchronized Type fromDescriptor(String d) {
         Type ret = (Type)instances.get(d);
         if (ret != null) return ret;
         if (d.startsWith("[")) return new Type.Array(Type.fromDescriptor(d.substring(1)));
@@ -42,6 +43,9 @@ public abstract class Type implements CGConst {
     }
 
     public final String  getDescriptor() { return descriptor; }
+    /** There is only one instance per descriptor so equals() is fine as it is, this only makes the hash code
+        (and the order of hashtables holding types, like the constant pool's) the same in every run */
+    public int hashCode() { return descriptor.hashCode(); }
 
     public Type.Array  makeArray() { return (Type.Array)Type.fromDescriptor("["+descriptor); }
     public Type.Array  makeArray(int i) { return i==0 ? (Type.Array)this : makeArray().makeArray(i-1); }
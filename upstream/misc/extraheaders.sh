@@ -24,6 +24,64 @@ int klogctl(int cmd, char *buf, int buflen);
 #endif
 __EOF__
 
+cat <<__EOF__ > sys/mman.h
+#ifndef __SYS_MMAN_H
+#define __SYS_MMAN_H
+
+#include <sys/types.h>
+
+#define PROT_NONE 0x0
+#define PROT_READ 0x1
+#define PROT_WRITE 0x2
+#define PROT_EXEC 0x4
+
+#define MAP_SHARED 0x1
+#define MAP_PRIVATE 0x2
+#define MAP_FIXED 0x10
+#define MAP_ANONYMOUS 0x20
+#define MAP_ANON MAP_ANONYMOUS
+
+#define MAP_FAILED ((void *) -1)
+
+#define MADV_NORMAL 0x0
+#define MADV_RANDOM 0x1
+#define MADV_SEQUENTIAL 0x2
+#define MADV_WILLNEED 0x3
+#define MADV_DONTNEED 0x4
+
+void *mmap(void *addr, size_t len, int prot, int flags, int fd, off_t offset);
+int munmap(void *addr, size_t len);
+int madvise(void *addr, size_t len, int advice);
+
+#endif
+__EOF__
+
+cat <<__EOF__ > sys/poll.h
+#ifndef __SYS_POLL_H
+#define __SYS_POLL_H
+
+#define POLLIN 0x1
+#define POLLPRI 0x2
+#define POLLOUT 0x4
+#define POLLERR 0x8
+#define POLLHUP 0x10
+#define POLLNVAL 0x20
+
+struct pollfd {
+    int fd;
+    short events;
+    short revents;
+};
+
+typedef unsigned int nfds_t;
+
+int poll(struct pollfd *fds, nfds_t nfds, int timeout);
+
+#endif
+__EOF__
+
+test -f poll.h || echo "#include <sys/poll.h>" > poll.h
+
 cat <<__EOF__ > sys/utsname.h
 #ifndef __SYS_UTSNAME_H
 #define __SYS_UTSNAME_H
@@ -398,6 +456,7 @@ static unsigned long ntohl(int x) { return x; }
 #define SO_KEEPALIVE 0x0008 
 #define SO_BROADCAST 0x0020
 #define SO_TYPE      0x1008
+#define SO_ERROR     0x1007
 
 #define SHUT_RD 0
 #define SHUT_WR 1